@@ -17,30 +17,18 @@ package saker.msvc.impl;
 
 import java.io.IOException;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.NavigableMap;
-import java.util.NavigableSet;
 import java.util.Set;
-import java.util.TreeMap;
-import java.util.TreeSet;
 import java.util.function.Predicate;
 
 import saker.build.file.path.SakerPath;
-import saker.build.file.provider.FileEntry;
-import saker.build.file.provider.LocalFileProvider;
 import saker.build.thirdparty.saker.util.ObjectUtils;
-import saker.build.thirdparty.saker.util.StringUtils;
 import saker.build.thirdparty.saker.util.function.Functionals;
 import saker.msvc.impl.option.SimpleParameterOption;
 import saker.msvc.impl.sdk.AbstractVCToolsSDKReference;
-import saker.msvc.impl.sdk.LegacyLayoutVCToolsSDKReference;
-import saker.msvc.impl.sdk.RegularLayoutVCToolsSDKReference;
+import saker.msvc.impl.sdk.MSVCToolchainInventory;
 import saker.msvc.impl.sdk.VersionsMSVCSDKDescription;
-import saker.nest.bundle.BundleIdentifier;
 import saker.process.api.ProcessIOConsumer;
 import saker.process.api.SakerProcess;
 import saker.process.api.SakerProcessBuilder;
@@ -146,135 +134,12 @@ public class MSVCUtils {
 
 	public static AbstractVCToolsSDKReference searchMSVCLegacyToolchainInProgramFiles(SakerPath programfiles,
 			Predicate<? super String> versionpredicate) {
-		LocalFileProvider fp = LocalFileProvider.getInstance();
-
-		//The valid entries are expected to be "Microsoft Visual Studio <version>". E.g. Microsoft Visual Studio 14.0
-		NavigableMap<String, ? extends FileEntry> programfilesentries;
-		try {
-			programfilesentries = fp.getDirectoryEntries(programfiles);
-		} catch (IOException e) {
-			return null;
-		}
-		//the version numbers in the directory name have the same semantics as the bundle identifier version numbers
-		//descending by version
-		NavigableMap<String, String> vsverdirs = new TreeMap<>(
-				Collections.reverseOrder(BundleIdentifier::compareVersionNumbers));
-		for (Entry<String, ? extends FileEntry> entry : programfilesentries.entrySet()) {
-			if (!entry.getValue().isDirectory()) {
-				continue;
-			}
-			String dirname = entry.getKey();
-			if (!StringUtils.startsWithIgnoreCase(dirname, "Microsoft Visual Studio ")) {
-				continue;
-			}
-			String verafter = dirname.substring(24);
-			if (!BundleIdentifier.isValidVersionNumber(verafter)) {
-				continue;
-			}
-			if (!versionpredicate.test(verafter)) {
-				continue;
-			}
-			vsverdirs.put(verafter, dirname);
-		}
-		for (Entry<String, String> entry : vsverdirs.entrySet()) {
-			SakerPath vcdirpath = programfiles.resolve(entry.getValue(), "VC");
-			//x86 host x86 target cl exe 
-			SakerPath clexepath = vcdirpath.resolve("bin", "cl.exe");
-			FileEntry clexeattrs;
-			try {
-				clexeattrs = fp.getFileAttributes(clexepath);
-			} catch (IOException e) {
-				continue;
-			}
-			if (clexeattrs.isRegularFile()) {
-				return new LegacyLayoutVCToolsSDKReference(entry.getKey(), vcdirpath);
-			}
-		}
-		return null;
+		return MSVCToolchainInventory.searchLegacyToolchain(programfiles, versionpredicate);
 	}
 
 	public static AbstractVCToolsSDKReference searchMSVCRegularToolchainInStudioDir(SakerPath studiosbasedir,
 			Predicate<? super String> versionpredicate) {
-		LocalFileProvider fp = LocalFileProvider.getInstance();
-
-		//The entries are expected to be the year number version of the Visual Studio. E.g. 2019
-		NavigableMap<String, ? extends FileEntry> installversionentries;
-		try {
-			installversionentries = fp.getDirectoryEntries(studiosbasedir);
-		} catch (IOException e) {
-			return null;
-		}
-		//descending install version number directories
-		NavigableMap<Integer, String> versiondirs = new TreeMap<>(Comparator.reverseOrder());
-		for (Entry<String, ? extends FileEntry> entry : installversionentries.entrySet()) {
-			if (!entry.getValue().isDirectory()) {
-				continue;
-			}
-			int versionnum;
-			try {
-				versionnum = Integer.parseInt(entry.getKey());
-			} catch (NumberFormatException e) {
-				continue;
-			}
-			versiondirs.put(versionnum, entry.getKey());
-		}
-		for (Entry<Integer, String> entry : versiondirs.entrySet()) {
-			SakerPath versiondir = studiosbasedir.resolve(entry.getValue());
-			NavigableMap<String, ? extends FileEntry> vsinstallentries;
-			try {
-				//TODO sort these entries by type? Enterprise, Professional, Community? (Professional may not exist, check...)
-
-				//The entries is expected to be the type of installation. E.g. Community
-				vsinstallentries = fp.getDirectoryEntries(versiondir);
-			} catch (IOException e) {
-				//not valid dir
-				continue;
-			}
-			for (Entry<String, ? extends FileEntry> installentry : vsinstallentries.entrySet()) {
-				if (!installentry.getValue().isDirectory()) {
-					continue;
-				}
-				SakerPath msvcdirpath = versiondir.resolve(installentry.getKey(), "VC", "Tools", "MSVC");
-				NavigableMap<String, ? extends FileEntry> msvcdirentries;
-				try {
-					//The entries are expected to be version numers. E.g. 14.22.27905
-					msvcdirentries = fp.getDirectoryEntries(msvcdirpath);
-				} catch (IOException e) {
-					continue;
-				}
-
-				//we use the bundle identifier version methods as it is semantically the same
-				//descending version numbers
-				NavigableSet<String> versiondirectories = new TreeSet<>(
-						Collections.reverseOrder(BundleIdentifier::compareVersionNumbers));
-				for (Entry<String, ? extends FileEntry> msvctoolsverentry : msvcdirentries.entrySet()) {
-					if (!msvctoolsverentry.getValue().isDirectory()) {
-						continue;
-					}
-					String version = msvctoolsverentry.getKey();
-					if (!BundleIdentifier.isValidVersionNumber(version)) {
-						continue;
-					}
-					if (!versionpredicate.test(version)) {
-						continue;
-					}
-					versiondirectories.add(version);
-				}
-				for (String versiondirname : versiondirectories) {
-					SakerPath versionedmsvctoolsdirpath = msvcdirpath.resolve(versiondirname);
-					SakerPath clexepath = versionedmsvctoolsdirpath.resolve("bin", "Hostx86", "x86", "cl.exe");
-					//we expect the cl compiler exe to be present in the above path
-					try {
-						if (fp.getFileAttributes(clexepath).isRegularFile()) {
-							return new RegularLayoutVCToolsSDKReference(versiondirname, versionedmsvctoolsdirpath);
-						}
-					} catch (IOException e) {
-						continue;
-					}
-				}
-			}
-		}
-		return null;
+		return MSVCToolchainInventory.searchRegularToolchain(studiosbasedir, versionpredicate);
 	}
 
 	public static Predicate<? super String> getSDKVersionsPredicate(Set<String> versions) {
@@ -0,0 +1,347 @@
+/*
+ * Copyright (C) 2020 Bence Sipka
+ *
+ * This program is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package saker.msvc.impl.ccompile;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import saker.build.thirdparty.saker.util.io.ByteArrayRegion;
+import saker.build.thirdparty.saker.util.io.UnsyncByteArrayOutputStream;
+import saker.process.api.ProcessIOConsumer;
+
+/**
+ * Incrementally scans the output of cl.exe as it arrives.
+ * <p>
+ * The lines are split at the byte level. Only the include notes and the diagnostic lines are converted to strings, any
+ * other lines are copied to the process output as is.
+ * <p>
+ * The include paths, diagnostics and echoed source file names are decoded as UTF-8, not with the platform default
+ * charset. Non-ASCII paths are only decoded correctly if cl.exe writes its output in UTF-8.
+ * <p>
+ * If the source file names are specified, the output is split to sections for each source file in a batch
+ * compilation. cl.exe prints the name of the source file before compiling it. The lines before the first file name
+ * are part of the common section.
+ */
+public final class CLOutputScanner implements ProcessIOConsumer {
+	private static final byte[] INCLUDE_NOTE_PREFIX = "Note: including file:".getBytes(StandardCharsets.US_ASCII);
+
+	/**
+	 * A diagnostic line in the format of <code>file(line) : type Cnnnn: description</code>.
+	 */
+	public static final class DiagnosticLine {
+		public final String file;
+		public final String lineNumber;
+		public final String type;
+		/**
+		 * The error code, may be <code>null</code>.
+		 */
+		public final String clError;
+		public final String description;
+
+		DiagnosticLine(String file, String lineNumber, String type, String clError, String description) {
+			this.file = file;
+			this.lineNumber = lineNumber;
+			this.type = type;
+			this.clError = clError;
+			this.description = description;
+		}
+	}
+
+	public static final class Section {
+		protected final List<String> includes = new ArrayList<>();
+		protected final List<DiagnosticLine> diagnostics = new ArrayList<>();
+		protected final UnsyncByteArrayOutputStream output = new UnsyncByteArrayOutputStream();
+		protected boolean empty = true;
+
+		public List<String> getIncludes() {
+			return includes;
+		}
+
+		public List<DiagnosticLine> getDiagnostics() {
+			return diagnostics;
+		}
+
+		public ByteArrayRegion getOutput() {
+			return output.toByteArrayRegion();
+		}
+
+		/**
+		 * Checks if there was no output for this section at all, including empty lines.
+		 */
+		public boolean isEmpty() {
+			return empty;
+		}
+	}
+
+	private final String[] sourceFileNames;
+	private final Section common = new Section();
+	private final Section[] sourceSections;
+	private Section current = common;
+	private int nextSourceIndex;
+
+	/**
+	 * The bytes of the last line that was not yet terminated.
+	 */
+	private byte[] lineBuffer = new byte[256];
+	private int lineLength;
+
+	public CLOutputScanner() {
+		this(null);
+	}
+
+	public CLOutputScanner(String[] sourceFileNames) {
+		this.sourceFileNames = sourceFileNames;
+		if (sourceFileNames == null) {
+			this.sourceSections = null;
+		} else {
+			this.sourceSections = new Section[sourceFileNames.length];
+			for (int i = 0; i < sourceSections.length; i++) {
+				sourceSections[i] = new Section();
+			}
+		}
+	}
+
+	@Override
+	public void handleOutput(ByteBuffer bytes) throws IOException {
+		if (bytes.hasArray()) {
+			byte[] array = bytes.array();
+			int start = bytes.arrayOffset() + bytes.position();
+			int end = bytes.arrayOffset() + bytes.limit();
+			int linestart = start;
+			for (int i = start; i < end; i++) {
+				if (array[i] != '\n') {
+					continue;
+				}
+				if (lineLength > 0) {
+					appendLineBytes(array, linestart, i - linestart);
+					processLine(lineBuffer, 0, lineLength);
+					lineLength = 0;
+				} else {
+					//the whole line is in the buffer, no need to copy
+					processLine(array, linestart, i - linestart);
+				}
+				linestart = i + 1;
+			}
+			appendLineBytes(array, linestart, end - linestart);
+			bytes.position(bytes.limit());
+		} else {
+			byte[] chunk = new byte[bytes.remaining()];
+			bytes.get(chunk);
+			handleOutput(ByteBuffer.wrap(chunk));
+		}
+	}
+
+	/**
+	 * Gets the section of the output that is not specific to a source file.
+	 * <p>
+	 * If no source file names were specified, this contains the whole output.
+	 */
+	public Section getCommonSection() {
+		flush();
+		return common;
+	}
+
+	public Section getSourceSection(int index) {
+		flush();
+		return sourceSections[index];
+	}
+
+	private void flush() {
+		if (lineLength > 0) {
+			processLine(lineBuffer, 0, lineLength);
+			lineLength = 0;
+		}
+	}
+
+	private void appendLineBytes(byte[] bytes, int offset, int length) {
+		if (length == 0) {
+			return;
+		}
+		int nlen = lineLength + length;
+		if (nlen > lineBuffer.length) {
+			byte[] nbuf = new byte[Math.max(nlen, lineBuffer.length * 2)];
+			System.arraycopy(lineBuffer, 0, nbuf, 0, lineLength);
+			lineBuffer = nbuf;
+		}
+		System.arraycopy(bytes, offset, lineBuffer, lineLength, length);
+		lineLength = nlen;
+	}
+
+	private void processLine(byte[] bytes, int start, int length) {
+		int end = start + length;
+		if (end > start && bytes[end - 1] == '\r') {
+			--end;
+		}
+		current.empty = false;
+		if (end == start) {
+			return;
+		}
+		if (sourceSections != null && nextSourceIndex < sourceSections.length
+				&& isSourceFileNameLine(bytes, start, end, sourceFileNames[nextSourceIndex])) {
+			current = sourceSections[nextSourceIndex++];
+			current.empty = false;
+			return;
+		}
+		if (startsWith(bytes, start, end, INCLUDE_NOTE_PREFIX)) {
+			int pathstart = start + INCLUDE_NOTE_PREFIX.length;
+			current.includes.add(new String(bytes, pathstart, end - pathstart, StandardCharsets.UTF_8).trim());
+			return;
+		}
+		if (isDiagnosticCandidate(bytes, start, end)) {
+			DiagnosticLine diag = parseDiagnostic(new String(bytes, start, end - start, StandardCharsets.UTF_8));
+			if (diag != null) {
+				current.diagnostics.add(diag);
+				return;
+			}
+		}
+		current.output.write(bytes, start, end - start);
+		current.output.write('\n');
+	}
+
+	private static boolean isSourceFileNameLine(byte[] bytes, int start, int end, String filename) {
+		while (start < end && isWhitespace(bytes[start])) {
+			++start;
+		}
+		while (end > start && isWhitespace(bytes[end - 1])) {
+			--end;
+		}
+		int len = end - start;
+		//the UTF-8 encoded length is in this range
+		if (len < filename.length() || len > filename.length() * 3) {
+			return false;
+		}
+		return new String(bytes, start, len, StandardCharsets.UTF_8).equalsIgnoreCase(filename);
+	}
+
+	private static boolean startsWith(byte[] bytes, int start, int end, byte[] prefix) {
+		if (end - start < prefix.length) {
+			return false;
+		}
+		for (int i = 0; i < prefix.length; i++) {
+			if (bytes[start + i] != prefix[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Checks if the line contains <code>"): "</code> or <code>") :"</code> or <code>"):"</code> which is required
+	 * for diagnostic lines.
+	 */
+	private static boolean isDiagnosticCandidate(byte[] bytes, int start, int end) {
+		for (int i = start + 1; i < end - 1; i++) {
+			if (bytes[i] != ')') {
+				continue;
+			}
+			byte next = bytes[i + 1];
+			if (next == ':' || (next == ' ' && i + 2 < end && bytes[i + 2] == ':')) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Parses a diagnostic line.
+	 * <p>
+	 * Matches the same lines as the <code>(.+?)\(([0-9]+)\) ?: ?([a-zA-Z ]+)( C[0-9]+)?: (.+)</code> regular
+	 * expression.
+	 *
+	 * @return The parsed diagnostic or <code>null</code> if the line is not a diagnostic.
+	 */
+	public static DiagnosticLine parseDiagnostic(String line) {
+		int len = line.length();
+		//the file name is matched lazily, try each opening parenthesis
+		for (int paren = line.indexOf('(', 1); paren >= 0; paren = line.indexOf('(', paren + 1)) {
+			int idx = paren + 1;
+			int digitsstart = idx;
+			while (idx < len && isDigit(line.charAt(idx))) {
+				++idx;
+			}
+			if (idx == digitsstart || idx >= len || line.charAt(idx) != ')') {
+				continue;
+			}
+			int digitsend = idx;
+			++idx;
+			if (idx < len && line.charAt(idx) == ' ') {
+				++idx;
+			}
+			if (idx >= len || line.charAt(idx) != ':') {
+				continue;
+			}
+			++idx;
+			if (idx < len && line.charAt(idx) == ' ') {
+				++idx;
+			}
+			DiagnosticLine result = parseDiagnosticType(line, idx, line.substring(0, paren),
+					line.substring(digitsstart, digitsend));
+			if (result != null) {
+				return result;
+			}
+		}
+		return null;
+	}
+
+	private static DiagnosticLine parseDiagnosticType(String line, int typestart, String file, String linenum) {
+		int len = line.length();
+		int typeend = typestart;
+		while (typeend < len && isTypeChar(line.charAt(typeend))) {
+			++typeend;
+		}
+		//the type is matched greedily, backtrack until the rest matches
+		for (int split = typeend; split > typestart; --split) {
+			int idx = split;
+			String clerror = null;
+			if (idx + 2 < len && line.charAt(idx) == ' ' && line.charAt(idx + 1) == 'C'
+					&& isDigit(line.charAt(idx + 2))) {
+				int errend = idx + 3;
+				while (errend < len && isDigit(line.charAt(errend))) {
+					++errend;
+				}
+				if (isDescriptionSeparator(line, errend)) {
+					clerror = line.substring(idx, errend);
+					idx = errend;
+				}
+			}
+			if (isDescriptionSeparator(line, idx)) {
+				return new DiagnosticLine(file, linenum, line.substring(typestart, split), clerror,
+						line.substring(idx + 2));
+			}
+		}
+		return null;
+	}
+
+	private static boolean isDescriptionSeparator(String line, int idx) {
+		//": " followed by at least one character
+		return idx + 2 < line.length() && line.charAt(idx) == ':' && line.charAt(idx + 1) == ' ';
+	}
+
+	private static boolean isTypeChar(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == ' ';
+	}
+
+	private static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+
+	private static boolean isWhitespace(byte b) {
+		return b == ' ' || b == '\t' || b == '\r';
+	}
+}
@@ -19,6 +19,7 @@ public enum CompilationFileTags {
 	SOURCE,
 	OBJECT_FILE,
 	INCLUDE_FILE,
+	STATE_SNAPSHOT,
 
 	;
 }
\ No newline at end of file
@@ -0,0 +1,914 @@
+/*
+ * Copyright (C) 2020 Bence Sipka
+ *
+ * This program is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package saker.msvc.impl.ccompile;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import saker.build.thirdparty.saker.util.ObjectUtils;
+import saker.msvc.impl.MSVCUtils;
+import saker.msvc.impl.ccompile.CompilationWorkUnit.PreviousFileState;
+import saker.msvc.impl.ccompile.CompilerState.CompiledFileState;
+import saker.std.api.file.location.FileLocation;
+
+/**
+ * Hands out the source files to compile in a longest-job-first order.
+ * <p>
+ * The compilation times are based on the durations recorded in the previous compiler state. Files that have no
+ * recorded duration get an estimate based on the number of their includes.
+ * <p>
+ * If batching is enabled, the files that only differ in their file locations are grouped into work units that are
+ * compiled with a single compiler invocation. The batches are formed when the files are handed out, and their size is
+ * based on the parallelism that the callers report, so the callers receive enough units to keep themselves busy.
+ * <p>
+ * The precompiled headers are created by separate jobs that are handed out before any source files. The files that
+ * use a precompiled header are only handed out after the header is created.
+ * <p>
+ * {@link #take(String, int, int, boolean)} doesn't wait for the units that are not yet available, e.g. the files that
+ * wait for a precompiled header. It returns no units, and the caller should finish. The duplication predicate of the
+ * callers waits for the units with {@link #awaitWork(long)} instead, so the callers don't hold a computation token or
+ * a remote call while waiting. If a caller fails while it creates a precompiled header, the compilation task fails, and
+ * the queue is aborted.
+ * <p>
+ * The callers are identified by a string that is unique to the build environment (inner task factory instance) that
+ * calls {@link #take(String, int, int, boolean)}. The files that use a precompiled header are handed out to the
+ * callers that already hold the header. Other callers only receive them if they would be idle otherwise, in which
+ * case they first receive a job to create the header for themselves.
+ * <p>
+ * The callers may take multiple units at once to avoid the round trips when they run on cluster nodes. The
+ * additional units are leased to the caller until it reports them as started, and idle callers may steal them near
+ * the end of the compilation. Only the units that are not yet started are stolen, and the caller only compiles a
+ * leased unit if {@link #started(String, CompilationWorkUnit)} confirms that it still owns it.
+ * <p>
+ * If a memory budget is set, the sum of the estimated compiler memory of the units that a caller compiles at the same
+ * time is kept below it. The memory is based on the estimates recorded in the previous compiler state. If the next
+ * unit doesn't fit, a shorter one that fits is handed out. If there's none, the caller receives no units, and
+ * {@link #awaitWork(long)} waits until a caller finishes a unit. Units are not leased in this case.
+ * <p>
+ * The files that fail due to a transient error are added back with {@link #retry(FileCompilationConfiguration, int,
+ * long)}, and handed out again after a delay. The callers don't wait for the delay, so they can compile other files
+ * in the meantime. A retried file is only handed out to an idle caller, and the caller receives no other units until
+ * it finishes the file, as the failure may be caused by the load of the parallel compilations. The callers need to
+ * report when they finish a unit, and the queue is not empty until all handed out units are finished, as their files
+ * may be added back.
+ */
+class CompilationWorkQueue {
+	private static final int MAX_BATCH_FILE_COUNT = 16;
+	/**
+	 * The memory estimate for the files that have no recorded memory usage if there are no other estimates either.
+	 */
+	private static final long DEFAULT_MEMORY_ESTIMATE = 256L * 1024 * 1024;
+	/**
+	 * The memory of the units that are compiled alone by the caller.
+	 */
+	private static final long EXCLUSIVE_MEMORY = Long.MAX_VALUE;
+
+	private final PriorityQueue<WorkEntry> queue = new PriorityQueue<>();
+	private final Map<FileCompilationConfiguration, PrecompiledHeaderJob> precompiledHeaderJobs = new HashMap<>();
+	private final PriorityQueue<PrecompiledHeaderJob> pendingPrecompiledHeaders = new PriorityQueue<>();
+	//the additional units handed out to the callers that are not yet started
+	private final Map<String, List<WorkEntry>> leases = new HashMap<>();
+	//the number of units that the callers can compile in parallel
+	private final Map<String, Integer> callerParallelism = new HashMap<>();
+	/**
+	 * The memory budget of a caller in bytes, or 0 if unlimited.
+	 */
+	private final long memoryBudget;
+	//the estimated memory of the units that the callers are compiling
+	private final Map<String, Long> callerMemory = new HashMap<>();
+	//the units that are handed out to the callers and not yet finished, mapped to their estimated memory
+	//keyed by the callers, as the same precompiled header creation unit may be handed out to multiple callers
+	private final Map<String, Map<CompilationWorkUnit, Long>> handedOutUnits = new HashMap<>();
+	//the retried files that are handed out after a delay
+	private final List<WorkEntry> delayedEntries = new ArrayList<>();
+	private int nextEntryIndex;
+	private boolean aborted;
+	//the previous states of the files, only sent to the callers that have an object file cache
+	private final Map<String, CompiledFileState> previousCompiledFiles;
+
+	public CompilationWorkQueue(Collection<FileCompilationConfiguration> files,
+			Map<String, CompiledFileState> prevcompiledfiles, Set<String> objectcacheexcludedfiles, boolean batch,
+			long memoryBudget) {
+		this.memoryBudget = memoryBudget;
+		this.previousCompiledFiles = prevcompiledfiles;
+		DurationEstimator estimator = new DurationEstimator(prevcompiledfiles);
+		MemoryEstimator memoryestimator = new MemoryEstimator(prevcompiledfiles, memoryBudget);
+		List<WorkEntry> entries = new ArrayList<>(files.size());
+		int idx = 0;
+		for (FileCompilationConfiguration config : files) {
+			String outfilename = config.getOutFileName();
+			CompiledFileState prevstate = ObjectUtils.getMapValue(prevcompiledfiles, outfilename);
+			CompilationWorkUnit unit = new CompilationWorkUnit(config, objectcacheexcludedfiles.contains(outfilename));
+			WorkEntry entry = new WorkEntry(unit, estimator.estimate(prevstate), memoryestimator.estimate(prevstate),
+					idx++);
+			FileCompilationConfiguration pchconfig = getPrecompiledHeaderConfiguration(config);
+			if (pchconfig != null) {
+				PrecompiledHeaderJob pchjob = precompiledHeaderJobs.computeIfAbsent(pchconfig,
+						PrecompiledHeaderJob::new);
+				pchjob.dependentDuration += entry.estimatedDuration;
+				entry.precompiledHeader = pchjob;
+			}
+			entries.add(entry);
+		}
+		nextEntryIndex = idx;
+		//the headers with the most dependent work are created first
+		pendingPrecompiledHeaders.addAll(precompiledHeaderJobs.values());
+		if (batch) {
+			addBatched(entries);
+		} else {
+			for (WorkEntry entry : entries) {
+				addEntry(entry);
+			}
+		}
+	}
+
+	private void addEntry(WorkEntry entry) {
+		PrecompiledHeaderJob pchjob = entry.precompiledHeader;
+		if (pchjob == null) {
+			queue.add(entry);
+		} else {
+			pchjob.entries.add(entry);
+		}
+	}
+
+	/**
+	 * Takes the units for the caller.
+	 * <p>
+	 * The method doesn't wait for the units that are not yet available.
+	 *
+	 * @param previousstates
+	 *            <code>true</code> if the caller looks up the files in the object file cache, and the units should
+	 *            contain the information about their previous compilation.
+	 * @return The units or an empty list if there are no units available for the caller currently.
+	 */
+	public synchronized List<CompilationWorkUnit> take(String calleridentity, int parallelism, int max,
+			boolean previousstates) {
+		List<CompilationWorkUnit> result = takeImpl(calleridentity, parallelism, max);
+		if (!previousstates || ObjectUtils.isNullOrEmpty(previousCompiledFiles)) {
+			return result;
+		}
+		List<CompilationWorkUnit> withstates = new ArrayList<>(result.size());
+		for (CompilationWorkUnit unit : result) {
+			withstates.add(withPreviousStates(unit));
+		}
+		return withstates;
+	}
+
+	private CompilationWorkUnit withPreviousStates(CompilationWorkUnit unit) {
+		if (unit.getRetryCount() > 0) {
+			//already missed the cache
+			return unit;
+		}
+		NavigableMap<String, PreviousFileState> states = new TreeMap<>();
+		for (FileCompilationConfiguration file : unit.getFiles()) {
+			String outfilename = file.getOutFileName();
+			if (unit.isObjectCacheExcluded(outfilename)) {
+				continue;
+			}
+			CompiledFileState prevstate = previousCompiledFiles.get(outfilename);
+			if (prevstate != null) {
+				states.put(outfilename, new PreviousFileState(prevstate));
+			}
+		}
+		if (states.isEmpty()) {
+			return unit;
+		}
+		return unit.withPreviousStates(states);
+	}
+
+	private List<CompilationWorkUnit> takeImpl(String calleridentity, int parallelism, int max) {
+		callerParallelism.put(calleridentity, Math.max(parallelism, 1));
+		if (aborted) {
+			return Collections.emptyList();
+		}
+		releaseDelayedEntries();
+		if (isCompilingAlone(calleridentity)) {
+			return Collections.emptyList();
+		}
+		PrecompiledHeaderJob pchjob = pendingPrecompiledHeaders.poll();
+		if (pchjob != null) {
+			pchjob.state = PrecompiledHeaderJob.STATE_CREATING;
+			pchjob.creators.add(calleridentity);
+			return Collections.singletonList(
+					handOut(calleridentity, CompilationWorkUnit.precompiledHeader(pchjob.configuration), 0));
+		}
+		long availablememory = getAvailableMemory(calleridentity);
+		WorkEntry first = poll(calleridentity, availablememory);
+		if (first != null) {
+			List<CompilationWorkUnit> result = new ArrayList<>();
+			result.add(first.unit);
+			if (memoryBudget > 0 || first.estimatedMemory == EXCLUSIVE_MEMORY) {
+				if (memoryBudget > 0) {
+					callerMemory.merge(calleridentity, first.estimatedMemory, Long::sum);
+				}
+				handOut(calleridentity, first.unit, first.estimatedMemory);
+				//no leases, as the leased units would hold the memory before they are started
+				//or the unit is compiled alone
+				return result;
+			}
+			handOut(calleridentity, first.unit, 0);
+			//the number of additional units, leave work for the other callers
+			int limit = Math.min(max - 1, getRemainingEntryCount() / (2 * callerParallelism.size()));
+			if (limit > 0) {
+				List<WorkEntry> lease = leases.computeIfAbsent(calleridentity, x -> new ArrayList<>());
+				for (WorkEntry entry; limit-- > 0 && (entry = poll(calleridentity, Long.MAX_VALUE)) != null;) {
+					result.add(handOut(calleridentity, entry.unit, 0));
+					lease.add(entry);
+				}
+			}
+			return result;
+		}
+		PrecompiledHeaderJob localcreationjob = getLocalCreationJob(calleridentity, availablememory);
+		if (localcreationjob != null) {
+			//the caller would be idle, let it create the precompiled header for itself
+			localcreationjob.creators.add(calleridentity);
+			return Collections.singletonList(
+					handOut(calleridentity, CompilationWorkUnit.precompiledHeader(localcreationjob.configuration), 0));
+		}
+		WorkEntry stolen = steal(calleridentity);
+		if (stolen != null) {
+			return Collections.singletonList(stolen.unit);
+		}
+		return Collections.emptyList();
+	}
+
+	/**
+	 * Waits until there may be units available for the callers.
+	 * <p>
+	 * Used by the duplication predicate of the callers, so they don't need to wait for the units while they are
+	 * running.
+	 *
+	 * @param timeoutmillis
+	 *            The maximum time to wait. The units may be available after the timeout, the caller is expected to
+	 *            check it with {@link #take(String, int, int, boolean)}.
+	 * @return <code>false</code> if the queue is aborted, or there are no more units to hand out.
+	 */
+	public synchronized boolean awaitWork(long timeoutmillis) {
+		long deadline = System.nanoTime() + timeoutmillis * 1_000_000;
+		while (!aborted && !isEmpty()) {
+			releaseDelayedEntries();
+			if (hasAvailableWork()) {
+				break;
+			}
+			long now = System.nanoTime();
+			long waitnanos = deadline - now;
+			for (WorkEntry entry : delayedEntries) {
+				waitnanos = Math.min(waitnanos, entry.notBeforeNanos - now);
+			}
+			long waitmillis = (waitnanos + 999_999) / 1_000_000;
+			if (deadline - now <= 0 || waitmillis <= 0) {
+				break;
+			}
+			try {
+				this.wait(waitmillis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		return !aborted && !isEmpty();
+	}
+
+	/**
+	 * Adds a file back to the queue after its compilation failed due to a transient error.
+	 * <p>
+	 * The file is handed out on its own after the given delay. It is compiled alone by the caller regardless of the
+	 * memory budget, as the failure may be caused by running out of memory or by the contention of the parallel
+	 * compilations.
+	 */
+	public synchronized void retry(FileCompilationConfiguration file, int retrycount, long delaymillis) {
+		if (aborted) {
+			return;
+		}
+		WorkEntry entry = new WorkEntry(CompilationWorkUnit.retry(file, retrycount), 0, EXCLUSIVE_MEMORY,
+				nextEntryIndex++);
+		FileCompilationConfiguration pchconfig = getPrecompiledHeaderConfiguration(file);
+		if (pchconfig != null) {
+			entry.precompiledHeader = precompiledHeaderJobs.get(pchconfig);
+		}
+		entry.notBeforeNanos = System.nanoTime() + delaymillis * 1_000_000;
+		delayedEntries.add(entry);
+		this.notifyAll();
+	}
+
+	private void releaseDelayedEntries() {
+		if (delayedEntries.isEmpty()) {
+			return;
+		}
+		long now = System.nanoTime();
+		for (Iterator<WorkEntry> it = delayedEntries.iterator(); it.hasNext();) {
+			WorkEntry entry = it.next();
+			if (entry.notBeforeNanos - now <= 0) {
+				it.remove();
+				addEntry(entry);
+			}
+		}
+	}
+
+	private CompilationWorkUnit handOut(String calleridentity, CompilationWorkUnit unit, long memory) {
+		handedOutUnits.computeIfAbsent(calleridentity, x -> new HashMap<>()).put(unit, memory);
+		return unit;
+	}
+
+	private boolean hasAvailableWork() {
+		if (callerParallelism.isEmpty()) {
+			return !pendingPrecompiledHeaders.isEmpty() || getRemainingEntryCount() > 0;
+		}
+		for (String caller : callerParallelism.keySet()) {
+			if (isCompilingAlone(caller)) {
+				continue;
+			}
+			if (!pendingPrecompiledHeaders.isEmpty()) {
+				return true;
+			}
+			//the units that don't fit in the memory of the caller are available when its running units finish
+			long availablememory = getAvailableMemory(caller);
+			if (peek(queue, availablememory) != null) {
+				return true;
+			}
+			for (PrecompiledHeaderJob job : precompiledHeaderJobs.values()) {
+				if (job.state == PrecompiledHeaderJob.STATE_CREATING) {
+					continue;
+				}
+				if ((job.isAvailableFor(caller) || job.canCreate(caller))
+						&& peek(job.entries, availablememory) != null) {
+					return true;
+				}
+			}
+		}
+		for (List<WorkEntry> lease : leases.values()) {
+			if (!lease.isEmpty()) {
+				//may be stolen
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Notifies the queue that the caller started to compile a unit that was handed out as an additional unit by
+	 * {@link #take(String, int, int, boolean)}.
+	 * <p>
+	 * The leased units that are not yet started may be stolen by other callers.
+	 *
+	 * @return <code>true</code> if the caller still owns the unit and should compile it, <code>false</code> if it was
+	 *             stolen by another caller.
+	 */
+	public synchronized boolean started(String calleridentity, CompilationWorkUnit unit) {
+		List<WorkEntry> lease = leases.get(calleridentity);
+		if (lease == null) {
+			return false;
+		}
+		for (Iterator<WorkEntry> it = lease.iterator(); it.hasNext();) {
+			if (it.next().unit.equals(unit)) {
+				it.remove();
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Notifies the queue that the caller finished compiling a unit, so its memory is available again.
+	 */
+	public synchronized void finished(String calleridentity, CompilationWorkUnit unit) {
+		Map<CompilationWorkUnit, Long> units = handedOutUnits.get(calleridentity);
+		if (units == null) {
+			return;
+		}
+		Long memory = units.remove(unit);
+		if (memory == null) {
+			return;
+		}
+		if (units.isEmpty()) {
+			handedOutUnits.remove(calleridentity);
+		}
+		if (memory > 0) {
+			callerMemory.computeIfPresent(calleridentity, (k, v) -> v - memory <= 0 ? null : v - memory);
+		}
+		this.notifyAll();
+	}
+
+	private long getAvailableMemory(String calleridentity) {
+		if (!handedOutUnits.containsKey(calleridentity)) {
+			//the estimates are not greater than the budget, so an idle caller can take any unit
+			//including the ones that are compiled alone
+			return Long.MAX_VALUE;
+		}
+		if (memoryBudget <= 0) {
+			return EXCLUSIVE_MEMORY - 1;
+		}
+		Long used = callerMemory.get(calleridentity);
+		if (used == null) {
+			return memoryBudget;
+		}
+		return memoryBudget - used;
+	}
+
+	private boolean isCompilingAlone(String calleridentity) {
+		Map<CompilationWorkUnit, Long> units = handedOutUnits.get(calleridentity);
+		return units != null && units.containsValue(EXCLUSIVE_MEMORY);
+	}
+
+	private WorkEntry poll(String calleridentity, long availablememory) {
+		WorkEntry best = peek(queue, availablememory);
+		PrecompiledHeaderJob bestpchjob = null;
+		for (PrecompiledHeaderJob job : precompiledHeaderJobs.values()) {
+			if (job.state == PrecompiledHeaderJob.STATE_CREATING || !job.isAvailableFor(calleridentity)) {
+				continue;
+			}
+			WorkEntry head = peek(job.entries, availablememory);
+			if (head != null && (best == null || head.compareTo(best) < 0)) {
+				best = head;
+				bestpchjob = job;
+			}
+		}
+		if (best == null) {
+			return null;
+		}
+		PriorityQueue<WorkEntry> entries = bestpchjob == null ? queue : bestpchjob.entries;
+		remove(entries, best);
+		return batch(entries, best, availablememory);
+	}
+
+	/**
+	 * Gets the precompiled header with the longest available file that the caller could create for itself.
+	 */
+	private PrecompiledHeaderJob getLocalCreationJob(String calleridentity, long availablememory) {
+		PrecompiledHeaderJob result = null;
+		WorkEntry resulthead = null;
+		for (PrecompiledHeaderJob job : precompiledHeaderJobs.values()) {
+			if (job.state != PrecompiledHeaderJob.STATE_CREATED || !job.canCreate(calleridentity)) {
+				continue;
+			}
+			WorkEntry head = peek(job.entries, availablememory);
+			if (head != null && (resulthead == null || head.compareTo(resulthead) < 0)) {
+				result = job;
+				resulthead = head;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Groups the polled entry with the other files of its batch group that are in the same queue.
+	 * <p>
+	 * The size of the batch is based on the remaining files of the group and the parallelism of the callers, so the
+	 * group is split into enough units to compile them in parallel.
+	 */
+	private WorkEntry batch(PriorityQueue<WorkEntry> entries, WorkEntry first, long availablememory) {
+		BatchGroup group = first.batchGroup;
+		if (group == null) {
+			return first;
+		}
+		int parallelism = 0;
+		for (Integer p : callerParallelism.values()) {
+			parallelism += p;
+		}
+		int mincount = parallelism * 2;
+		int batchsize = Math.min(MAX_BATCH_FILE_COUNT, (group.remaining + mincount - 1) / mincount);
+		if (batchsize <= 1) {
+			--group.remaining;
+			return first;
+		}
+		List<WorkEntry> candidates = new ArrayList<>();
+		for (WorkEntry entry : entries) {
+			if (entry.batchGroup == group && entry.estimatedMemory <= availablememory) {
+				candidates.add(entry);
+			}
+		}
+		//the longest files are batched first, the same way as they would be handed out
+		candidates.sort(null);
+		BatchBuilder builder = new BatchBuilder();
+		builder.add(first);
+		for (WorkEntry entry : candidates) {
+			if (builder.entries.size() >= batchsize) {
+				break;
+			}
+			if (builder.canAdd(entry)) {
+				builder.add(entry);
+				remove(entries, entry);
+			}
+		}
+		group.remaining -= builder.entries.size();
+		return builder.build();
+	}
+
+	/**
+	 * Gets the longest entry that fits in the available memory.
+	 */
+	private static WorkEntry peek(PriorityQueue<WorkEntry> entries, long availablememory) {
+		WorkEntry head = entries.peek();
+		if (head == null || head.estimatedMemory <= availablememory) {
+			return head;
+		}
+		WorkEntry result = null;
+		for (WorkEntry entry : entries) {
+			if (entry.estimatedMemory <= availablememory && (result == null || entry.compareTo(result) < 0)) {
+				result = entry;
+			}
+		}
+		return result;
+	}
+
+	private static void remove(PriorityQueue<WorkEntry> entries, WorkEntry entry) {
+		if (entries.peek() == entry) {
+			entries.poll();
+		} else {
+			entries.remove(entry);
+		}
+	}
+
+	private WorkEntry steal(String calleridentity) {
+		Entry<String, List<WorkEntry>> victim = null;
+		for (Entry<String, List<WorkEntry>> entry : leases.entrySet()) {
+			List<WorkEntry> lease = entry.getValue();
+			if (entry.getKey().equals(calleridentity) || lease.isEmpty()) {
+				continue;
+			}
+			if (victim == null || lease.size() > victim.getValue().size()) {
+				victim = entry;
+			}
+		}
+		if (victim == null) {
+			return null;
+		}
+		List<WorkEntry> lease = victim.getValue();
+		//the last one would be started the latest by the victim
+		//the units in the lease are not started, the victim skips the unit when it doesn't find it in its lease
+		WorkEntry result = lease.remove(lease.size() - 1);
+		//the unit is finished by the caller that stole it
+		Map<CompilationWorkUnit, Long> victimunits = handedOutUnits.get(victim.getKey());
+		if (victimunits != null && victimunits.remove(result.unit) != null && victimunits.isEmpty()) {
+			handedOutUnits.remove(victim.getKey());
+		}
+		handOut(calleridentity, result.unit, 0);
+		return result;
+	}
+
+	private int getRemainingEntryCount() {
+		int result = queue.size();
+		for (PrecompiledHeaderJob job : precompiledHeaderJobs.values()) {
+			result += job.entries.size();
+		}
+		return result;
+	}
+
+	public synchronized void precompiledHeaderFinished(FileCompilationConfiguration pchconfig,
+			String calleridentity, boolean successful) {
+		PrecompiledHeaderJob pchjob = precompiledHeaderJobs.get(pchconfig);
+		if (pchjob == null) {
+			return;
+		}
+		pchjob.creators.remove(calleridentity);
+		if (successful) {
+			pchjob.holders.add(calleridentity);
+		} else {
+			//don't let the caller create it again
+			pchjob.failedCreators.add(calleridentity);
+		}
+		if (pchjob.state == PrecompiledHeaderJob.STATE_CREATING) {
+			//if the creation failed, the dependent files are still handed out so they report the failure
+			pchjob.state = successful ? PrecompiledHeaderJob.STATE_CREATED : PrecompiledHeaderJob.STATE_FAILED;
+		}
+		this.notifyAll();
+	}
+
+	public synchronized void abort() {
+		aborted = true;
+		this.notifyAll();
+	}
+
+	public synchronized boolean isEmpty() {
+		if (!pendingPrecompiledHeaders.isEmpty() || getRemainingEntryCount() > 0 || !delayedEntries.isEmpty()) {
+			return false;
+		}
+		if (!handedOutUnits.isEmpty()) {
+			//the files of the running units may be retried
+			return false;
+		}
+		//the leased units need to be started or stolen
+		for (List<WorkEntry> lease : leases.values()) {
+			if (!lease.isEmpty()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Gets the configuration of the precompiled header creation for the given source file.
+	 *
+	 * @return The configuration or <code>null</code> if the file doesn't use a precompiled header.
+	 */
+	public static FileCompilationConfiguration getPrecompiledHeaderConfiguration(
+			FileCompilationConfiguration config) {
+		String pchoutfilename = config.getPrecompiledHeaderOutFileName();
+		if (pchoutfilename == null) {
+			return null;
+		}
+		return new FileCompilationConfiguration(pchoutfilename,
+				config.getProperties().withFileLocation(config.getPrecompiledHeaderFileLocation()));
+	}
+
+	private void addBatched(List<WorkEntry> entries) {
+		Map<BatchKey, BatchGroup> groups = new HashMap<>();
+		for (WorkEntry entry : entries) {
+			groups.computeIfAbsent(new BatchKey(entry.getFile()), x -> new BatchGroup()).add(entry);
+		}
+		for (WorkEntry entry : entries) {
+			if (entry.batchGroup.remaining == 1) {
+				//nothing to batch with
+				entry.batchGroup = null;
+			}
+			addEntry(entry);
+		}
+	}
+
+	/**
+	 * Gets the name of the object file that cl.exe generates for a source file if the output is specified as a
+	 * directory.
+	 */
+	public static String getDefaultObjectFileName(String sourcefilename) {
+		int dotidx = sourcefilename.lastIndexOf('.');
+		if (dotidx < 0) {
+			return sourcefilename + ".obj";
+		}
+		return sourcefilename.substring(0, dotidx) + ".obj";
+	}
+
+	private static final class BatchBuilder {
+		protected final List<WorkEntry> entries = new ArrayList<>();
+		//the object file names are case insensitive
+		protected final Set<String> objectNames = new TreeSet<>(String::compareToIgnoreCase);
+
+		public boolean canAdd(WorkEntry entry) {
+			if (entries.size() >= MAX_BATCH_FILE_COUNT) {
+				return false;
+			}
+			return !objectNames.contains(getObjectName(entry));
+		}
+
+		public void add(WorkEntry entry) {
+			entries.add(entry);
+			objectNames.add(getObjectName(entry));
+		}
+
+		public WorkEntry build() {
+			if (entries.size() == 1) {
+				return entries.get(0);
+			}
+			List<FileCompilationConfiguration> files = new ArrayList<>(entries.size());
+			NavigableSet<String> objectcacheexcludedfiles = new TreeSet<>();
+			long duration = 0;
+			//the files are compiled one after the other by the same process
+			long memory = 0;
+			int index = Integer.MAX_VALUE;
+			for (WorkEntry e : entries) {
+				FileCompilationConfiguration file = e.getFile();
+				files.add(file);
+				if (e.unit.isObjectCacheExcluded(file.getOutFileName())) {
+					objectcacheexcludedfiles.add(file.getOutFileName());
+				}
+				duration += e.estimatedDuration;
+				memory = Math.max(memory, e.estimatedMemory);
+				index = Math.min(index, e.index);
+			}
+			WorkEntry result = new WorkEntry(new CompilationWorkUnit(files, objectcacheexcludedfiles), duration, memory,
+					index);
+			//the files in the batch use the same precompiled header
+			result.precompiledHeader = entries.get(0).precompiledHeader;
+			return result;
+		}
+
+		private static String getObjectName(WorkEntry entry) {
+			String fname = MSVCUtils.getFileName(entry.getFile().getProperties().getFileLocation());
+			return getDefaultObjectFileName(fname).toLowerCase(Locale.ENGLISH);
+		}
+	}
+
+	/**
+	 * The files that can be compiled in the same batch.
+	 */
+	private static final class BatchGroup {
+		//the number of files in the group that are not yet handed out
+		protected int remaining;
+
+		public void add(WorkEntry entry) {
+			entry.batchGroup = this;
+			++remaining;
+		}
+	}
+
+	private static final class BatchKey {
+		private final FileCompilationProperties properties;
+		private final FileLocation precompiledHeaderFileLocation;
+		private final String precompiledHeaderOutFileName;
+		private final boolean precompiledHeaderForceInclude;
+
+		public BatchKey(FileCompilationConfiguration config) {
+			this.properties = config.getProperties().withFileLocation(null);
+			this.precompiledHeaderFileLocation = config.getPrecompiledHeaderFileLocation();
+			this.precompiledHeaderOutFileName = config.getPrecompiledHeaderOutFileName();
+			this.precompiledHeaderForceInclude = config.isPrecompiledHeaderForceInclude();
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(properties.getLanguage(), properties.getMacroDefinitions(),
+					precompiledHeaderOutFileName);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (obj == null)
+				return false;
+			if (getClass() != obj.getClass())
+				return false;
+			BatchKey other = (BatchKey) obj;
+			return precompiledHeaderForceInclude == other.precompiledHeaderForceInclude
+					&& Objects.equals(precompiledHeaderOutFileName, other.precompiledHeaderOutFileName)
+					&& Objects.equals(precompiledHeaderFileLocation, other.precompiledHeaderFileLocation)
+					&& properties.equals(other.properties);
+		}
+	}
+
+	private static final class DurationEstimator {
+		private long averageDuration;
+		private double averageDurationPerInclude;
+
+		public DurationEstimator(Map<String, CompiledFileState> prevcompiledfiles) {
+			if (ObjectUtils.isNullOrEmpty(prevcompiledfiles)) {
+				return;
+			}
+			long durationsum = 0;
+			long includesum = 0;
+			int count = 0;
+			for (CompiledFileState state : prevcompiledfiles.values()) {
+				long duration = state.getCompilationDuration();
+				if (duration <= 0) {
+					continue;
+				}
+				durationsum += duration;
+				//+1 for the source file itself
+				includesum += getIncludeCount(state) + 1;
+				++count;
+			}
+			if (count > 0) {
+				averageDuration = durationsum / count;
+				averageDurationPerInclude = (double) durationsum / includesum;
+			}
+		}
+
+		public long estimate(CompiledFileState prevstate) {
+			if (prevstate == null) {
+				//no information about the file, the average is the best guess
+				return averageDuration;
+			}
+			long duration = prevstate.getCompilationDuration();
+			if (duration > 0) {
+				return duration;
+			}
+			return (long) (averageDurationPerInclude * (getIncludeCount(prevstate) + 1));
+		}
+
+		private static int getIncludeCount(CompiledFileState state) {
+			return state.getIncludeCount();
+		}
+	}
+
+	private static final class MemoryEstimator {
+		private final long memoryBudget;
+		private long averageMemory = DEFAULT_MEMORY_ESTIMATE;
+
+		public MemoryEstimator(Map<String, CompiledFileState> prevcompiledfiles, long memoryBudget) {
+			this.memoryBudget = memoryBudget;
+			if (ObjectUtils.isNullOrEmpty(prevcompiledfiles)) {
+				return;
+			}
+			long memorysum = 0;
+			int count = 0;
+			for (CompiledFileState state : prevcompiledfiles.values()) {
+				long memory = state.getCompilationMemory();
+				if (memory <= 0 || memory == Long.MAX_VALUE) {
+					continue;
+				}
+				memorysum += memory;
+				++count;
+			}
+			if (count > 0) {
+				averageMemory = memorysum / count;
+			}
+		}
+
+		public long estimate(CompiledFileState prevstate) {
+			if (memoryBudget <= 0) {
+				return 0;
+			}
+			long memory = prevstate == null ? 0 : prevstate.getCompilationMemory();
+			if (memory <= 0) {
+				memory = averageMemory;
+			}
+			//a file that needs more than the budget is compiled alone
+			return Math.min(memory, memoryBudget);
+		}
+	}
+
+	private static final class PrecompiledHeaderJob implements Comparable<PrecompiledHeaderJob> {
+		protected static final int STATE_PENDING = 0;
+		protected static final int STATE_CREATING = 1;
+		protected static final int STATE_CREATED = 2;
+		protected static final int STATE_FAILED = 3;
+
+		protected final FileCompilationConfiguration configuration;
+		protected int state = STATE_PENDING;
+		protected long dependentDuration;
+		protected final PriorityQueue<WorkEntry> entries = new PriorityQueue<>();
+		//the callers that hold the precompiled header
+		protected final Set<String> holders = new HashSet<>();
+		//the callers that are creating the precompiled header
+		protected final Set<String> creators = new HashSet<>();
+		protected final Set<String> failedCreators = new HashSet<>();
+
+		public PrecompiledHeaderJob(FileCompilationConfiguration configuration) {
+			this.configuration = configuration;
+		}
+
+		public boolean isAvailableFor(String calleridentity) {
+			//if the creation failed, the files can be handed out to anyone to report the failure
+			return state == STATE_FAILED || holders.contains(calleridentity);
+		}
+
+		public boolean canCreate(String calleridentity) {
+			return !holders.contains(calleridentity) && !creators.contains(calleridentity)
+					&& !failedCreators.contains(calleridentity);
+		}
+
+		@Override
+		public int compareTo(PrecompiledHeaderJob o) {
+			return Long.compare(o.dependentDuration, this.dependentDuration);
+		}
+	}
+
+	private static final class WorkEntry implements Comparable<WorkEntry> {
+		protected final CompilationWorkUnit unit;
+		protected final long estimatedDuration;
+		protected final long estimatedMemory;
+		protected final int index;
+		protected PrecompiledHeaderJob precompiledHeader;
+		protected BatchGroup batchGroup;
+		//the time after which a retried entry can be handed out
+		protected long notBeforeNanos;
+
+		public WorkEntry(CompilationWorkUnit unit, long estimatedDuration, long estimatedMemory, int index) {
+			this.unit = unit;
+			this.estimatedDuration = estimatedDuration;
+			this.estimatedMemory = estimatedMemory;
+			this.index = index;
+		}
+
+		public FileCompilationConfiguration getFile() {
+			return unit.getFiles().get(0);
+		}
+
+		@Override
+		public int compareTo(WorkEntry o) {
+			//longest first, keep the input order for equal estimates
+			int cmp = Long.compare(o.estimatedDuration, this.estimatedDuration);
+			if (cmp != 0) {
+				return cmp;
+			}
+			return Integer.compare(this.index, o.index);
+		}
+	}
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2020 Bence Sipka
+ *
+ * This program is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package saker.msvc.impl.ccompile;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.Collections;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.Objects;
+
+import saker.build.file.path.SakerPath;
+import saker.build.thirdparty.saker.util.ImmutableUtils;
+import saker.build.thirdparty.saker.util.ObjectUtils;
+import saker.build.thirdparty.saker.util.io.SerialUtils;
+import saker.msvc.impl.ccompile.CompilerState.CompiledFileState;
+
+/**
+ * A unit of work that is handed out to the compiler inner tasks.
+ * <p>
+ * If the unit contains multiple files, they all have the same compilation properties except the file location, and
+ * they are compiled with a single compiler invocation.
+ * <p>
+ * A unit may also be a precompiled header creation job, in which case it contains no files.
+ * <p>
+ * A file that failed to compile due to a transient failure is handed out again in a unit on its own, with the number
+ * of the previous attempts.
+ * <p>
+ * If the caller has an object file cache, the units it takes contain the information about the previous compilation
+ * of the files that the cache lookup needs, so the callers don't need to query them separately. Only the needed fields
+ * are transferred, not the whole previous states. The retried files have no previous states, as they already missed
+ * the cache. The files that may include a newly added header instead of a previously included one are not
+ * looked up in the cache, as the cache entries are only keyed by the contents of the previously included headers.
+ */
+public class CompilationWorkUnit implements Externalizable {
+	private static final long serialVersionUID = 1L;
+
+	private List<FileCompilationConfiguration> files;
+	private FileCompilationConfiguration precompiledHeader;
+	private int retryCount;
+	//the previous states mapped to the output file names
+	private NavigableMap<String, PreviousFileState> previousStates = Collections.emptyNavigableMap();
+	//the output file names of the files that shouldn't be looked up in the object file cache
+	private NavigableSet<String> objectCacheExcludedFiles = Collections.emptyNavigableSet();
+
+	/**
+	 * For {@link Externalizable}.
+	 */
+	public CompilationWorkUnit() {
+	}
+
+	public CompilationWorkUnit(FileCompilationConfiguration file) {
+		this.files = Collections.singletonList(file);
+	}
+
+	public CompilationWorkUnit(FileCompilationConfiguration file, boolean objectcacheexcluded) {
+		this.files = Collections.singletonList(file);
+		if (objectcacheexcluded) {
+			this.objectCacheExcludedFiles = ImmutableUtils.singletonNavigableSet(file.getOutFileName());
+		}
+	}
+
+	public CompilationWorkUnit(List<FileCompilationConfiguration> files) {
+		this.files = ImmutableUtils.makeImmutableList(files);
+	}
+
+	public CompilationWorkUnit(List<FileCompilationConfiguration> files, NavigableSet<String> objectcacheexcludedfiles) {
+		this.files = ImmutableUtils.makeImmutableList(files);
+		this.objectCacheExcludedFiles = ImmutableUtils.makeImmutableNavigableSet(objectcacheexcludedfiles);
+	}
+
+	public static CompilationWorkUnit precompiledHeader(FileCompilationConfiguration pchconfig) {
+		CompilationWorkUnit result = new CompilationWorkUnit(Collections.emptyList());
+		result.precompiledHeader = pchconfig;
+		return result;
+	}
+
+	public static CompilationWorkUnit retry(FileCompilationConfiguration file, int retrycount) {
+		CompilationWorkUnit result = new CompilationWorkUnit(file);
+		result.retryCount = retrycount;
+		return result;
+	}
+
+	/**
+	 * Creates a copy of this unit that contains the given previous states.
+	 * <p>
+	 * The previous states are not part of the equality of the units.
+	 */
+	public CompilationWorkUnit withPreviousStates(NavigableMap<String, PreviousFileState> previousstates) {
+		CompilationWorkUnit result = new CompilationWorkUnit();
+		result.files = this.files;
+		result.precompiledHeader = this.precompiledHeader;
+		result.retryCount = this.retryCount;
+		result.previousStates = ImmutableUtils.makeImmutableNavigableMap(previousstates);
+		result.objectCacheExcludedFiles = this.objectCacheExcludedFiles;
+		return result;
+	}
+
+	/**
+	 * Gets this unit without the previous states, so they are not transferred when the unit is sent back to the
+	 * coordinator.
+	 */
+	public CompilationWorkUnit withoutPreviousStates() {
+		if (previousStates.isEmpty()) {
+			return this;
+		}
+		return withPreviousStates(Collections.emptyNavigableMap());
+	}
+
+	public List<FileCompilationConfiguration> getFiles() {
+		return files;
+	}
+
+	/**
+	 * Gets the precompiled header that should be created if this is a precompiled header job.
+	 */
+	public FileCompilationConfiguration getPrecompiledHeader() {
+		return precompiledHeader;
+	}
+
+	/**
+	 * Gets the number of times the compilation of the file in this unit was already retried.
+	 */
+	public int getRetryCount() {
+		return retryCount;
+	}
+
+	/**
+	 * Gets the state of a file in this unit from the previous compilation.
+	 *
+	 * @return The state or <code>null</code> if the file wasn't compiled previously, or the states were not requested
+	 *             by the caller.
+	 */
+	public PreviousFileState getPreviousState(String outfilename) {
+		return ObjectUtils.getMapValue(previousStates, outfilename);
+	}
+
+	/**
+	 * Checks if the object file cache shouldn't be used for the given file.
+	 */
+	public boolean isObjectCacheExcluded(String outfilename) {
+		return objectCacheExcludedFiles.contains(outfilename);
+	}
+
+	@Override
+	public void writeExternal(ObjectOutput out) throws IOException {
+		SerialUtils.writeExternalCollection(out, files);
+		out.writeObject(precompiledHeader);
+		out.writeInt(retryCount);
+		SerialUtils.writeExternalMap(out, previousStates);
+		SerialUtils.writeExternalCollection(out, objectCacheExcludedFiles);
+	}
+
+	@Override
+	public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+		files = SerialUtils.readExternalImmutableList(in);
+		precompiledHeader = (FileCompilationConfiguration) in.readObject();
+		retryCount = in.readInt();
+		previousStates = SerialUtils.readExternalSortedImmutableNavigableMap(in);
+		objectCacheExcludedFiles = SerialUtils.readExternalSortedImmutableNavigableSet(in);
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(files, precompiledHeader, retryCount);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null)
+			return false;
+		if (getClass() != obj.getClass())
+			return false;
+		CompilationWorkUnit other = (CompilationWorkUnit) obj;
+		return retryCount == other.retryCount && Objects.equals(files, other.files)
+				&& Objects.equals(precompiledHeader, other.precompiledHeader);
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "[" + (precompiledHeader != null ? "pch=" + precompiledHeader : files)
+				+ "]";
+	}
+
+	/**
+	 * The information about the previous compilation of a file that is needed to look it up in the object file cache.
+	 */
+	public static final class PreviousFileState implements Externalizable {
+		private static final long serialVersionUID = 1L;
+
+		private NavigableSet<SakerPath> includes;
+		private long compilationDuration;
+		private long compilationMemory;
+
+		/**
+		 * For {@link Externalizable}.
+		 */
+		public PreviousFileState() {
+		}
+
+		public PreviousFileState(CompiledFileState state) {
+			this.includes = state.getIncludes();
+			this.compilationDuration = state.getCompilationDuration();
+			this.compilationMemory = state.getCompilationMemory();
+		}
+
+		/**
+		 * @see CompiledFileState#getIncludes()
+		 */
+		public NavigableSet<SakerPath> getIncludes() {
+			return includes;
+		}
+
+		/**
+		 * @see CompiledFileState#getCompilationDuration()
+		 */
+		public long getCompilationDuration() {
+			return compilationDuration;
+		}
+
+		/**
+		 * @see CompiledFileState#getCompilationMemory()
+		 */
+		public long getCompilationMemory() {
+			return compilationMemory;
+		}
+
+		@Override
+		public void writeExternal(ObjectOutput out) throws IOException {
+			SerialUtils.writeExternalCollection(out, includes);
+			out.writeLong(compilationDuration);
+			out.writeLong(compilationMemory);
+		}
+
+		@Override
+		public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+			includes = SerialUtils.readExternalSortedImmutableNavigableSet(in);
+			compilationDuration = in.readLong();
+			compilationMemory = in.readLong();
+		}
+	}
+}
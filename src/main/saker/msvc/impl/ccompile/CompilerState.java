@@ -15,30 +15,70 @@
  */
 package saker.msvc.impl.ccompile;
 
+import java.io.BufferedInputStream;
 import java.io.Externalizable;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidObjectException;
 import java.io.ObjectInput;
+import java.io.ObjectInputStream;
 import java.io.ObjectOutput;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.NavigableMap;
 import java.util.NavigableSet;
+import java.util.Objects;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.UUID;
+import java.util.function.Function;
 
 import saker.build.file.content.ContentDescriptor;
 import saker.build.file.path.SakerPath;
 import saker.build.file.provider.RootFileProviderKey;
 import saker.build.task.EnvironmentSelectionResult;
+import saker.build.thirdparty.saker.util.ImmutableUtils;
 import saker.build.thirdparty.saker.util.ObjectUtils;
 import saker.build.thirdparty.saker.util.io.SerialUtils;
+import saker.build.thirdparty.saker.util.io.UnsyncByteArrayOutputStream;
+import saker.msvc.impl.ccompile.StateSerialUtils.ObjectReadTable;
+import saker.msvc.impl.ccompile.StateSerialUtils.ObjectWriteTable;
 import saker.sdk.support.api.SDKDescription;
 import saker.sdk.support.api.SDKSupportUtils;
 
 public class CompilerState implements Externalizable {
 	private static final long serialVersionUID = 1L;
 
+	private static final int[] EMPTY_INT_ARRAY = {};
+
+	/**
+	 * Identifies the compact binary format of the state. (ASCII "MSCS")
+	 */
+	private static final int FORMAT_MAGIC = 0x4d534353;
+	/**
+	 * The version of the compact binary format. States with different versions are not read.
+	 */
+	private static final int FORMAT_VERSION = 4;
+
+	private static final int STORAGE_FULL = 0;
+	private static final int STORAGE_DELTA = 1;
+	/**
+	 * The states with less compiled files are always persisted as a whole.
+	 */
+	private static final int MIN_BASE_SNAPSHOT_FILE_COUNT = 256;
+	/**
+	 * A new base snapshot is written if more than 1/4 of the compiled files changed since the last snapshot.
+	 */
+	private static final int MAX_DELTA_RATIO_DIVISOR = 4;
+
 	public static class PrecompiledHeaderState implements Externalizable {
 		private static final long serialVersionUID = 1L;
 
@@ -46,7 +86,8 @@ public class CompilerState implements Externalizable {
 		private ContentDescriptor outputContents;
 		private FileCompilationProperties compilationProperties;
 
-		private NavigableSet<SakerPath> includes;
+		private IncludePathTable pathTable;
+		private int[] includes;
 		private NavigableSet<CompilerDiagnostic> diagnostics;
 
 		/**
@@ -61,7 +102,8 @@ public class CompilerState implements Externalizable {
 			this.inputContents = inputContents;
 			this.outputContents = outputContents;
 			this.compilationProperties = compilationProperties;
-			this.includes = includes;
+			this.pathTable = new IncludePathTable();
+			this.includes = pathTable.intern(includes);
 			this.diagnostics = diagnostics;
 		}
 
@@ -82,25 +124,52 @@ public class CompilerState implements Externalizable {
 		}
 
 		public NavigableSet<SakerPath> getIncludes() {
-			return includes;
+			return pathTable.getPaths(includes);
+		}
+
+		void internIncludes(IncludePathTable table) {
+			includes = table.intern(pathTable, includes);
+			pathTable = table;
 		}
 
 		@Override
 		public void writeExternal(ObjectOutput out) throws IOException {
-			out.writeObject(inputContents);
-			out.writeObject(outputContents);
-			out.writeObject(compilationProperties);
-			SerialUtils.writeExternalCollection(out, diagnostics);
-			SerialUtils.writeExternalCollection(out, includes);
+			writeFields(out, new ObjectWriteTable());
+			SerialUtils.writeExternalCollection(out, getIncludes());
 		}
 
 		@Override
 		public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
-			inputContents = (ContentDescriptor) in.readObject();
-			outputContents = (ContentDescriptor) in.readObject();
+			readFields(in, new ObjectReadTable());
+			pathTable = new IncludePathTable();
+			includes = pathTable.intern(SerialUtils.<SakerPath>readExternalSortedImmutableNavigableSet(in));
+		}
+
+		void writeExternal(ObjectOutput out, IncludePathTable table, ObjectWriteTable objects) throws IOException {
+			internIncludes(table);
+			writeFields(out, objects);
+			StateSerialUtils.writeAscendingInts(out, includes);
+		}
+
+		void readExternal(ObjectInput in, IncludePathTable table, ObjectReadTable objects)
+				throws IOException, ClassNotFoundException {
+			readFields(in, objects);
+			pathTable = table;
+			includes = StateSerialUtils.readAscendingInts(in);
+		}
+
+		private void writeFields(ObjectOutput out, ObjectWriteTable objects) throws IOException {
+			objects.write(out, inputContents);
+			objects.write(out, outputContents);
+			out.writeObject(compilationProperties);
+			objects.writeCollection(out, diagnostics);
+		}
+
+		private void readFields(ObjectInput in, ObjectReadTable objects) throws IOException, ClassNotFoundException {
+			inputContents = objects.read(in);
+			outputContents = objects.read(in);
 			compilationProperties = (FileCompilationProperties) in.readObject();
-			diagnostics = SerialUtils.readExternalSortedImmutableNavigableSet(in);
-			includes = SerialUtils.readExternalSortedImmutableNavigableSet(in);
+			diagnostics = objects.readSortedSet(in);
 		}
 
 	}
@@ -114,15 +183,33 @@ public class CompilerState implements Externalizable {
 		private ContentDescriptor outputObjectContents;
 		private NavigableSet<CompilerDiagnostic> diagnostics;
 		/**
-		 * Absolute execution paths of referenced include files.
+		 * The table that the include indices reference.
+		 */
+		private IncludePathTable pathTable;
+		/**
+		 * Indices of the absolute execution paths of referenced include files.
 		 */
-		private NavigableSet<SakerPath> includes;
+		private int[] includes;
 		/**
-		 * Absolute execution paths based on the include failure error messages and include directories
+		 * Indices of the absolute execution paths based on the include failure error messages and include directories
 		 */
-		private NavigableSet<SakerPath> failedIncludes;
+		private int[] failedIncludes;
 
 		private boolean successful;
+		/**
+		 * The measured wall time of the compiler process in milliseconds. Non-positive if unknown.
+		 */
+		private long compilationDuration;
+		/**
+		 * The estimated peak memory usage of the compiler process in bytes. Non-positive if unknown.
+		 */
+		private long compilationMemory;
+		/**
+		 * The reverse index that the include indices are resolved from if the state was read from a stream. Cleared
+		 * when the indices are resolved.
+		 */
+		private volatile IncludeDependentsIndex dependentsIndex;
+		private int dependentsOrdinal;
 
 		/**
 		 * For {@link Externalizable}.
@@ -131,9 +218,10 @@ public class CompilerState implements Externalizable {
 		}
 
 		public CompiledFileState(ContentDescriptor inputContents,
-				FileCompilationConfiguration compilationConfiguration) {
+				FileCompilationConfiguration compilationConfiguration, IncludePathTable pathTable) {
 			this.inputContents = inputContents;
 			this.compilationConfiguration = compilationConfiguration;
+			this.pathTable = pathTable;
 		}
 
 		public void setSuccessful(boolean successful) {
@@ -144,6 +232,22 @@ public class CompilerState implements Externalizable {
 			return successful;
 		}
 
+		public void setCompilationDuration(long compilationDuration) {
+			this.compilationDuration = compilationDuration;
+		}
+
+		public long getCompilationDuration() {
+			return compilationDuration;
+		}
+
+		public void setCompilationMemory(long compilationMemory) {
+			this.compilationMemory = compilationMemory;
+		}
+
+		public long getCompilationMemory() {
+			return compilationMemory;
+		}
+
 		public SakerPath getOutputObjectPath() {
 			return outputObjectPath;
 		}
@@ -165,11 +269,18 @@ public class CompilerState implements Externalizable {
 		}
 
 		public NavigableSet<SakerPath> getIncludes() {
-			return includes;
+			resolveIncludeIndices();
+			return pathTable.getPaths(includes);
+		}
+
+		public int getIncludeCount() {
+			resolveIncludeIndices();
+			return includes == null ? 0 : includes.length;
 		}
 
 		public NavigableSet<SakerPath> getFailedIncludes() {
-			return failedIncludes;
+			resolveIncludeIndices();
+			return pathTable.getPaths(failedIncludes);
 		}
 
 		public void setDiagnostics(NavigableSet<CompilerDiagnostic> diagnostics) {
@@ -186,35 +297,172 @@ public class CompilerState implements Externalizable {
 		}
 
 		public void setIncludes(NavigableSet<SakerPath> includes) {
-			this.includes = includes;
+			resolveIncludeIndices();
+			this.includes = pathTable.intern(includes);
 		}
 
 		public void setFailedIncludes(NavigableSet<SakerPath> failedIncludes) {
-			this.failedIncludes = failedIncludes;
+			resolveIncludeIndices();
+			this.failedIncludes = pathTable.intern(failedIncludes);
+		}
+
+		void internIncludes(IncludePathTable table) {
+			resolveIncludeIndices();
+			includes = table.intern(pathTable, includes);
+			failedIncludes = table.intern(pathTable, failedIncludes);
+			pathTable = table;
 		}
 
 		@Override
 		public void writeExternal(ObjectOutput out) throws IOException {
-			out.writeObject(inputContents);
+			writeFields(out, new ObjectWriteTable());
+			SerialUtils.writeExternalCollection(out, getIncludes());
+			SerialUtils.writeExternalCollection(out, getFailedIncludes());
+		}
+
+		@Override
+		public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+			readFields(in, new ObjectReadTable());
+			pathTable = new IncludePathTable();
+			includes = pathTable.intern(SerialUtils.<SakerPath>readExternalSortedImmutableNavigableSet(in));
+			failedIncludes = pathTable.intern(SerialUtils.<SakerPath>readExternalSortedImmutableNavigableSet(in));
+		}
+
+		/**
+		 * Writes the state without the includes. They are written by the {@link CompilerState} as a reverse index.
+		 */
+		void writeExternal(ObjectOutput out, IncludePathTable table, ObjectWriteTable objects) throws IOException {
+			internIncludes(table);
+			writeFields(out, objects);
+			out.writeByte((includes == null ? 0 : 1) | (failedIncludes == null ? 0 : 2));
+		}
+
+		void readExternal(ObjectInput in, IncludePathTable table, ObjectReadTable objects)
+				throws IOException, ClassNotFoundException {
+			readFields(in, objects);
+			pathTable = table;
+			byte presentflags = in.readByte();
+			//the indices are resolved from the dependents index of the compiler state when first accessed
+			includes = (presentflags & 1) == 0 ? null : EMPTY_INT_ARRAY;
+			failedIncludes = (presentflags & 2) == 0 ? null : EMPTY_INT_ARRAY;
+		}
+
+		/**
+		 * Sets the reverse index that the include indices of the deserialized state are resolved from.
+		 */
+		void initDependentsIndex(IncludeDependentsIndex index, int ordinal) {
+			dependentsOrdinal = ordinal;
+			dependentsIndex = index;
+		}
+
+		/**
+		 * Moves the state to a reverse index that contains its include indices under a different ordinal.
+		 * <p>
+		 * If the indices were already resolved, they are converted to the path table of the index instead.
+		 */
+		synchronized void rebaseDependentsIndex(IncludeDependentsIndex index, int ordinal) {
+			if (dependentsIndex == null) {
+				internIncludes(index.pathTable);
+				return;
+			}
+			pathTable = index.pathTable;
+			dependentsOrdinal = ordinal;
+			dependentsIndex = index;
+		}
+
+		private void resolveIncludeIndices() {
+			if (dependentsIndex == null) {
+				return;
+			}
+			synchronized (this) {
+				IncludeDependentsIndex index = dependentsIndex;
+				if (index == null) {
+					return;
+				}
+				//only set if the includes were present when written
+				if (includes != null) {
+					includes = index.getIncludeIndices(dependentsOrdinal, false);
+				}
+				if (failedIncludes != null) {
+					failedIncludes = index.getIncludeIndices(dependentsOrdinal, true);
+				}
+				dependentsIndex = null;
+			}
+		}
+
+		int[] getIncludeIndices() {
+			resolveIncludeIndices();
+			return includes;
+		}
+
+		int[] getFailedIncludeIndices() {
+			resolveIncludeIndices();
+			return failedIncludes;
+		}
+
+		private void writeFields(ObjectOutput out, ObjectWriteTable objects) throws IOException {
+			objects.write(out, inputContents);
 			out.writeObject(compilationConfiguration);
 			out.writeObject(outputObjectPath);
-			out.writeObject(outputObjectContents);
+			objects.write(out, outputObjectContents);
 			out.writeBoolean(successful);
-			SerialUtils.writeExternalCollection(out, diagnostics);
-			SerialUtils.writeExternalCollection(out, includes);
-			SerialUtils.writeExternalCollection(out, failedIncludes);
+			out.writeLong(compilationDuration);
+			out.writeLong(compilationMemory);
+			objects.writeCollection(out, diagnostics);
 		}
 
-		@Override
-		public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
-			inputContents = (ContentDescriptor) in.readObject();
+		private void readFields(ObjectInput in, ObjectReadTable objects) throws IOException, ClassNotFoundException {
+			inputContents = objects.read(in);
 			compilationConfiguration = (FileCompilationConfiguration) in.readObject();
 			outputObjectPath = (SakerPath) in.readObject();
-			outputObjectContents = (ContentDescriptor) in.readObject();
+			outputObjectContents = objects.read(in);
 			successful = in.readBoolean();
-			diagnostics = SerialUtils.readExternalSortedImmutableNavigableSet(in);
-			includes = SerialUtils.readExternalSortedImmutableNavigableSet(in);
-			failedIncludes = SerialUtils.readExternalSortedImmutableNavigableSet(in);
+			compilationDuration = in.readLong();
+			compilationMemory = in.readLong();
+			diagnostics = objects.readSortedSet(in);
+		}
+
+		@Override
+		public int hashCode() {
+			final int prime = 31;
+			int result = 1;
+			result = prime * result + ((inputContents == null) ? 0 : inputContents.hashCode());
+			result = prime * result + ((outputObjectPath == null) ? 0 : outputObjectPath.hashCode());
+			return result;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (obj == null)
+				return false;
+			if (getClass() != obj.getClass())
+				return false;
+			CompiledFileState other = (CompiledFileState) obj;
+			if (successful != other.successful)
+				return false;
+			if (compilationDuration != other.compilationDuration)
+				return false;
+			if (compilationMemory != other.compilationMemory)
+				return false;
+			if (!Objects.equals(inputContents, other.inputContents))
+				return false;
+			if (!Objects.equals(compilationConfiguration, other.compilationConfiguration))
+				return false;
+			if (!Objects.equals(outputObjectPath, other.outputObjectPath))
+				return false;
+			if (!Objects.equals(outputObjectContents, other.outputObjectContents))
+				return false;
+			if (!Objects.equals(diagnostics, other.diagnostics))
+				return false;
+			resolveIncludeIndices();
+			other.resolveIncludeIndices();
+			if (pathTable == other.pathTable) {
+				return Arrays.equals(includes, other.includes) && Arrays.equals(failedIncludes, other.failedIncludes);
+			}
+			return Objects.equals(getIncludes(), other.getIncludes())
+					&& Objects.equals(getFailedIncludes(), other.getFailedIncludes());
 		}
 
 	}
@@ -225,6 +473,31 @@ public class CompilerState implements Externalizable {
 			.emptyMap();
 	private NavigableMap<String, SDKDescription> sdkDescriptions;
 	private EnvironmentSelectionResult environmentSelection;
+	/**
+	 * The comment and whitespace insensitive fingerprints of the included files if the header changes are detected
+	 * based on them. May be <code>null</code>.
+	 */
+	private NavigableMap<SakerPath, Long> includeTokenFingerprints;
+	/**
+	 * The include paths referenced by the file states are stored once in this table.
+	 */
+	private IncludePathTable includePathTable = new IncludePathTable();
+	/**
+	 * The reverse index of the includes of the compiled files.
+	 * <p>
+	 * It is persisted instead of the includes of the files, so the files affected by header changes can be looked up
+	 * without iterating over all includes. Lazily computed for states that were not read from a stream.
+	 */
+	private IncludeDependentsIndex dependentsIndex;
+	/**
+	 * If not <code>null</code>, only the compiled file states that differ from the base snapshot are written.
+	 */
+	private BaseSnapshot baseSnapshot;
+	/**
+	 * The base snapshot that the state was read against, but is not yet loaded. Non-<code>null</code> until
+	 * {@link #loadBaseSnapshot(InputStream)} is called.
+	 */
+	private PendingBaseSnapshot pendingBaseSnapshot;
 
 	/**
 	 * For {@link Externalizable}.
@@ -232,6 +505,10 @@ public class CompilerState implements Externalizable {
 	public CompilerState() {
 	}
 
+	IncludePathTable getIncludePathTable() {
+		return includePathTable;
+	}
+
 	public Map<RootFileProviderKey, NavigableMap<SakerPath, PrecompiledHeaderState>> getPrecompiledHeaders() {
 		return precompiledHeaders;
 	}
@@ -243,6 +520,237 @@ public class CompilerState implements Externalizable {
 
 	public void setExecutionCompiledFiles(NavigableMap<String, CompiledFileState> executionCompiledFiles) {
 		this.executionCompiledFiles = executionCompiledFiles;
+		this.dependentsIndex = null;
+	}
+
+	/**
+	 * Determines how the compiled file states are persisted.
+	 * <p>
+	 * If the changes compared to the base snapshot of the previous state are small enough, only the changes are
+	 * persisted with this state. Otherwise the contents of a new base snapshot are returned, that the caller should
+	 * write to the file at {@link #getBaseSnapshotPath()}.
+	 * <p>
+	 * The previous snapshots are not deleted by this method, as the previous state still references them until this
+	 * state is committed as the task output.
+	 *
+	 * @param prevstate
+	 *            The previous state or <code>null</code>. Its base snapshot must be loaded.
+	 * @param snapshotdirectory
+	 *            The execution path of the directory that contains the snapshots.
+	 * @return The contents of the new base snapshot or <code>null</code> if no new snapshot needs to be written.
+	 */
+	public byte[] setupBaseSnapshot(CompilerState prevstate, SakerPath snapshotdirectory) throws IOException {
+		baseSnapshot = null;
+		if (executionCompiledFiles.size() < MIN_BASE_SNAPSHOT_FILE_COUNT) {
+			return null;
+		}
+		BaseSnapshot prevbase = prevstate == null ? null : prevstate.baseSnapshot;
+		if (prevbase != null && snapshotdirectory.equals(prevbase.path.getParent())) {
+			int changecount = 0;
+			for (Entry<String, CompiledFileState> entry : executionCompiledFiles.entrySet()) {
+				if (!Objects.equals(prevbase.compiledFiles.get(entry.getKey()), entry.getValue())) {
+					++changecount;
+				}
+			}
+			for (String outfilename : prevbase.compiledFiles.keySet()) {
+				if (!executionCompiledFiles.containsKey(outfilename)) {
+					++changecount;
+				}
+			}
+			if (changecount <= prevbase.compiledFiles.size() / MAX_DELTA_RATIO_DIVISOR) {
+				baseSnapshot = prevbase;
+				return null;
+			}
+		}
+		//compact the state by writing a new snapshot
+		String id = UUID.randomUUID().toString();
+		CompilerState snapshotstate = new CompilerState();
+		snapshotstate.includePathTable = includePathTable;
+		snapshotstate.executionCompiledFiles = executionCompiledFiles;
+		UnsyncByteArrayOutputStream buf = new UnsyncByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(buf)) {
+			out.writeUTF(id);
+			snapshotstate.writeExternal(out);
+		}
+		baseSnapshot = new BaseSnapshot(snapshotdirectory.resolve("base-" + id + ".state"), id,
+				executionCompiledFiles, includePathTable);
+		return buf.toByteArray();
+	}
+
+	/**
+	 * Gets the path of the base snapshot that this state is persisted against.
+	 *
+	 * @return The execution path or <code>null</code> if the state is persisted as a whole.
+	 */
+	public SakerPath getBaseSnapshotPath() {
+		PendingBaseSnapshot pending = pendingBaseSnapshot;
+		if (pending != null) {
+			return pending.path;
+		}
+		BaseSnapshot base = baseSnapshot;
+		return base == null ? null : base.path;
+	}
+
+	/**
+	 * Gets the path of the base snapshot that needs to be loaded with {@link #loadBaseSnapshot(InputStream)}.
+	 * <p>
+	 * If not <code>null</code>, the compiled file states of this state are incomplete until the snapshot is loaded.
+	 *
+	 * @return The execution path or <code>null</code> if there's nothing to load.
+	 */
+	public SakerPath getPendingBaseSnapshotPath() {
+		PendingBaseSnapshot pending = pendingBaseSnapshot;
+		return pending == null ? null : pending.path;
+	}
+
+	/**
+	 * Loads the base snapshot from the contents of the file at {@link #getPendingBaseSnapshotPath()}, and merges the
+	 * compiled file states of this state with it.
+	 *
+	 * @throws InvalidObjectException
+	 *             If the snapshot is not the one that the state was written against.
+	 */
+	public void loadBaseSnapshot(InputStream is) throws IOException, ClassNotFoundException {
+		PendingBaseSnapshot pending = pendingBaseSnapshot;
+		if (pending == null) {
+			throw new IllegalStateException("No pending base snapshot.");
+		}
+		CompilerState snapshotstate = new CompilerState();
+		try (ObjectInputStream in = new SnapshotObjectInputStream(new BufferedInputStream(is))) {
+			String fileid = in.readUTF();
+			if (!pending.id.equals(fileid)) {
+				throw new InvalidObjectException("Compiler state base snapshot was overwritten: " + pending.path);
+			}
+			snapshotstate.readExternal(in);
+		}
+		if (snapshotstate.pendingBaseSnapshot != null) {
+			throw new InvalidObjectException("Compiler state base snapshot is not stored as a whole: " + pending.path);
+		}
+		NavigableMap<String, CompiledFileState> merged = new TreeMap<>(snapshotstate.executionCompiledFiles);
+		for (String outfilename : pending.removedFiles) {
+			merged.remove(outfilename);
+		}
+		merged.putAll(executionCompiledFiles);
+		//continue using the table and the reverse index of the base, so its states don't need to be converted
+		IncludeDependentsIndex index = snapshotstate.dependentsIndex;
+		IncludeDependentsIndex deltaindex = dependentsIndex;
+		int ordinaloffset = index.append(deltaindex, pending.removedFiles);
+		for (int i = 0; i < deltaindex.ordinalNames.length; i++) {
+			executionCompiledFiles.get(deltaindex.ordinalNames[i]).rebaseDependentsIndex(index, ordinaloffset + i);
+		}
+		includePathTable = snapshotstate.includePathTable;
+		baseSnapshot = new BaseSnapshot(pending.path, pending.id, snapshotstate.executionCompiledFiles,
+				includePathTable);
+		pendingBaseSnapshot = null;
+		executionCompiledFiles = ImmutableUtils.unmodifiableNavigableMap(merged);
+		dependentsIndex = index;
+	}
+
+	/**
+	 * Gets the output names of the compiled files that include (or failed to include) any of the changed paths, or an
+	 * include with any of the added file names.
+	 * <p>
+	 * The file names are compared in a case-insensitive manner.
+	 */
+	public synchronized NavigableSet<String> getIncludeChangeAffectedOutFileNames(
+			Collection<SakerPath> changedincludes, Collection<String> addedfilenames) {
+		IncludeDependentsIndex index = dependentsIndex;
+		if (index == null) {
+			internStates();
+			index = IncludeDependentsIndex.create(includePathTable, executionCompiledFiles);
+			dependentsIndex = index;
+		}
+		NavigableSet<String> result = new TreeSet<>();
+		for (SakerPath include : changedincludes) {
+			index.addDependentNames(result, includePathTable.indexOf(include));
+		}
+		for (String filename : addedfilenames) {
+			for (int idx : includePathTable.getIndicesWithFileNameIgnoreCase(filename)) {
+				index.addDependentNames(result, idx);
+			}
+		}
+		return result;
+	}
+
+	private static int[][] createDependents(int tablesize, CompiledFileState[] states,
+			Function<CompiledFileState, int[]> indicesgetter) {
+		int[] counts = new int[tablesize];
+		for (CompiledFileState state : states) {
+			int[] indices = indicesgetter.apply(state);
+			if (indices != null) {
+				for (int idx : indices) {
+					++counts[idx];
+				}
+			}
+		}
+		int[][] result = new int[tablesize][];
+		for (int i = 0; i < tablesize; i++) {
+			result[i] = counts[i] == 0 ? EMPTY_INT_ARRAY : new int[counts[i]];
+			counts[i] = 0;
+		}
+		for (int ordinal = 0; ordinal < states.length; ordinal++) {
+			int[] indices = indicesgetter.apply(states[ordinal]);
+			if (indices != null) {
+				for (int idx : indices) {
+					result[idx][counts[idx]++] = ordinal;
+				}
+			}
+		}
+		return result;
+	}
+
+	private static void writeDependents(ObjectOutput out, int[][] dependents) throws IOException {
+		StateSerialUtils.writeVarInt(out, dependents.length);
+		for (int[] ordinals : dependents) {
+			StateSerialUtils.writeAscendingInts(out, ordinals);
+		}
+	}
+
+	private static int[][] readDependents(ObjectInput in) throws IOException {
+		int[][] result = new int[StateSerialUtils.readVarInt(in)][];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = StateSerialUtils.readAscendingInts(in);
+		}
+		return result;
+	}
+
+	/**
+	 * Converts the dependents index to the include indices of the files, indexed by the ordinals.
+	 */
+	private static int[][] expandDependents(int[][] dependents, int ordinalcount) {
+		int[] counts = new int[ordinalcount];
+		for (int[] ordinals : dependents) {
+			for (int ordinal : ordinals) {
+				++counts[ordinal];
+			}
+		}
+		int[][] indices = new int[ordinalcount][];
+		for (int i = 0; i < ordinalcount; i++) {
+			indices[i] = counts[i] == 0 ? EMPTY_INT_ARRAY : new int[counts[i]];
+			counts[i] = 0;
+		}
+		for (int pathidx = 0; pathidx < dependents.length; pathidx++) {
+			for (int ordinal : dependents[pathidx]) {
+				indices[ordinal][counts[ordinal]++] = pathidx;
+			}
+		}
+		return indices;
+	}
+
+	private void internStates() {
+		internStates(executionCompiledFiles.values());
+	}
+
+	private void internStates(Collection<CompiledFileState> compiledfilestates) {
+		//the states that were carried over from the previous state reference a different table
+		for (CompiledFileState state : compiledfilestates) {
+			state.internIncludes(includePathTable);
+		}
+		for (NavigableMap<SakerPath, PrecompiledHeaderState> pchstates : precompiledHeaders.values()) {
+			for (PrecompiledHeaderState state : pchstates.values()) {
+				state.internIncludes(includePathTable);
+			}
+		}
 	}
 
 	public void setSdkDescriptions(NavigableMap<String, SDKDescription> sdkDescriptions) {
@@ -265,6 +773,14 @@ public class CompilerState implements Externalizable {
 		this.environmentSelection = envselectionresult;
 	}
 
+	public NavigableMap<SakerPath, Long> getIncludeTokenFingerprints() {
+		return includeTokenFingerprints;
+	}
+
+	public void setIncludeTokenFingerprints(NavigableMap<SakerPath, Long> includeTokenFingerprints) {
+		this.includeTokenFingerprints = includeTokenFingerprints;
+	}
+
 	public NavigableMap<SakerPath, ContentDescriptor> getOutputObjectFileContentDescriptors() {
 		TreeMap<SakerPath, ContentDescriptor> result = new TreeMap<>();
 		for (CompiledFileState state : executionCompiledFiles.values()) {
@@ -327,21 +843,351 @@ public class CompilerState implements Externalizable {
 
 	@Override
 	public void writeExternal(ObjectOutput out) throws IOException {
-		SerialUtils.writeExternalMap(out, executionCompiledFiles);
+		out.writeInt(FORMAT_MAGIC);
+		out.writeByte(FORMAT_VERSION);
+
+		NavigableMap<String, CompiledFileState> records;
+		List<String> removed = null;
+		BaseSnapshot base = baseSnapshot;
+		PendingBaseSnapshot pending = pendingBaseSnapshot;
+		if (pending != null) {
+			//the base was never loaded, the changes are written as they were read
+			out.writeByte(STORAGE_DELTA);
+			out.writeUTF(pending.path.toString());
+			out.writeUTF(pending.id);
+			records = executionCompiledFiles;
+			removed = pending.removedFiles;
+		} else if (base == null) {
+			out.writeByte(STORAGE_FULL);
+			records = executionCompiledFiles;
+		} else {
+			out.writeByte(STORAGE_DELTA);
+			out.writeUTF(base.path.toString());
+			out.writeUTF(base.id);
+			records = new TreeMap<>();
+			for (Entry<String, CompiledFileState> entry : executionCompiledFiles.entrySet()) {
+				if (!Objects.equals(base.compiledFiles.get(entry.getKey()), entry.getValue())) {
+					records.put(entry.getKey(), entry.getValue());
+				}
+			}
+			removed = new ArrayList<>();
+			for (String outfilename : base.compiledFiles.keySet()) {
+				if (!executionCompiledFiles.containsKey(outfilename)) {
+					removed.add(outfilename);
+				}
+			}
+		}
+		internStates(records.values());
+		includePathTable.writeExternal(out);
+
+		ObjectWriteTable objects = new ObjectWriteTable();
+		CompiledFileState[] states = records.values().toArray(new CompiledFileState[0]);
+		StateSerialUtils.writeVarInt(out, states.length);
+		String prevname = "";
+		for (Entry<String, CompiledFileState> entry : records.entrySet()) {
+			String outfilename = entry.getKey();
+			StateSerialUtils.writePrefixCompressedString(out, prevname, outfilename);
+			prevname = outfilename;
+			entry.getValue().writeExternal(out, includePathTable, objects);
+		}
+		int tablesize = includePathTable.size();
+		writeDependents(out, createDependents(tablesize, states, CompiledFileState::getIncludeIndices));
+		writeDependents(out, createDependents(tablesize, states, CompiledFileState::getFailedIncludeIndices));
+		if (removed != null) {
+			StateSerialUtils.writeVarInt(out, removed.size());
+			prevname = "";
+			for (String outfilename : removed) {
+				StateSerialUtils.writePrefixCompressedString(out, prevname, outfilename);
+				prevname = outfilename;
+			}
+		}
 		SerialUtils.writeExternalMap(out, sdkDescriptions);
-		SerialUtils.writeExternalMap(out, precompiledHeaders, SerialUtils::writeExternalObject,
-				SerialUtils::writeExternalMap);
+		StateSerialUtils.writeVarInt(out, precompiledHeaders.size());
+		for (Entry<RootFileProviderKey, NavigableMap<SakerPath, PrecompiledHeaderState>> entry : precompiledHeaders
+				.entrySet()) {
+			out.writeObject(entry.getKey());
+			NavigableMap<SakerPath, PrecompiledHeaderState> pchstates = entry.getValue();
+			StateSerialUtils.writeVarInt(out, pchstates.size());
+			for (Entry<SakerPath, PrecompiledHeaderState> pchentry : pchstates.entrySet()) {
+				out.writeObject(pchentry.getKey());
+				pchentry.getValue().writeExternal(out, includePathTable, objects);
+			}
+		}
 		out.writeObject(environmentSelection);
+		if (includeTokenFingerprints == null) {
+			StateSerialUtils.writeVarInt(out, 0);
+		} else {
+			StateSerialUtils.writeVarInt(out, includeTokenFingerprints.size() + 1);
+			String prevpath = "";
+			for (Entry<SakerPath, Long> entry : includeTokenFingerprints.entrySet()) {
+				String path = entry.getKey().toString();
+				StateSerialUtils.writePrefixCompressedString(out, prevpath, path);
+				prevpath = path;
+				out.writeLong(entry.getValue());
+			}
+		}
 	}
 
 	@Override
 	public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
-		executionCompiledFiles = SerialUtils.readExternalSortedImmutableNavigableMap(in);
+		int magic = in.readInt();
+		if (magic != FORMAT_MAGIC) {
+			throw new InvalidObjectException("Unrecognized compiler state format.");
+		}
+		int version = in.readUnsignedByte();
+		if (version != FORMAT_VERSION) {
+			//the state is discarded, and the build system reruns the compilation without it
+			throw new InvalidObjectException("Unsupported compiler state format version: " + version);
+		}
+		int storage = in.readUnsignedByte();
+		SakerPath basepath = null;
+		String baseid = null;
+		if (storage == STORAGE_DELTA) {
+			basepath = SakerPath.valueOf(in.readUTF());
+			baseid = in.readUTF();
+		} else if (storage != STORAGE_FULL) {
+			throw new InvalidObjectException("Unsupported compiler state storage: " + storage);
+		}
+		includePathTable = IncludePathTable.readExternal(in);
+
+		ObjectReadTable objects = new ObjectReadTable();
+		NavigableMap<String, CompiledFileState> compiledfiles = new TreeMap<>();
+		int compiledfilecount = StateSerialUtils.readVarInt(in);
+		String[] ordinalnames = new String[compiledfilecount];
+		CompiledFileState[] states = new CompiledFileState[compiledfilecount];
+		String prevname = "";
+		for (int i = 0; i < compiledfilecount; i++) {
+			String outfilename = StateSerialUtils.readPrefixCompressedString(in, prevname);
+			prevname = outfilename;
+			CompiledFileState state = new CompiledFileState();
+			state.readExternal(in, includePathTable, objects);
+			compiledfiles.put(outfilename, state);
+			ordinalnames[i] = outfilename;
+			states[i] = state;
+		}
+		IncludeDependentsIndex index = new IncludeDependentsIndex(includePathTable, ordinalnames,
+				readDependents(in), readDependents(in));
+		for (int i = 0; i < compiledfilecount; i++) {
+			states[i].initDependentsIndex(index, i);
+		}
+		List<String> removed = Collections.emptyList();
+		if (storage == STORAGE_DELTA) {
+			int removedcount = StateSerialUtils.readVarInt(in);
+			removed = new ArrayList<>(removedcount);
+			prevname = "";
+			for (int i = 0; i < removedcount; i++) {
+				prevname = StateSerialUtils.readPrefixCompressedString(in, prevname);
+				removed.add(prevname);
+			}
+		}
 		sdkDescriptions = SerialUtils.readExternalSortedImmutableNavigableMap(in,
 				SDKSupportUtils.getSDKNameComparator());
-		precompiledHeaders = SerialUtils.readExternalMap(new HashMap<>(), in, SerialUtils::readExternalObject,
-				SerialUtils::readExternalSortedImmutableNavigableMap);
+		precompiledHeaders = new HashMap<>();
+		for (int count = StateSerialUtils.readVarInt(in); count > 0; --count) {
+			RootFileProviderKey fpk = (RootFileProviderKey) in.readObject();
+			NavigableMap<SakerPath, PrecompiledHeaderState> pchstates = new TreeMap<>();
+			for (int pchcount = StateSerialUtils.readVarInt(in); pchcount > 0; --pchcount) {
+				SakerPath path = (SakerPath) in.readObject();
+				PrecompiledHeaderState state = new PrecompiledHeaderState();
+				state.readExternal(in, includePathTable, objects);
+				pchstates.put(path, state);
+			}
+			precompiledHeaders.put(fpk, ImmutableUtils.unmodifiableNavigableMap(pchstates));
+		}
 		environmentSelection = (EnvironmentSelectionResult) in.readObject();
+		int fingerprintcount = StateSerialUtils.readVarInt(in) - 1;
+		if (fingerprintcount >= 0) {
+			NavigableMap<SakerPath, Long> fingerprints = new TreeMap<>();
+			String prevpath = "";
+			for (int i = 0; i < fingerprintcount; i++) {
+				prevpath = StateSerialUtils.readPrefixCompressedString(in, prevpath);
+				fingerprints.put(SakerPath.valueOf(prevpath), in.readLong());
+			}
+			includeTokenFingerprints = ImmutableUtils.unmodifiableNavigableMap(fingerprints);
+		}
+
+		executionCompiledFiles = ImmutableUtils.unmodifiableNavigableMap(compiledfiles);
+		dependentsIndex = index;
+		if (storage == STORAGE_DELTA) {
+			//the base is loaded by the caller, no files are accessed during deserialization
+			pendingBaseSnapshot = new PendingBaseSnapshot(basepath, baseid, removed);
+		}
 	}
 
+	/**
+	 * Reverse index that maps the include path indices to the ordinals of the compiled files that include them.
+	 * <p>
+	 * The compiled file states that are read from a stream resolve their include indices from it when they are first
+	 * accessed. When a delta is merged with its base snapshot, the files of the delta are appended to the index of the
+	 * base. The ordinals of the replaced and removed files are kept, but they no longer have a name.
+	 */
+	private static final class IncludeDependentsIndex {
+		protected final IncludePathTable pathTable;
+		protected int[][] includeDependents;
+		protected int[][] failedIncludeDependents;
+		/**
+		 * The output file names of the ordinals. <code>null</code> for the files that are no longer present.
+		 */
+		protected String[] ordinalNames;
+		/**
+		 * The lazily expanded include indices of the files, indexed by the ordinals.
+		 */
+		private int[][] includes;
+		private int[][] failedIncludes;
+
+		public IncludeDependentsIndex(IncludePathTable pathTable, String[] ordinalNames, int[][] includeDependents,
+				int[][] failedIncludeDependents) {
+			this.pathTable = pathTable;
+			this.ordinalNames = ordinalNames;
+			this.includeDependents = includeDependents;
+			this.failedIncludeDependents = failedIncludeDependents;
+		}
+
+		public static IncludeDependentsIndex create(IncludePathTable table,
+				NavigableMap<String, CompiledFileState> compiledfiles) {
+			String[] names = compiledfiles.keySet().toArray(new String[0]);
+			CompiledFileState[] states = compiledfiles.values().toArray(new CompiledFileState[0]);
+			int tablesize = table.size();
+			return new IncludeDependentsIndex(table, names,
+					createDependents(tablesize, states, CompiledFileState::getIncludeIndices),
+					createDependents(tablesize, states, CompiledFileState::getFailedIncludeIndices));
+		}
+
+		public synchronized void addDependentNames(Collection<String> result, int pathidx) {
+			if (pathidx < 0) {
+				return;
+			}
+			addDependentNames(result, includeDependents, pathidx);
+			addDependentNames(result, failedIncludeDependents, pathidx);
+		}
+
+		private void addDependentNames(Collection<String> result, int[][] dependents, int pathidx) {
+			if (pathidx >= dependents.length) {
+				return;
+			}
+			for (int ordinal : dependents[pathidx]) {
+				String name = ordinalNames[ordinal];
+				if (name != null) {
+					result.add(name);
+				}
+			}
+		}
+
+		public synchronized int[] getIncludeIndices(int ordinal, boolean failed) {
+			if (includes == null) {
+				includes = expandDependents(includeDependents, ordinalNames.length);
+				failedIncludes = expandDependents(failedIncludeDependents, ordinalNames.length);
+			}
+			return failed ? failedIncludes[ordinal] : includes[ordinal];
+		}
+
+		/**
+		 * Appends the files of a delta index, and removes the names of the files that it replaces or that were removed
+		 * since this index.
+		 * <p>
+		 * The names of this index must be sorted and all present, as for the index of a state that was stored as a
+		 * whole.
+		 *
+		 * @return The ordinal of the first appended file.
+		 */
+		public synchronized int append(IncludeDependentsIndex delta, Collection<String> removedfiles) {
+			int ordinaloffset = ordinalNames.length;
+			String[] names = Arrays.copyOf(ordinalNames, ordinaloffset + delta.ordinalNames.length);
+			for (String outfilename : removedfiles) {
+				removeName(names, outfilename);
+			}
+			for (int i = 0; i < delta.ordinalNames.length; i++) {
+				removeName(names, delta.ordinalNames[i]);
+				names[ordinaloffset + i] = delta.ordinalNames[i];
+			}
+			int[] pathmapping = pathTable.internTable(delta.pathTable);
+			includeDependents = appendDependents(includeDependents, delta.includeDependents, pathmapping,
+					ordinaloffset);
+			failedIncludeDependents = appendDependents(failedIncludeDependents, delta.failedIncludeDependents,
+					pathmapping, ordinaloffset);
+			ordinalNames = names;
+			//expanded again when needed
+			includes = null;
+			failedIncludes = null;
+			return ordinaloffset;
+		}
+
+		private void removeName(String[] names, String outfilename) {
+			int idx = Arrays.binarySearch(ordinalNames, outfilename);
+			if (idx >= 0) {
+				names[idx] = null;
+			}
+		}
+
+		private int[][] appendDependents(int[][] dependents, int[][] deltadependents, int[] pathmapping,
+				int ordinaloffset) {
+			int[][] result = Arrays.copyOf(dependents, Math.max(dependents.length, pathTable.size()));
+			for (int i = dependents.length; i < result.length; i++) {
+				result[i] = EMPTY_INT_ARRAY;
+			}
+			for (int deltaidx = 0; deltaidx < deltadependents.length; deltaidx++) {
+				int[] ordinals = deltadependents[deltaidx];
+				if (ordinals.length == 0) {
+					continue;
+				}
+				int pathidx = pathmapping[deltaidx];
+				int[] prev = result[pathidx];
+				int[] n = Arrays.copyOf(prev, prev.length + ordinals.length);
+				for (int i = 0; i < ordinals.length; i++) {
+					n[prev.length + i] = ordinals[i] + ordinaloffset;
+				}
+				result[pathidx] = n;
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * The compiled file states that are persisted in a separate file, so only the changes need to be written with the
+	 * task output.
+	 */
+	private static final class BaseSnapshot {
+		protected final SakerPath path;
+		protected final String id;
+		protected final NavigableMap<String, CompiledFileState> compiledFiles;
+		protected final IncludePathTable pathTable;
+
+		public BaseSnapshot(SakerPath path, String id, NavigableMap<String, CompiledFileState> compiledFiles,
+				IncludePathTable pathTable) {
+			this.path = path;
+			this.id = id;
+			this.compiledFiles = compiledFiles;
+			this.pathTable = pathTable;
+		}
+	}
+
+	/**
+	 * Reference to the base snapshot of a deserialized state, and the compiled files that were removed since it.
+	 */
+	private static final class PendingBaseSnapshot {
+		protected final SakerPath path;
+		protected final String id;
+		protected final List<String> removedFiles;
+
+		public PendingBaseSnapshot(SakerPath path, String id, List<String> removedFiles) {
+			this.path = path;
+			this.id = id;
+			this.removedFiles = removedFiles;
+		}
+	}
+
+	private static final class SnapshotObjectInputStream extends ObjectInputStream {
+		public SnapshotObjectInputStream(InputStream in) throws IOException {
+			super(in);
+		}
+
+		@Override
+		protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+			try {
+				return Class.forName(desc.getName(), false, CompilerState.class.getClassLoader());
+			} catch (ClassNotFoundException e) {
+				return super.resolveClass(desc);
+			}
+		}
+	}
 }
@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2020 Bence Sipka
+ *
+ * This program is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package saker.msvc.impl.ccompile;
+
+import saker.build.thirdparty.saker.util.io.ByteArrayRegion;
+
+/**
+ * Computes a fingerprint of C/C++ source contents that doesn't change if only the comments or the insignificant
+ * whitespace is modified.
+ * <p>
+ * The contents are hashed as if the comments were replaced by a single space, and each whitespace run between tokens
+ * was collapsed. String and character literals are hashed verbatim. The line breaks are always hashed, so any
+ * modification that shifts the line numbers (which affect <code>__LINE__</code> and the debug information line tables)
+ * changes the fingerprint.
+ */
+public final class HeaderTokenFingerprint {
+	private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private long hash = FNV_OFFSET_BASIS;
+	private boolean pendingSpace;
+	private boolean lineStart = true;
+
+	private HeaderTokenFingerprint() {
+	}
+
+	public static long compute(ByteArrayRegion contents) {
+		return compute(contents.getArray(), contents.getOffset(), contents.getLength());
+	}
+
+	public static long compute(byte[] bytes, int offset, int length) {
+		HeaderTokenFingerprint fp = new HeaderTokenFingerprint();
+		int end = offset + length;
+		int i = offset;
+		while (i < end) {
+			byte c = bytes[i];
+			switch (c) {
+				case '\n': {
+					fp.newLine();
+					++i;
+					break;
+				}
+				case ' ':
+				case '\t':
+				case '\r':
+				case '\f':
+				case 0x0b: {
+					fp.pendingSpace = true;
+					++i;
+					break;
+				}
+				case '\\': {
+					int next = skipLineSplice(bytes, i, end);
+					if (next != i) {
+						//the line is continued, but the line numbering still changes
+						fp.hashByte('\\');
+						fp.newLine();
+						i = next;
+					} else {
+						fp.emit(c);
+						++i;
+					}
+					break;
+				}
+				case '/': {
+					if (i + 1 < end && bytes[i + 1] == '/') {
+						i = fp.skipLineComment(bytes, i + 2, end);
+						break;
+					}
+					if (i + 1 < end && bytes[i + 1] == '*') {
+						i = fp.skipBlockComment(bytes, i + 2, end);
+						break;
+					}
+					fp.emit(c);
+					++i;
+					break;
+				}
+				case '"': {
+					if (isRawStringPrefix(bytes, offset, i)) {
+						i = fp.copyRawString(bytes, i, end);
+					} else {
+						i = fp.copyLiteral(bytes, i, end, '"');
+					}
+					break;
+				}
+				case '\'': {
+					i = fp.copyLiteral(bytes, i, end, '\'');
+					break;
+				}
+				default: {
+					fp.emit(c);
+					++i;
+					break;
+				}
+			}
+		}
+		return fp.hash;
+	}
+
+	private void emit(byte c) {
+		if (pendingSpace) {
+			pendingSpace = false;
+			if (!lineStart) {
+				hashByte(' ');
+			}
+		}
+		lineStart = false;
+		hashByte(c);
+	}
+
+	private void newLine() {
+		pendingSpace = false;
+		lineStart = true;
+		hashByte('\n');
+	}
+
+	private void hashByte(int c) {
+		hash = (hash ^ (c & 0xFF)) * FNV_PRIME;
+	}
+
+	private static int skipLineSplice(byte[] bytes, int i, int end) {
+		//a backslash followed by a new line, with an optional carriage return
+		int j = i + 1;
+		if (j < end && bytes[j] == '\r') {
+			++j;
+		}
+		if (j < end && bytes[j] == '\n') {
+			return j + 1;
+		}
+		return i;
+	}
+
+	private int skipLineComment(byte[] bytes, int i, int end) {
+		pendingSpace = true;
+		while (i < end) {
+			byte c = bytes[i];
+			if (c == '\n') {
+				return i;
+			}
+			if (c == '\\') {
+				int next = skipLineSplice(bytes, i, end);
+				if (next != i) {
+					//the comment continues on the next line
+					newLine();
+					pendingSpace = true;
+					i = next;
+					continue;
+				}
+			}
+			++i;
+		}
+		return i;
+	}
+
+	private int skipBlockComment(byte[] bytes, int i, int end) {
+		while (i < end) {
+			byte c = bytes[i];
+			if (c == '*' && i + 1 < end && bytes[i + 1] == '/') {
+				//the comment is replaced by a single space
+				pendingSpace = true;
+				return i + 2;
+			}
+			if (c == '\n') {
+				newLine();
+			}
+			++i;
+		}
+		pendingSpace = true;
+		return i;
+	}
+
+	private int copyLiteral(byte[] bytes, int i, int end, int quote) {
+		emit(bytes[i++]);
+		while (i < end) {
+			byte c = bytes[i];
+			if (c == '\n') {
+				//unterminated literal, continue with the next line
+				return i;
+			}
+			hashByte(c);
+			++i;
+			if (c == quote) {
+				return i;
+			}
+			if (c == '\\' && i < end) {
+				if (bytes[i] == '\n') {
+					newLine();
+				} else {
+					hashByte(bytes[i]);
+				}
+				++i;
+			}
+		}
+		return i;
+	}
+
+	private int copyRawString(byte[] bytes, int i, int end) {
+		//R"delim( ... )delim"
+		emit(bytes[i++]);
+		int delimstart = i;
+		while (i < end && bytes[i] != '(' && bytes[i] != '\n') {
+			hashByte(bytes[i++]);
+		}
+		if (i >= end || bytes[i] != '(') {
+			return i;
+		}
+		int delimlen = i - delimstart;
+		hashByte(bytes[i++]);
+		while (i < end) {
+			byte c = bytes[i];
+			if (c == ')' && isRawStringEnd(bytes, i + 1, end, delimstart, delimlen)) {
+				int endidx = i + 1 + delimlen + 1;
+				for (; i < endidx; i++) {
+					hashByte(bytes[i]);
+				}
+				return i;
+			}
+			if (c == '\n') {
+				newLine();
+			} else {
+				hashByte(c);
+			}
+			++i;
+		}
+		return i;
+	}
+
+	private static boolean isRawStringEnd(byte[] bytes, int i, int end, int delimstart, int delimlen) {
+		if (i + delimlen >= end) {
+			return false;
+		}
+		for (int j = 0; j < delimlen; j++) {
+			if (bytes[i + j] != bytes[delimstart + j]) {
+				return false;
+			}
+		}
+		return bytes[i + delimlen] == '"';
+	}
+
+	private static boolean isRawStringPrefix(byte[] bytes, int start, int quoteidx) {
+		//R, LR, uR, UR, u8R
+		int i = quoteidx - 1;
+		if (i < start || bytes[i] != 'R') {
+			return false;
+		}
+		--i;
+		if (i >= start) {
+			byte c = bytes[i];
+			if (c == '8' && i - 1 >= start && bytes[i - 1] == 'u') {
+				i -= 2;
+			} else if (c == 'L' || c == 'u' || c == 'U') {
+				--i;
+			}
+		}
+		//the prefix shouldn't be the end of a longer identifier
+		return i < start || !isIdentifierChar(bytes[i]);
+	}
+
+	private static boolean isIdentifierChar(byte c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_' || c < 0;
+	}
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2020 Bence Sipka
+ *
+ * This program is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package saker.msvc.impl.ccompile;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import saker.build.file.SakerFile;
+import saker.build.file.content.ContentDescriptor;
+import saker.build.file.path.SakerPath;
+import saker.build.runtime.execution.SakerLog;
+import saker.build.task.CommonTaskContentDescriptors;
+import saker.build.task.TaskContext;
+import saker.build.thirdparty.saker.util.ObjectUtils;
+import saker.msvc.impl.ccompile.CompilerState.CompiledFileState;
+import testing.saker.msvc.TestFlag;
+
+/**
+ * Collects the content descriptors of the included files of the compiled sources.
+ * <p>
+ * The compiled file states are added as the compilation results arrive, so the included files are resolved while the
+ * remaining files are still being compiled. Each included file is only resolved once.
+ * <p>
+ * The resolution and the fingerprinting run on a background thread in the order the states are added, so they don't
+ * delay the thread that handles the compilation results. The getters wait for the added states to be processed.
+ */
+final class IncludeDependencyCollector {
+	private final TaskContext taskContext;
+
+	private final NavigableMap<SakerPath, ContentDescriptor> includeContentDescriptors = new TreeMap<>();
+	private final NavigableSet<SakerPath> failedIncludes = new TreeSet<>();
+	private final NavigableSet<String> includedFileNames = new TreeSet<>();
+	/**
+	 * The token fingerprints of the included files, or <code>null</code> if they aren't computed.
+	 */
+	private final NavigableMap<SakerPath, Long> tokenFingerprints;
+
+	private final ThreadPoolExecutor worker;
+	private volatile Throwable workerException;
+	private boolean finished;
+
+	public IncludeDependencyCollector(TaskContext taskContext) {
+		this(taskContext, null);
+	}
+
+	/**
+	 * Creates a new collector that also computes the token fingerprints of the included files.
+	 *
+	 * @param taskContext
+	 *            The task context.
+	 * @param knownFingerprints
+	 *            The already known fingerprints of unchanged files. The files not present in it are read and
+	 *            fingerprinted when they are first included. May be <code>null</code> to not compute fingerprints.
+	 */
+	public IncludeDependencyCollector(TaskContext taskContext, NavigableMap<SakerPath, Long> knownFingerprints) {
+		this.taskContext = taskContext;
+		this.tokenFingerprints = knownFingerprints == null ? null : new TreeMap<>(knownFingerprints);
+		//single thread, so the collections are only accessed by it until the collection finishes
+		//the thread exits when idle, so it doesn't linger if the compilation fails before the collection is finished
+		this.worker = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+			Thread thread = new Thread(r, "MSVC include collector");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.worker.allowCoreThreadTimeOut(true);
+	}
+
+	public void add(CompiledFileState filestate) {
+		execute(() -> addImpl(filestate));
+	}
+
+	public void addAll(Collection<? extends CompiledFileState> filestates) {
+		//copy, as the collection may be modified by the caller while the states are processed
+		List<CompiledFileState> states = new ArrayList<>(filestates);
+		execute(() -> {
+			for (CompiledFileState filestate : states) {
+				addImpl(filestate);
+			}
+		});
+	}
+
+	private void execute(Runnable run) {
+		worker.execute(() -> {
+			if (workerException != null) {
+				return;
+			}
+			try {
+				run.run();
+			} catch (Throwable e) {
+				workerException = e;
+			}
+		});
+	}
+
+	private void addImpl(CompiledFileState filestate) {
+		Collection<SakerPath> includes = filestate.getIncludes();
+		if (includes != null) {
+			for (SakerPath includepath : includes) {
+				addInclude(includepath);
+			}
+		}
+		ObjectUtils.addAll(failedIncludes, filestate.getFailedIncludes());
+	}
+
+	/**
+	 * Gets the content descriptors of the included files, including the failed includes.
+	 * <p>
+	 * Should be called after all compiled files have been added.
+	 */
+	public NavigableMap<SakerPath, ContentDescriptor> getIncludeContentDescriptors() {
+		finish();
+		for (SakerPath includepath : failedIncludes) {
+			ContentDescriptor prev = includeContentDescriptors.putIfAbsent(includepath,
+					CommonTaskContentDescriptors.IS_NOT_FILE);
+			if (prev != null) {
+				SakerLog.error().verbose().println("Header referencing concurrency error. Referenced header: "
+						+ includepath
+						+ " had transient presence for compiled sources. It is recommended to clean the project.");
+				if (TestFlag.ENABLED) {
+					//this shouldn't happen during testing, so better throw an exception
+					throw new AssertionError(
+							"header concurrency error: " + includeContentDescriptors + " with " + prev);
+				}
+			}
+		}
+		return includeContentDescriptors;
+	}
+
+	public NavigableSet<String> getIncludedFileNames() {
+		finish();
+		return includedFileNames;
+	}
+
+	/**
+	 * Gets the token fingerprints of the included files.
+	 * <p>
+	 * Should be called after all compiled files have been added.
+	 *
+	 * @return The fingerprints or <code>null</code> if they aren't computed.
+	 */
+	public NavigableMap<SakerPath, Long> getTokenFingerprints() {
+		finish();
+		if (tokenFingerprints == null) {
+			return null;
+		}
+		NavigableMap<SakerPath, Long> result = new TreeMap<>();
+		for (SakerPath includepath : includeContentDescriptors.keySet()) {
+			Long fp = tokenFingerprints.get(includepath);
+			if (fp != null) {
+				result.put(includepath, fp);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Waits for the added states to be processed.
+	 */
+	private void finish() {
+		if (finished) {
+			return;
+		}
+		worker.shutdown();
+		try {
+			while (!worker.awaitTermination(1, TimeUnit.MINUTES)) {
+				//wait more
+			}
+		} catch (InterruptedException e) {
+			worker.shutdownNow();
+			Thread.currentThread().interrupt();
+			throw ObjectUtils.sneakyThrow(e);
+		}
+		finished = true;
+		Throwable exc = workerException;
+		if (exc != null) {
+			throw ObjectUtils.sneakyThrow(exc);
+		}
+	}
+
+	private void addInclude(SakerPath includepath) {
+		if (includeContentDescriptors.containsKey(includepath)) {
+			//already resolved for a different source file
+			return;
+		}
+		includedFileNames.add(includepath.getFileName());
+		//XXX use a more efficient resolveFileAtPath algorithm
+		SakerFile includefile = taskContext.getTaskUtilities().resolveFileAtPath(includepath);
+		if (includefile == null) {
+			SakerLog.error().verbose().println("Included file no longer found: " + includepath);
+			//report an IS_FILE dependency nonetheless, as that will trigger the reinvocation of the
+			//compilation the next time.
+			//this scenario should not happen at all generally.
+			includeContentDescriptors.put(includepath, CommonTaskContentDescriptors.IS_FILE);
+			return;
+		}
+		includeContentDescriptors.put(includepath, includefile.getContentDescriptor());
+		if (tokenFingerprints != null && !tokenFingerprints.containsKey(includepath)) {
+			try {
+				tokenFingerprints.put(includepath, HeaderTokenFingerprint.compute(includefile.getBytes()));
+			} catch (IOException e) {
+				//no fingerprint, any change of the file will cause the recompilation of the dependent sources
+				SakerLog.error().verbose().println("Failed to read included file: " + includepath + " (" + e + ")");
+			}
+		}
+	}
+}
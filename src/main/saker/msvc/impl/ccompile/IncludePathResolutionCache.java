@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2020 Bence Sipka
+ *
+ * This program is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package saker.msvc.impl.ccompile;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import saker.build.file.path.SakerPath;
+import saker.build.runtime.execution.ExecutionContext;
+import saker.build.runtime.execution.SakerLog;
+
+/**
+ * Caches the resolution of the included file paths reported by cl.exe to execution paths.
+ * <p>
+ * The resolution requires the canonicalization of the path on the file system, which is expensive to do for every
+ * included file of every compiled source. The cache is shared by the compilations of a build that use the same
+ * mirror directory in the JVM, and it is discarded when a different build starts, so the included files outside of
+ * the mirror directory are resolved again in every build.
+ * <p>
+ * The entries are keyed by the paths as reported by cl.exe. The entries under a directory are invalidated when it is
+ * mirrored again, as the real paths of the files may change.
+ * <p>
+ * The sizes of the resolved files are cached with the entries for the compiler memory estimates.
+ */
+final class IncludePathResolutionCache {
+	private static final Map<Path, IncludePathResolutionCache> CACHES = new ConcurrentHashMap<>();
+
+	private final long buildTimeMillis;
+
+	/**
+	 * Maps the lower case included file paths to their resolution results.
+	 */
+	private final ConcurrentHashMap<String, ResolvedPath> resolvedPaths = new ConcurrentHashMap<>();
+
+	private IncludePathResolutionCache(long buildTimeMillis) {
+		this.buildTimeMillis = buildTimeMillis;
+	}
+
+	public static IncludePathResolutionCache get(ExecutionContext executioncontext) {
+		long buildtime = executioncontext.getBuildTimeMillis();
+		Path mirrordir = executioncontext.getMirrorDirectory();
+		if (mirrordir == null) {
+			//nothing can be unmirrored, no need to share
+			return new IncludePathResolutionCache(buildtime);
+		}
+		return CACHES.compute(mirrordir, (d, cache) -> {
+			if (cache != null && cache.buildTimeMillis == buildtime) {
+				return cache;
+			}
+			return new IncludePathResolutionCache(buildtime);
+		});
+	}
+
+	/**
+	 * Invalidates the cached paths that are in the given local directory.
+	 * <p>
+	 * Should be called when the directory is mirrored.
+	 */
+	public static void invalidateDirectory(Path directory) {
+		String dirstr = toKey(directory.toString());
+		String prefix = dirstr.endsWith(File.separator) ? dirstr : dirstr + File.separator;
+		for (IncludePathResolutionCache cache : CACHES.values()) {
+			cache.resolvedPaths.keySet().removeIf(k -> k.startsWith(prefix) || k.equals(dirstr));
+		}
+	}
+
+	private static String toKey(String path) {
+		//the file system is case insensitive on windows
+		return path.toLowerCase(Locale.ENGLISH);
+	}
+
+	/**
+	 * Creates a new resolver that counts the cache hits for a single compilation. Not thread safe.
+	 */
+	public Resolver createResolver(ExecutionContext executioncontext) {
+		return new Resolver(executioncontext);
+	}
+
+	public final class Resolver {
+		private final ExecutionContext executionContext;
+		private int hits;
+		private int misses;
+
+		Resolver(ExecutionContext executionContext) {
+			this.executionContext = executionContext;
+		}
+
+		/**
+		 * Resolves the included file path.
+		 * 
+		 * @return The resolved path or <code>null</code> if it couldn't be resolved.
+		 */
+		public ResolvedPath resolve(String includedfilepath) {
+			String includedfilepathstr = toKey(includedfilepath);
+			ResolvedPath cached = resolvedPaths.get(includedfilepathstr);
+			if (cached != null) {
+				++hits;
+				return cached;
+			}
+			++misses;
+			try {
+				Path reallocalpath = Paths.get(includedfilepathstr).toRealPath(LinkOption.NOFOLLOW_LINKS);
+				//null if the included path is not mirrored
+				//TODO handle non mirrored included path
+				SakerPath unmirrored = executionContext.toUnmirrorPath(reallocalpath);
+				ResolvedPath result = new ResolvedPath(unmirrored, reallocalpath);
+				resolvedPaths.put(includedfilepathstr, result);
+				return result;
+			} catch (IOException | InvalidPathException e) {
+				//not cached, the file may be available later
+				SakerLog.error().verbose().println(
+						"Failed to determine included file path for: " + includedfilepathstr + " (" + e + ")");
+				return null;
+			}
+		}
+
+		public int getHits() {
+			return hits;
+		}
+
+		public int getMisses() {
+			return misses;
+		}
+	}
+
+	public static final class ResolvedPath {
+		protected final SakerPath path;
+		protected final Path localPath;
+		//-1 if not yet read
+		private volatile long size = -1;
+
+		ResolvedPath(SakerPath path, Path localPath) {
+			this.path = path;
+			this.localPath = localPath;
+		}
+
+		/**
+		 * @return The execution path or <code>null</code> if the file is not in the mirror directory.
+		 */
+		public SakerPath getPath() {
+			return path;
+		}
+
+		/**
+		 * @return The real path of the file on the local file system.
+		 */
+		public Path getLocalPath() {
+			return localPath;
+		}
+
+		/**
+		 * Gets the size of the file.
+		 * <p>
+		 * The size is read when first called, and cached as long as the resolution is.
+		 * 
+		 * @return The size of the file in bytes or 0 if it couldn't be read.
+		 */
+		public long getSize() {
+			long result = size;
+			if (result < 0) {
+				try {
+					result = Files.size(localPath);
+				} catch (IOException e) {
+					//ignore, the file is not part of the estimates
+					result = 0;
+				}
+				size = result;
+			}
+			return result;
+		}
+	}
+}
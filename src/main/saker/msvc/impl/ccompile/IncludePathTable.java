@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2020 Bence Sipka
+ *
+ * This program is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package saker.msvc.impl.ccompile;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.TreeMap;
+
+import saker.build.file.path.SakerPath;
+import saker.build.thirdparty.saker.util.ImmutableUtils;
+
+/**
+ * Interns the include paths that are referenced by the compiled files, so the states can store them as integer
+ * indices.
+ * <p>
+ * The same headers are usually included by most of the source files, so storing the paths only once considerably
+ * reduces the size of the compiler state.
+ */
+public final class IncludePathTable {
+	private static final int[] EMPTY_INT_ARRAY = {};
+
+	private final List<SakerPath> paths;
+	private final Map<SakerPath, Integer> indices;
+	/**
+	 * Lazily created index of the file names to the path indices. Recreated if the table grows.
+	 */
+	private NavigableMap<String, int[]> fileNameIndices;
+	private int fileNameIndicesTableSize;
+
+	public IncludePathTable() {
+		this.paths = new ArrayList<>();
+		this.indices = new HashMap<>();
+	}
+
+	private IncludePathTable(List<SakerPath> paths) {
+		this.paths = paths;
+		this.indices = new HashMap<>(paths.size() * 4 / 3 + 1);
+		for (int i = 0; i < paths.size(); i++) {
+			indices.put(paths.get(i), i);
+		}
+	}
+
+	/**
+	 * Interns the argument paths and returns their indices in ascending order.
+	 *
+	 * @return The indices or <code>null</code> if the argument is <code>null</code>.
+	 */
+	public synchronized int[] intern(Collection<SakerPath> includes) {
+		if (includes == null) {
+			return null;
+		}
+		int[] result = new int[includes.size()];
+		int i = 0;
+		for (SakerPath path : includes) {
+			Integer idx = indices.get(path);
+			if (idx == null) {
+				idx = paths.size();
+				paths.add(path);
+				indices.put(path, idx);
+			}
+			result[i++] = idx;
+		}
+		Arrays.sort(result);
+		return result;
+	}
+
+	/**
+	 * Gets the paths for the indices that were returned by {@link #intern(Collection)}.
+	 *
+	 * @return The paths or <code>null</code> if the argument is <code>null</code>.
+	 */
+	public synchronized NavigableSet<SakerPath> getPaths(int[] includes) {
+		if (includes == null) {
+			return null;
+		}
+		SakerPath[] result = new SakerPath[includes.length];
+		for (int i = 0; i < includes.length; i++) {
+			result[i] = paths.get(includes[i]);
+		}
+		Arrays.sort(result);
+		return ImmutableUtils.makeImmutableNavigableSet(result);
+	}
+
+	public synchronized int size() {
+		return paths.size();
+	}
+
+	/**
+	 * @return The index of the path or -1 if it's not in the table.
+	 */
+	public synchronized int indexOf(SakerPath path) {
+		Integer idx = indices.get(path);
+		return idx == null ? -1 : idx;
+	}
+
+	/**
+	 * Gets the indices of the paths that have the given file name, compared in a case-insensitive manner.
+	 */
+	public synchronized int[] getIndicesWithFileNameIgnoreCase(String filename) {
+		if (fileNameIndices == null || fileNameIndicesTableSize != paths.size()) {
+			NavigableMap<String, int[]> nindices = new TreeMap<>(String::compareToIgnoreCase);
+			for (int i = 0; i < paths.size(); i++) {
+				int[] prev = nindices.get(paths.get(i).getFileName());
+				int[] n;
+				if (prev == null) {
+					n = new int[] { i };
+				} else {
+					n = Arrays.copyOf(prev, prev.length + 1);
+					n[prev.length] = i;
+				}
+				nindices.put(paths.get(i).getFileName(), n);
+			}
+			fileNameIndices = nindices;
+			fileNameIndicesTableSize = paths.size();
+		}
+		int[] result = fileNameIndices.get(filename);
+		return result == null ? EMPTY_INT_ARRAY : result;
+	}
+
+	/**
+	 * Interns all paths of a different table.
+	 *
+	 * @return The indices in this table, indexed by the indices of the argument table.
+	 */
+	public int[] internTable(IncludePathTable table) {
+		List<SakerPath> tablepaths;
+		synchronized (table) {
+			tablepaths = new ArrayList<>(table.paths);
+		}
+		int[] result = new int[tablepaths.size()];
+		synchronized (this) {
+			for (int i = 0; i < result.length; i++) {
+				SakerPath path = tablepaths.get(i);
+				Integer idx = indices.get(path);
+				if (idx == null) {
+					idx = paths.size();
+					paths.add(path);
+					indices.put(path, idx);
+				}
+				result[i] = idx;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Converts the indices of a different table to the indices of this table.
+	 */
+	public int[] intern(IncludePathTable table, int[] includes) {
+		if (table == this || includes == null) {
+			return includes;
+		}
+		return intern(table.getPaths(includes));
+	}
+
+	/**
+	 * Writes the paths of the table. Each path is prefix compressed based on the previous one, as the includes from
+	 * the same directories are usually next to each other.
+	 */
+	public synchronized void writeExternal(DataOutput out) throws IOException {
+		StateSerialUtils.writeVarInt(out, paths.size());
+		String prev = "";
+		for (SakerPath path : paths) {
+			String pathstr = path.toString();
+			StateSerialUtils.writePrefixCompressedString(out, prev, pathstr);
+			prev = pathstr;
+		}
+	}
+
+	public static IncludePathTable readExternal(DataInput in) throws IOException {
+		int size = StateSerialUtils.readVarInt(in);
+		List<SakerPath> paths = new ArrayList<>(size);
+		String prev = "";
+		for (int i = 0; i < size; i++) {
+			String pathstr = StateSerialUtils.readPrefixCompressedString(in, prev);
+			paths.add(SakerPath.valueOf(pathstr));
+			prev = pathstr;
+		}
+		return new IncludePathTable(paths);
+	}
+}
@@ -15,21 +15,28 @@
  */
 package saker.msvc.impl.ccompile;
 
+import java.io.Closeable;
 import java.io.Externalizable;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
+import java.io.OutputStream;
 import java.lang.reflect.Method;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.InvalidPathException;
-import java.nio.file.LinkOption;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -41,13 +48,18 @@ import java.util.Optional;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Supplier;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
+import java.util.zip.InflaterOutputStream;
 
 import saker.build.exception.FileMirroringUnavailableException;
+import saker.build.file.ByteArraySakerFile;
 import saker.build.file.DirectoryVisitPredicate;
 import saker.build.file.SakerDirectory;
 import saker.build.file.SakerFile;
@@ -85,16 +97,17 @@ import saker.build.thirdparty.saker.rmi.connection.RMIVariables;
 import saker.build.thirdparty.saker.rmi.io.RMIObjectInput;
 import saker.build.thirdparty.saker.rmi.io.RMIObjectOutput;
 import saker.build.thirdparty.saker.rmi.io.wrap.RMIWrapper;
-import saker.build.thirdparty.saker.util.ConcurrentPrependAccumulator;
 import saker.build.thirdparty.saker.util.ImmutableUtils;
 import saker.build.thirdparty.saker.util.ObjectUtils;
 import saker.build.thirdparty.saker.util.ReflectUtils;
 import saker.build.thirdparty.saker.util.function.Functionals;
 import saker.build.thirdparty.saker.util.function.LazySupplier;
 import saker.build.thirdparty.saker.util.io.ByteArrayRegion;
-import saker.build.thirdparty.saker.util.io.DataInputUnsyncByteArrayInputStream;
+import saker.build.thirdparty.saker.util.io.ByteSink;
+import saker.build.thirdparty.saker.util.io.ByteSource;
 import saker.build.thirdparty.saker.util.io.SerialUtils;
 import saker.build.thirdparty.saker.util.io.UnsyncByteArrayOutputStream;
+import saker.build.thirdparty.saker.util.thread.ThreadUtils;
 import saker.build.trace.BuildTrace;
 import saker.compiler.utils.api.CompilationIdentifier;
 import saker.msvc.api.ccompile.MSVCCompilerWorkerTaskOutput;
@@ -103,7 +116,7 @@ import saker.msvc.impl.ccompile.CompilerState.CompiledFileState;
 import saker.msvc.impl.ccompile.CompilerState.PrecompiledHeaderState;
 import saker.msvc.impl.option.CompilationPathOption;
 import saker.msvc.impl.option.FileCompilationPathOption;
-import saker.msvc.impl.util.CollectingProcessIOConsumer;
+import saker.msvc.impl.sdk.ResolvedSDKReferencesEnvironmentProperty;
 import saker.msvc.impl.util.InnerTaskMirrorHandler;
 import saker.msvc.impl.util.SystemArchitectureEnvironmentProperty;
 import saker.msvc.main.ccompile.MSVCCCompileTaskFactory;
@@ -128,6 +141,54 @@ public class MSVCCCompileWorkerTaskFactory
 			.makeImmutableNavigableSet(new String[] { CAPABILITY_INNER_TASKS_COMPUTATIONAL });
 
 	private static final String PRECOMPILED_HEADERS_SUBDIRECTORY_NAME = "pch";
+	private static final String BATCH_OUTPUT_SUBDIRECTORY_NAME = "batch";
+	private static final String REPRODUCIBLE_OUTPUT_SUBDIRECTORY_NAME = "repro";
+	private static final String CL_PARAMETER_REPRODUCIBLE = "/Brepro";
+	private static final String CL_PARAMETER_SHOW_INCLUDES = "/showIncludes";
+	private static final String CL_PARAMETER_SOURCE_DEPENDENCIES = "/sourceDependencies";
+
+	/**
+	 * The estimated memory of the compiler process in addition to the memory based on the input size.
+	 * <p>
+	 * It accounts for the executable and the libraries of the compiler, which are loaded regardless of the input.
+	 */
+	private static final long COMPILER_BASE_MEMORY_ESTIMATE = 32L * 1024 * 1024;
+	/**
+	 * The estimated compiler memory in bytes for each byte of the source and the included files.
+	 * <p>
+	 * The compiler keeps the parsed representation of the whole translation unit in memory, which is larger than the
+	 * source text by an order of magnitude, and the template instantiations and the generated code add to it. The
+	 * estimate is only used to limit the number of parallel compilations under the memory budget, so the factor is
+	 * chosen to rather overestimate the memory usage than to run the compiler out of memory. The out of memory
+	 * failures are recorded as requiring the whole budget regardless of the estimate.
+	 */
+	private static final long COMPILER_MEMORY_ESTIMATE_PER_INPUT_BYTE = 64;
+	/**
+	 * The cl error codes that signal that the compiler ran out of memory.
+	 */
+	private static final NavigableSet<String> CL_OUT_OF_MEMORY_ERROR_CODES = ImmutableUtils
+			.makeImmutableNavigableSet(new String[] { "C1002", "C1060", "C1076", "C3859" });
+	/**
+	 * The cl error codes of the failures that usually don't happen again when the compilation is retried.
+	 * <p>
+	 * Running out of heap space, contention on the program database files and some internal compiler errors are
+	 * caused by the load of the parallel compilations.
+	 */
+	private static final NavigableSet<String> CL_TRANSIENT_ERROR_CODES = ImmutableUtils
+			.makeImmutableNavigableSet(new String[] { "C1001", "C1002", "C1041", "C1060", "C1090" });
+	/**
+	 * The number of times a file is compiled again after a transient failure.
+	 */
+	private static final int MAX_TRANSIENT_FAILURE_RETRY_COUNT = 2;
+	/**
+	 * The delay in milliseconds before the first retry, doubled for each subsequent one.
+	 */
+	private static final long TRANSIENT_FAILURE_RETRY_DELAY_MILLIS = 500;
+	private static final String SDK_PROPERTY_VERSION = "version";
+	/**
+	 * The maximum number of work units that a clustered inner task takes from the coordinator at once.
+	 */
+	private static final int MAX_PREFETCH_COUNT = 16;
 
 	public static final Set<String> ALWAYS_PRESENT_CL_PARAMETERS = ImmutableUtils
 			.makeImmutableNavigableSet(new String[] {
@@ -152,19 +213,16 @@ public class MSVCCCompileWorkerTaskFactory
 
 			});
 
-	private static final Pattern CL_OUTPUT_ERROR_PATTERN = Pattern
-			.compile("(.+?)\\(([0-9]+)\\) ?: ?([a-zA-Z ]+)( C[0-9]+)?: (.+)");
-	private static final int CL_OUTPUT_ERROR_GROUP_FILE = 1;
-	private static final int CL_OUTPUT_ERROR_GROUP_LINENUM = 2;
-	private static final int CL_OUTPUT_ERROR_GROUP_TYPE = 3;
-	/**
-	 * optional
-	 */
-	private static final int CL_OUTPUT_ERROR_GROUP_CLERROR = 4;
-	private static final int CL_OUTPUT_ERROR_GROUP_DESC = 5;
-
 	private Set<FileCompilationConfiguration> files;
 	private NavigableMap<String, SDKDescription> sdkDescriptions;
+	private boolean batchCompilation;
+	private boolean ignoreHeaderFormattingChanges;
+	private boolean reproducibleObjects;
+	/**
+	 * The memory budget of the concurrently running compiler processes in a build environment in bytes. 0 if
+	 * unlimited.
+	 */
+	private long compilerMemoryBudget;
 
 	/**
 	 * For {@link Externalizable}.
@@ -176,6 +234,22 @@ public class MSVCCCompileWorkerTaskFactory
 		this.files = files;
 	}
 
+	public void setBatchCompilation(boolean batchCompilation) {
+		this.batchCompilation = batchCompilation;
+	}
+
+	public void setIgnoreHeaderFormattingChanges(boolean ignoreHeaderFormattingChanges) {
+		this.ignoreHeaderFormattingChanges = ignoreHeaderFormattingChanges;
+	}
+
+	public void setReproducibleObjects(boolean reproducibleObjects) {
+		this.reproducibleObjects = reproducibleObjects;
+	}
+
+	public void setCompilerMemoryBudget(long compilerMemoryBudget) {
+		this.compilerMemoryBudget = compilerMemoryBudget;
+	}
+
 	public void setSdkDescriptions(NavigableMap<String, SDKDescription> sdkdescriptions) {
 		ObjectUtils.requireComparator(sdkdescriptions, SDKSupportUtils.getSDKNameComparator());
 		this.sdkDescriptions = sdkdescriptions;
@@ -245,7 +319,11 @@ public class MSVCCCompileWorkerTaskFactory
 			compilerinnertasksdkdescriptions = SDKSupportUtils.pinSDKSelection(sdkDescriptions, resolvedsdks);
 		}
 
-		CompilerState prevoutput = taskcontext.getPreviousTaskOutput(CompilerState.class, CompilerState.class);
+		//the state is persisted as a delta to a base snapshot, so large projects don't rewrite every file state
+		SakerDirectory statedir = SakerPathFiles.requireBuildDirectory(taskcontext)
+				.getDirectoryCreate(MSVCCCompileTaskFactory.TASK_NAME + ".state").getDirectoryCreate(passidstr)
+				.getDirectoryCreate(architecture);
+		CompilerState prevoutput = loadPreviousBaseSnapshot(getPreviousCompilerState(taskcontext), statedir);
 		Map<RootFileProviderKey, NavigableMap<SakerPath, PrecompiledHeaderState>> nprecompiledheaders = new ConcurrentHashMap<>();
 
 		CompilerState nstate = new CompilerState();
@@ -256,21 +334,37 @@ public class MSVCCCompileWorkerTaskFactory
 		NavigableMap<String, CompiledFileState> stateexecutioncompiledfiles = new TreeMap<>();
 		List<FileCompilationConfiguration> compilationentries = new ArrayList<>(this.files);
 
+		NavigableMap<SakerPath, Long> knownincludefingerprints = null;
+		if (ignoreHeaderFormattingChanges) {
+			knownincludefingerprints = new TreeMap<>();
+			if (prevoutput != null) {
+				collectKnownIncludeFingerprints(taskcontext, prevoutput, knownincludefingerprints);
+			}
+		}
+
+		//the files that may include a newly added header, the object file cache is not used for them
+		NavigableSet<String> includeadditionaffectedoutfilenames = new TreeSet<>();
 		if (prevoutput != null) {
 			for (Entry<RootFileProviderKey, NavigableMap<SakerPath, PrecompiledHeaderState>> entry : prevoutput
 					.getPrecompiledHeaders().entrySet()) {
 				nprecompiledheaders.put(entry.getKey(), new ConcurrentSkipListMap<>(entry.getValue()));
 			}
 			filterUnchangedPreviousFiles(taskcontext, compilationentries, stateexecutioncompiledfiles, prevoutput,
-					nstate);
+					nstate, knownincludefingerprints, includeadditionaffectedoutfilenames);
 		}
 
+		IncludeDependencyCollector includecollector = new IncludeDependencyCollector(taskcontext,
+				knownincludefingerprints);
 		if (!compilationentries.isEmpty()) {
 			int sccount = compilationentries.size();
 			System.out.println("Compiling " + sccount + " source file" + (sccount == 1 ? "" : "s") + ".");
-			ConcurrentPrependAccumulator<FileCompilationConfiguration> fileaccumulator = new ConcurrentPrependAccumulator<>(
-					compilationentries);
-			CompilationDuplicationPredicate duplicationpredicate = new CompilationDuplicationPredicate(fileaccumulator);
+			//the batched object files are generated in a directory that depends on the other files of the batch
+			//the debug information contains the path of the object file, so they wouldn't be reproducible
+			boolean batch = batchCompilation && !reproducibleObjects;
+			CompilationWorkQueue workqueue = new CompilationWorkQueue(compilationentries,
+					prevoutput == null ? null : prevoutput.getExecutionCompiledFiles(),
+					includeadditionaffectedoutfilenames, batch, compilerMemoryBudget);
+			CompilationDuplicationPredicate duplicationpredicate = new CompilationDuplicationPredicate(workqueue);
 
 			InnerTaskExecutionParameters innertaskparams = new InnerTaskExecutionParameters();
 			if (envselector != null) {
@@ -278,143 +372,232 @@ public class MSVCCCompileWorkerTaskFactory
 			}
 			innertaskparams.setDuplicationPredicate(duplicationpredicate);
 
-			//XXX print the process output and the diagnostics in a locked way
-			WorkerTaskCoordinator coordinator = new WorkerTaskCoordinator() {
+			//the precompiled headers that were built by an inner task, so other cluster nodes can download them
+			SharedPrecompiledHeaderStorage sharedprecompiledheaders = new SharedPrecompiledHeaderStorage();
+			try {
 
-				@Override
-				public void headerPrecompiled(CompilerInnerTaskResult result, PathKey outputpathkey,
-						ContentDescriptor outputcontents) {
-					CompilationDependencyInfo depinfo = result.getDependencyInfo();
-					try {
-						taskcontext.getStandardOut().write(depinfo.getProcessOutput());
-					} catch (NullPointerException | IOException e) {
-						taskcontext.getTaskUtilities().reportIgnoredException(e);
-					}
-					SakerPath[] sourcefilepath = { null };
-					result.compilationEntry.getProperties().fileLocation.accept(new FileLocationVisitor() {
-						@Override
-						public void visit(ExecutionFileLocation loc) {
-							sourcefilepath[0] = loc.getPath();
+				//XXX print the process output and the diagnostics in a locked way
+				WorkerTaskCoordinator coordinator = new WorkerTaskCoordinator() {
+
+					@Override
+					public void headerPrecompiled(CompilerInnerTaskResult result, PathKey outputpathkey,
+							ContentDescriptor outputcontents) {
+						CompilationDependencyInfo depinfo = result.getDependencyInfo();
+						try {
+							taskcontext.getStandardOut().write(depinfo.getProcessOutput());
+						} catch (NullPointerException | IOException e) {
+							taskcontext.getTaskUtilities().reportIgnoredException(e);
 						}
-						//TODO handle local file location
-					});
-					printDiagnostics(taskcontext, sourcefilepath[0], depinfo.getDiagnostics());
-					nprecompiledheaders
-							.computeIfAbsent(outputpathkey.getFileProviderKey(),
-									Functionals.concurrentSkipListMapComputer())
-							.put(outputpathkey.getPath(),
-									new PrecompiledHeaderState(depinfo.getInputContents(), outputcontents,
-											result.getCompilationEntry().getProperties(), depinfo.getIncludes(),
-											depinfo.getDiagnostics()));
-				}
+						SakerPath[] sourcefilepath = { null };
+						result.compilationEntry.getProperties().fileLocation.accept(new FileLocationVisitor() {
+							@Override
+							public void visit(ExecutionFileLocation loc) {
+								sourcefilepath[0] = loc.getPath();
+							}
+							//TODO handle local file location
+						});
+						printDiagnostics(taskcontext, sourcefilepath[0], depinfo.getDiagnostics());
+						nprecompiledheaders
+								.computeIfAbsent(outputpathkey.getFileProviderKey(),
+										Functionals.concurrentSkipListMapComputer())
+								.put(outputpathkey.getPath(),
+										new PrecompiledHeaderState(depinfo.getInputContents(), outputcontents,
+												result.getCompilationEntry().getProperties(), depinfo.getIncludes(),
+												depinfo.getDiagnostics()));
+					}
 
-				@Override
-				public NavigableMap<SakerPath, PrecompiledHeaderState> getPrecompiledHeaderStates(
-						RootFileProviderKey fpk) {
-					return nprecompiledheaders.get(fpk);
-				}
+					@Override
+					public void precompiledHeaderReused(PathKey outputpathkey, PrecompiledHeaderState state) {
+						nprecompiledheaders
+								.computeIfAbsent(outputpathkey.getFileProviderKey(),
+										Functionals.concurrentSkipListMapComputer())
+								.put(outputpathkey.getPath(), state);
+					}
 
-				@Override
-				public FileCompilationConfiguration take() {
-					if (duplicationpredicate.isAborted()) {
-						return null;
+					@Override
+					public void publishPrecompiledHeader(FileCompilationConfiguration pchconfig,
+							SharedPrecompiledHeader header, ByteSource compressedheader, ByteSource compressedobject)
+							throws IOException {
+						sharedprecompiledheaders.publish(pchconfig, header, compressedheader, compressedobject);
 					}
-					return fileaccumulator.take();
-				}
 
-				@Override
-				public void setAborted() {
-					duplicationpredicate.setAborted();
-				}
-			};
-			SourceCompilerInnerTaskFactory innertask = new SourceCompilerInnerTaskFactory(coordinator, outdirpath,
-					architecture, compilerinnertasksdkdescriptions, envselector, outdir);
-			InnerTaskResults<CompilerInnerTaskResult> innertaskresults = taskcontext.startInnerTask(innertask,
-					innertaskparams);
-
-			for (InnerTaskResultHolder<CompilerInnerTaskResult> resultholder; (resultholder = innertaskresults
-					.getNext()) != null;) {
-				CompilerInnerTaskResult compilationresult = resultholder.getResult();
-				if (compilationresult == null) {
-					//may be if the inner task doesn't receive a compilation entry as there are no more
-					//and returns prematurely
-					continue;
-				}
-				FileCompilationConfiguration compilationentry = compilationresult.getCompilationEntry();
-				CompilationDependencyInfo depinfo = compilationresult.getDependencyInfo();
-				taskcontext.getStandardOut().write(depinfo.getProcessOutput());
-				if (!compilationresult.isSuccessful()) {
-					coordinator.setAborted();
-				}
-				compilationentry.getProperties().getFileLocation().accept(new FileLocationVisitor() {
 					@Override
-					public void visit(ExecutionFileLocation loc) {
-						CompiledFileState compiledfilestate = new CompiledFileState(depinfo.getInputContents(),
-								compilationentry);
-						compiledfilestate.setDiagnostics(depinfo.getDiagnostics());
-						compiledfilestate.setIncludes(depinfo.getIncludes());
-						compiledfilestate.setFailedIncludes(depinfo.getFailedIncludes());
-						compiledfilestate.setSuccessful(compilationresult.isSuccessful());
-						if (compilationresult.isSuccessful()) {
-							String outputobjectfilename = compilationresult.getOutputObjectName();
-							if (outputobjectfilename != null) {
-								SakerPath outputpath = outdirpath.resolve(outputobjectfilename);
-								SakerFile outfile = taskcontext.getTaskUtilities().resolveFileAtPath(outputpath);
-								if (outfile == null) {
-									throw ObjectUtils.sneakyThrow(new FileNotFoundException(
-											"Output object file was not found: " + outdirpath));
-								}
-								ContentDescriptor outcontentdescriptor = outfile.getContentDescriptor();
+					public SharedPrecompiledHeader downloadSharedPrecompiledHeader(
+							FileCompilationConfiguration pchconfig, String fingerprint, ByteSink compressedheaderout,
+							ByteSink compressedobjectout) throws IOException {
+						return sharedprecompiledheaders.download(pchconfig, fingerprint, compressedheaderout,
+								compressedobjectout);
+					}
 
-								compiledfilestate.setObjectOutputContents(outputpath, outcontentdescriptor);
-							}
+					@Override
+					public NavigableMap<SakerPath, PrecompiledHeaderState> getPrecompiledHeaderStates(
+							RootFileProviderKey fpk) {
+						return nprecompiledheaders.get(fpk);
+					}
+
+					@Override
+					public List<CompilationWorkUnit> take(String calleridentity, int parallelism, int max,
+							boolean previousstates) {
+						if (duplicationpredicate.isAborted()) {
+							return Collections.emptyList();
 						}
-						printDiagnostics(taskcontext, loc.getPath(), compiledfilestate);
-						stateexecutioncompiledfiles.put(compilationentry.getOutFileName(), compiledfilestate);
+						return workqueue.take(calleridentity, parallelism, max, previousstates);
 					}
 
 					@Override
-					public void visit(LocalFileLocation loc) {
-						// TODO handle local input file result
-						FileLocationVisitor.super.visit(loc);
+					public void retry(FileCompilationConfiguration file, int retrycount, long delaymillis) {
+						workqueue.retry(file, retrycount, delaymillis);
 					}
-				});
+
+					@Override
+					public boolean workUnitStarted(String calleridentity, CompilationWorkUnit unit) {
+						return workqueue.started(calleridentity, unit);
+					}
+
+					@Override
+					public void workUnitFinished(String calleridentity, CompilationWorkUnit unit) {
+						workqueue.finished(calleridentity, unit);
+					}
+
+					@Override
+					public void precompiledHeaderFinished(FileCompilationConfiguration pchconfig, String calleridentity,
+							boolean successful) {
+						workqueue.precompiledHeaderFinished(pchconfig, calleridentity, successful);
+					}
+
+					@Override
+					public void setAborted() {
+						duplicationpredicate.setAborted();
+						//wake up the inner tasks that wait for a precompiled header
+						workqueue.abort();
+					}
+				};
+				SourceCompilerInnerTaskFactory innertask = new SourceCompilerInnerTaskFactory(coordinator, outdirpath,
+						architecture, compilerinnertasksdkdescriptions, envselector, outdir, reproducibleObjects,
+						compilerMemoryBudget > 0);
+				InnerTaskResults<CompilationWorkUnitResult> innertaskresults = taskcontext.startInnerTask(innertask,
+						innertaskparams);
+
+				//collect the includes of the unchanged files while the compilation is running
+				includecollector.addAll(stateexecutioncompiledfiles.values());
+
+				int objectcachehits = 0;
+				int objectcachemisses = 0;
+				int includepathcachehits = 0;
+				int includepathcachemisses = 0;
+				NavigableMap<String, Integer> retrycauses = new TreeMap<>();
+				for (InnerTaskResultHolder<CompilationWorkUnitResult> resultholder; (resultholder = innertaskresults
+						.getNext()) != null;) {
+					CompilationWorkUnitResult unitresult;
+					try {
+						unitresult = resultholder.getResult();
+					} catch (Throwable e) {
+						//the inner task may have been creating a precompiled header that the others wait for
+						coordinator.setAborted();
+						throw e;
+					}
+					if (unitresult == null) {
+						//may be if the inner task doesn't receive a compilation entry as there are no more
+						//and returns prematurely
+						continue;
+					}
+					objectcachehits += unitresult.objectCacheHits;
+					objectcachemisses += unitresult.objectCacheMisses;
+					includepathcachehits += unitresult.includePathCacheHits;
+					includepathcachemisses += unitresult.includePathCacheMisses;
+					if (unitresult.transientFailureRetries != null) {
+						for (Entry<String, Integer> entry : unitresult.transientFailureRetries.entrySet()) {
+							retrycauses.merge(entry.getKey(), entry.getValue(), Integer::sum);
+						}
+					}
+					for (CompilerInnerTaskResult compilationresult : unitresult.getResults()) {
+						FileCompilationConfiguration compilationentry = compilationresult.getCompilationEntry();
+						CompilationDependencyInfo depinfo = compilationresult.getDependencyInfo();
+						taskcontext.getStandardOut().write(depinfo.getProcessOutput());
+						if (!compilationresult.isSuccessful()) {
+							coordinator.setAborted();
+						}
+						compilationentry.getProperties().getFileLocation().accept(new FileLocationVisitor() {
+							@Override
+							public void visit(ExecutionFileLocation loc) {
+								CompiledFileState compiledfilestate = new CompiledFileState(depinfo.getInputContents(),
+										compilationentry, nstate.getIncludePathTable());
+								compiledfilestate.setDiagnostics(depinfo.getDiagnostics());
+								compiledfilestate.setIncludes(depinfo.getIncludes());
+								compiledfilestate.setFailedIncludes(depinfo.getFailedIncludes());
+								compiledfilestate.setSuccessful(compilationresult.isSuccessful());
+								compiledfilestate.setCompilationDuration(compilationresult.getCompilationDuration());
+								compiledfilestate.setCompilationMemory(compilationresult.getCompilationMemory());
+								if (compilationresult.isSuccessful()) {
+									String outputobjectfilename = compilationresult.getOutputObjectName();
+									if (outputobjectfilename != null) {
+										SakerPath outputpath = outdirpath.resolve(outputobjectfilename);
+										SakerFile outfile = taskcontext.getTaskUtilities().resolveFileAtPath(outputpath);
+										if (outfile == null) {
+											throw ObjectUtils.sneakyThrow(new FileNotFoundException(
+													"Output object file was not found: " + outdirpath));
+										}
+										ContentDescriptor outcontentdescriptor = outfile.getContentDescriptor();
+
+										compiledfilestate.setObjectOutputContents(outputpath, outcontentdescriptor);
+									}
+								}
+								printDiagnostics(taskcontext, loc.getPath(), compiledfilestate);
+								stateexecutioncompiledfiles.put(compilationentry.getOutFileName(), compiledfilestate);
+								includecollector.add(compiledfilestate);
+							}
+
+							@Override
+							public void visit(LocalFileLocation loc) {
+								// TODO handle local input file result
+								FileLocationVisitor.super.visit(loc);
+							}
+						});
+					}
+				}
+				if (objectcachehits + objectcachemisses > 0) {
+					if (saker.build.meta.Versions.VERSION_FULL_COMPOUND >= 8_006) {
+						LinkedHashMap<Object, Object> values = new LinkedHashMap<>();
+						values.put("Object cache hits", objectcachehits);
+						values.put("Object cache misses", objectcachemisses);
+						BuildTrace.setValues(values, BuildTrace.VALUE_CATEGORY_TASK);
+					}
+				}
+				if (includepathcachehits + includepathcachemisses > 0) {
+					if (saker.build.meta.Versions.VERSION_FULL_COMPOUND >= 8_006) {
+						LinkedHashMap<Object, Object> values = new LinkedHashMap<>();
+						values.put("Include path cache hits", includepathcachehits);
+						values.put("Include path cache misses", includepathcachemisses);
+						BuildTrace.setValues(values, BuildTrace.VALUE_CATEGORY_TASK);
+					}
+				}
+				if (!retrycauses.isEmpty()) {
+					if (saker.build.meta.Versions.VERSION_FULL_COMPOUND >= 8_006) {
+						int retrycount = 0;
+						for (Integer count : retrycauses.values()) {
+							retrycount += count;
+						}
+						LinkedHashMap<Object, Object> values = new LinkedHashMap<>();
+						values.put("Compilation retries", retrycount);
+						values.put("Compilation retry causes", retrycauses);
+						BuildTrace.setValues(values, BuildTrace.VALUE_CATEGORY_TASK);
+					}
+				}
+			} finally {
+				sharedprecompiledheaders.close();
 			}
+		} else {
+			includecollector.addAll(stateexecutioncompiledfiles.values());
 		}
 
 		nstate.setExecutionCompiledFiles(stateexecutioncompiledfiles);
 
-		NavigableSet<SakerPath> allreferencedincludes = nstate.getAllReferencedIncludes();
-		NavigableSet<SakerPath> allfailedincludes = nstate.getAllReferencedFailedIncludes();
-		NavigableMap<SakerPath, ContentDescriptor> includecontentdescriptors = new TreeMap<>();
-		NavigableSet<String> includedfilenames = new TreeSet<>();
-		for (SakerPath includepath : allreferencedincludes) {
-			includedfilenames.add(includepath.getFileName());
-			//XXX use a more efficient resolveFileAtPath algorithm
-			SakerFile includefile = taskcontext.getTaskUtilities().resolveFileAtPath(includepath);
-			if (includefile == null) {
-				SakerLog.error().verbose().println("Included file no longer found: " + includepath);
-				//report an IS_FILE dependency nonetheless, as that will trigger the reinvocation of the
-				//compilation the next time.
-				//this scenario should not happen at all generally.
-				includecontentdescriptors.put(includepath, CommonTaskContentDescriptors.IS_FILE);
-				continue;
-			}
-			includecontentdescriptors.put(includepath, includefile.getContentDescriptor());
-		}
-		for (SakerPath includepath : allfailedincludes) {
-			ContentDescriptor prev = includecontentdescriptors.putIfAbsent(includepath,
-					CommonTaskContentDescriptors.IS_NOT_FILE);
-			if (prev != null) {
-				SakerLog.error().verbose().println("Header referencing concurrency error. Referenced header: "
-						+ includepath
-						+ " had transient presence for compiled sources. It is recommended to clean the project.");
-				if (TestFlag.ENABLED) {
-					//this shouldn't happen during testing, so better throw an exception
-					throw new AssertionError(
-							"header concurrency error: " + includecontentdescriptors + " with " + prev);
-				}
-			}
+		NavigableMap<SakerPath, ContentDescriptor> includecontentdescriptors = includecollector
+				.getIncludeContentDescriptors();
+		NavigableSet<String> includedfilenames = includecollector.getIncludedFileNames();
+		NavigableMap<SakerPath, Long> includefingerprints = includecollector.getTokenFingerprints();
+		if (includefingerprints != null) {
+			nstate.setIncludeTokenFingerprints(ImmutableUtils.unmodifiableNavigableMap(includefingerprints));
 		}
 
 		NavigableSet<SakerPath> compiledfileparentdirectorypaths = new TreeSet<>();
@@ -441,6 +624,8 @@ public class MSVCCCompileWorkerTaskFactory
 			reportAdditionDontCareDependenciesForFileNamesIncludeDirectory(taskcontext, includecontentdescriptors,
 					includedfilenames, includedirpath);
 		}
+		//the include directories are usually the same for most of the files, only scan them once
+		Set<SakerPath> reportedincludedirpaths = new TreeSet<>(compiledfileparentdirectorypaths);
 		for (CompiledFileState filestate : stateexecutioncompiledfiles.values()) {
 			FileCompilationConfiguration compilationconfig = filestate.getCompilationConfiguration();
 			Collection<CompilationPathOption> includedirs = compilationconfig.getProperties().getIncludeDirectories();
@@ -453,7 +638,7 @@ public class MSVCCCompileWorkerTaskFactory
 								@Override
 								public void visit(ExecutionFileLocation loc) {
 									SakerPath includedirexecutionpath = loc.getPath();
-									if (compiledfileparentdirectorypaths.contains(includedirexecutionpath)) {
+									if (!reportedincludedirpaths.add(includedirexecutionpath)) {
 										//already reported
 										return;
 									}
@@ -484,6 +669,21 @@ public class MSVCCCompileWorkerTaskFactory
 				inputexecutionfilecontents);
 		taskcontext.getTaskUtilities().reportOutputFileDependency(CompilationFileTags.OBJECT_FILE,
 				nstate.getOutputObjectFileContentDescriptors());
+		byte[] basesnapshotcontents = nstate.setupBaseSnapshot(prevoutput, statedir.getSakerPath());
+		SakerPath basesnapshotpath = nstate.getBaseSnapshotPath();
+		if (basesnapshotpath != null) {
+			SakerFile basesnapshotfile;
+			if (basesnapshotcontents != null) {
+				//the previous snapshots are removed in the next build, after this state is committed
+				basesnapshotfile = new ByteArraySakerFile(basesnapshotpath.getFileName(), basesnapshotcontents);
+				statedir.add(basesnapshotfile);
+				basesnapshotfile.synchronize();
+			} else {
+				basesnapshotfile = statedir.get(basesnapshotpath.getFileName());
+			}
+			taskcontext.getTaskUtilities().reportOutputFileDependency(CompilationFileTags.STATE_SNAPSHOT,
+					basesnapshotfile);
+		}
 		taskcontext.setTaskOutput(CompilerState.class, nstate);
 
 		//remove files which are not part of the output object files
@@ -518,20 +718,25 @@ public class MSVCCCompileWorkerTaskFactory
 	}
 
 	private static final class CompilationDuplicationPredicate implements TaskDuplicationPredicate {
-		private final ConcurrentPrependAccumulator<FileCompilationConfiguration> compilationFiles;
-		private boolean aborted;
+		/**
+		 * The maximum time to wait for the units to be available before an inner task is started to check them.
+		 */
+		private static final long WORK_WAIT_TIMEOUT_MILLIS = 1000;
 
-		private CompilationDuplicationPredicate(
-				ConcurrentPrependAccumulator<FileCompilationConfiguration> fileaccumulator) {
-			this.compilationFiles = fileaccumulator;
+		private final CompilationWorkQueue compilationFiles;
+		private volatile boolean aborted;
+
+		private CompilationDuplicationPredicate(CompilationWorkQueue workqueue) {
+			this.compilationFiles = workqueue;
 		}
 
 		@Override
 		public boolean shouldInvokeOnceMore() throws RuntimeException {
-			if (compilationFiles.isEmpty()) {
+			if (aborted) {
 				return false;
 			}
-			return !aborted;
+			//wait here instead of in the inner tasks, so they don't hold a computation token while waiting
+			return compilationFiles.awaitWork(WORK_WAIT_TIMEOUT_MILLIS) && !aborted;
 		}
 
 		public void setAborted() {
@@ -545,6 +750,10 @@ public class MSVCCCompileWorkerTaskFactory
 	}
 
 	private static final class NothingKeepKnownDirectoryVisitPredicate implements DirectoryVisitPredicate {
+		private static final NavigableSet<String> KEEP_SUBDIRECTORY_NAMES = ImmutableUtils
+				.makeImmutableNavigableSet(new String[] { PRECOMPILED_HEADERS_SUBDIRECTORY_NAME,
+						BATCH_OUTPUT_SUBDIRECTORY_NAME, REPRODUCIBLE_OUTPUT_SUBDIRECTORY_NAME });
+
 		@Override
 		public DirectoryVisitPredicate directoryVisitor(String arg0, SakerDirectory arg1) {
 			return null;
@@ -562,8 +771,9 @@ public class MSVCCCompileWorkerTaskFactory
 
 		@Override
 		public NavigableSet<String> getSynchronizeFilesToKeep() {
-			//don't remove the pch subdir
-			return ImmutableUtils.singletonNavigableSet(PRECOMPILED_HEADERS_SUBDIRECTORY_NAME);
+			//don't remove the subdirs that are used by the compilation
+			//the batch and repro subdirs are emptied after the compilation of their files
+			return KEEP_SUBDIRECTORY_NAMES;
 		}
 	}
 
@@ -596,7 +806,8 @@ public class MSVCCCompileWorkerTaskFactory
 	private static void filterUnchangedPreviousFiles(TaskContext taskcontext,
 			List<FileCompilationConfiguration> compilationentries,
 			NavigableMap<String, CompiledFileState> stateexecutioncompiledfiles, CompilerState prevoutput,
-			CompilerState nstate) {
+			CompilerState nstate, NavigableMap<SakerPath, Long> knownincludefingerprints,
+			NavigableSet<String> includeadditionaffectedoutfilenames) {
 		//XXX sorted iteration for equals?
 		if (!Objects.equals(nstate.getSdkDescriptions(), prevoutput.getSdkDescriptions())) {
 			//different toolchains used, recompile all
@@ -621,6 +832,16 @@ public class MSVCCCompileWorkerTaskFactory
 
 		NavigableSet<SakerPath> includechanges = new TreeSet<>();
 		collectFileDeltaPaths(inputfilechanges.getFileDeltasWithTag(CompilationFileTags.INCLUDE_FILE), includechanges);
+		NavigableMap<SakerPath, Long> previncludefingerprints = prevoutput.getIncludeTokenFingerprints();
+		if (knownincludefingerprints != null && previncludefingerprints != null) {
+			//the headers with only comment or whitespace changes don't cause recompilation
+			//this also applies to the precompiled headers, as their includes are checked against the same set below
+			//the line breaks are part of the fingerprint, so __LINE__ and the debug line info can't become stale
+			includechanges.removeIf(includepath -> {
+				Long prevfp = previncludefingerprints.get(includepath);
+				return prevfp != null && prevfp.equals(knownincludefingerprints.get(includepath));
+			});
+		}
 
 		//compare using ignore-case, as if an include file was not found, we should trigger the recompilation
 		//if a file with different casing is added
@@ -629,6 +850,16 @@ public class MSVCCCompileWorkerTaskFactory
 			includeadditionfilenames.add(adddelta.getFilePath().getFileName());
 		}
 
+		//only look up the files that reference the changed headers instead of checking the includes of all files
+		NavigableSet<String> includeaffectedoutfilenames = prevoutput
+				.getIncludeChangeAffectedOutFileNames(includechanges, includeadditionfilenames);
+		if (!includeadditionfilenames.isEmpty()) {
+			//the object file cache entries are keyed by the contents of the previously included headers
+			//an added header may be included instead of them, so the cache is not used for these files
+			includeadditionaffectedoutfilenames.addAll(prevoutput
+					.getIncludeChangeAffectedOutFileNames(Collections.emptySet(), includeadditionfilenames));
+		}
+
 		boolean[] hadfailure = { false };
 
 		NavigableMap<String, CompiledFileState> prevcompiledfiles = new TreeMap<>(
@@ -652,11 +883,7 @@ public class MSVCCCompileWorkerTaskFactory
 				}
 			}
 
-			if (isAnyIncludeRelatedChange(includechanges, includeadditionfilenames, prevfilestate.getIncludes())) {
-				continue;
-			}
-			if (isAnyIncludeRelatedChange(includechanges, includeadditionfilenames,
-					prevfilestate.getFailedIncludes())) {
+			if (includeaffectedoutfilenames.contains(outfilename)) {
 				continue;
 			}
 
@@ -689,6 +916,8 @@ public class MSVCCCompileWorkerTaskFactory
 		}
 
 		//check any deltas for the precompiled headers
+		//the headers with comment or whitespace only changes were removed from includechanges, so they don't
+		//cause the precompiled headers to be rebuilt either
 		for (NavigableMap<SakerPath, PrecompiledHeaderState> pchs : nstate.getPrecompiledHeaders().values()) {
 			for (Iterator<PrecompiledHeaderState> it = pchs.values().iterator(); it.hasNext();) {
 				PrecompiledHeaderState pchstate = it.next();
@@ -718,6 +947,90 @@ public class MSVCCCompileWorkerTaskFactory
 		}
 	}
 
+	/**
+	 * Gets the previous output of the task.
+	 * <p>
+	 * If the state cannot be read (e.g. it was written in an unsupported format), it is treated as if there was no
+	 * previous state, and all files are recompiled.
+	 */
+	private static CompilerState getPreviousCompilerState(TaskContext taskcontext) {
+		try {
+			return taskcontext.getPreviousTaskOutput(CompilerState.class, CompilerState.class);
+		} catch (Exception e) {
+			SakerLog.warning().verbose().println("Failed to read previous compiler state: " + e);
+			return null;
+		}
+	}
+
+	/**
+	 * Loads the base snapshot of the previous state, and removes the other snapshots in the state directory.
+	 * <p>
+	 * The previous state is the last committed output of the task, so the snapshots that it doesn't reference are no
+	 * longer needed.
+	 *
+	 * @return The previous state, or <code>null</code> if it is not available or its base snapshot couldn't be
+	 *             loaded. In this case all files are recompiled.
+	 */
+	private static CompilerState loadPreviousBaseSnapshot(CompilerState prevoutput, SakerDirectory statedir)
+			throws IOException {
+		SakerPath basepath = prevoutput == null ? null : prevoutput.getBaseSnapshotPath();
+		String basefilename = basepath == null || !statedir.getSakerPath().equals(basepath.getParent()) ? null
+				: basepath.getFileName();
+		boolean removedsnapshot = false;
+		for (SakerFile f : new ArrayList<>(statedir.getChildren().values())) {
+			if (!f.getName().equals(basefilename)) {
+				f.remove();
+				removedsnapshot = true;
+			}
+		}
+		if (removedsnapshot) {
+			statedir.synchronize();
+		}
+		if (prevoutput == null || prevoutput.getPendingBaseSnapshotPath() == null) {
+			return prevoutput;
+		}
+		SakerFile basefile = basefilename == null ? null : statedir.get(basefilename);
+		if (basefile == null) {
+			SakerLog.warning().verbose().println("Compiler state base snapshot not found: " + basepath);
+			return null;
+		}
+		try (InputStream in = basefile.openInputStream()) {
+			prevoutput.loadBaseSnapshot(in);
+		} catch (IOException | ClassNotFoundException | RuntimeException e) {
+			SakerLog.warning().verbose().println("Failed to load compiler state base snapshot: " + basepath + " ("
+					+ e + ")");
+			return null;
+		}
+		return prevoutput;
+	}
+
+	private static void collectKnownIncludeFingerprints(TaskContext taskcontext, CompilerState prevoutput,
+			NavigableMap<SakerPath, Long> result) {
+		NavigableMap<SakerPath, Long> prevfingerprints = prevoutput.getIncludeTokenFingerprints();
+		if (ObjectUtils.isNullOrEmpty(prevfingerprints)) {
+			return;
+		}
+		NavigableSet<SakerPath> includechanges = new TreeSet<>();
+		collectFileDeltaPaths(taskcontext.getFileDeltas(DeltaType.INPUT_FILE_CHANGE)
+				.getFileDeltasWithTag(CompilationFileTags.INCLUDE_FILE), includechanges);
+		for (Entry<SakerPath, Long> entry : prevfingerprints.entrySet()) {
+			SakerPath includepath = entry.getKey();
+			if (!includechanges.contains(includepath)) {
+				result.put(includepath, entry.getValue());
+				continue;
+			}
+			SakerFile includefile = taskcontext.getTaskUtilities().resolveFileAtPath(includepath);
+			if (includefile == null) {
+				continue;
+			}
+			try {
+				result.put(includepath, HeaderTokenFingerprint.compute(includefile.getBytes()));
+			} catch (IOException e) {
+				//the file is considered to be changed
+			}
+		}
+	}
+
 	private static boolean isAnyIncludeRelatedChange(NavigableSet<SakerPath> includechanges,
 			NavigableSet<String> includeadditionfilenames, NavigableSet<SakerPath> prevstateincludes) {
 		if (ObjectUtils.isNullOrEmpty(prevstateincludes)) {
@@ -753,7 +1066,14 @@ public class MSVCCCompileWorkerTaskFactory
 	}
 
 	private static void addAlwaysPresentParameters(List<String> commands) {
+		addAlwaysPresentParameters(commands, true);
+	}
+
+	private static void addAlwaysPresentParameters(List<String> commands, boolean showincludes) {
 		for (String p : ALWAYS_PRESENT_CL_PARAMETERS) {
+			if (!showincludes && CL_PARAMETER_SHOW_INCLUDES.equals(p)) {
+				continue;
+			}
 			if (!commands.contains(p)) {
 				//the simple parameters might've added it already
 				commands.add(p);
@@ -765,6 +1085,10 @@ public class MSVCCCompileWorkerTaskFactory
 	public void writeExternal(ObjectOutput out) throws IOException {
 		SerialUtils.writeExternalCollection(out, files);
 		SerialUtils.writeExternalMap(out, sdkDescriptions);
+		out.writeBoolean(batchCompilation);
+		out.writeBoolean(ignoreHeaderFormattingChanges);
+		out.writeBoolean(reproducibleObjects);
+		out.writeLong(compilerMemoryBudget);
 	}
 
 	@Override
@@ -772,13 +1096,21 @@ public class MSVCCCompileWorkerTaskFactory
 		files = SerialUtils.readExternalImmutableLinkedHashSet(in);
 		sdkDescriptions = SerialUtils.readExternalSortedImmutableNavigableMap(in,
 				SDKSupportUtils.getSDKNameComparator());
+		batchCompilation = in.readBoolean();
+		ignoreHeaderFormattingChanges = in.readBoolean();
+		reproducibleObjects = in.readBoolean();
+		compilerMemoryBudget = in.readLong();
 	}
 
 	@Override
 	public int hashCode() {
 		final int prime = 31;
 		int result = 1;
+		result = prime * result + (batchCompilation ? 1231 : 1237);
+		result = prime * result + (int) (compilerMemoryBudget ^ (compilerMemoryBudget >>> 32));
 		result = prime * result + ((files == null) ? 0 : files.hashCode());
+		result = prime * result + (ignoreHeaderFormattingChanges ? 1231 : 1237);
+		result = prime * result + (reproducibleObjects ? 1231 : 1237);
 		result = prime * result + ((sdkDescriptions == null) ? 0 : sdkDescriptions.hashCode());
 		return result;
 	}
@@ -792,6 +1124,14 @@ public class MSVCCCompileWorkerTaskFactory
 		if (getClass() != obj.getClass())
 			return false;
 		MSVCCCompileWorkerTaskFactory other = (MSVCCCompileWorkerTaskFactory) obj;
+		if (batchCompilation != other.batchCompilation)
+			return false;
+		if (compilerMemoryBudget != other.compilerMemoryBudget)
+			return false;
+		if (ignoreHeaderFormattingChanges != other.ignoreHeaderFormattingChanges)
+			return false;
+		if (reproducibleObjects != other.reproducibleObjects)
+			return false;
 		if (files == null) {
 			if (other.files != null)
 				return false;
@@ -821,6 +1161,164 @@ public class MSVCCCompileWorkerTaskFactory
 		}
 	}
 
+	public static class SharedPrecompiledHeader implements Externalizable {
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * Identifies the environment and the command line that the header was built with.
+		 */
+		protected String fingerprint;
+		protected NavigableSet<SakerPath> includes;
+		protected NavigableSet<CompilerDiagnostic> diagnostics;
+
+		/**
+		 * For {@link Externalizable}.
+		 */
+		public SharedPrecompiledHeader() {
+		}
+
+		public SharedPrecompiledHeader(String fingerprint, NavigableSet<SakerPath> includes,
+				NavigableSet<CompilerDiagnostic> diagnostics) {
+			this.fingerprint = fingerprint;
+			this.includes = includes;
+			this.diagnostics = diagnostics;
+		}
+
+		@Override
+		public void writeExternal(ObjectOutput out) throws IOException {
+			out.writeObject(fingerprint);
+			SerialUtils.writeExternalCollection(out, includes);
+			SerialUtils.writeExternalCollection(out, diagnostics);
+		}
+
+		@Override
+		public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+			fingerprint = (String) in.readObject();
+			includes = SerialUtils.readExternalSortedImmutableNavigableSet(in);
+			diagnostics = SerialUtils.readExternalSortedImmutableNavigableSet(in);
+		}
+	}
+
+	/**
+	 * Stores the precompiled headers that were built by the inner tasks, so other cluster nodes can download them.
+	 * <p>
+	 * The compressed files are kept in a temporary directory instead of the memory of the coordinator, and they are
+	 * streamed from and to the inner tasks. The directory is deleted when the compilation finishes.
+	 */
+	private static final class SharedPrecompiledHeaderStorage implements Closeable {
+		private final ConcurrentHashMap<FileCompilationConfiguration, StoredHeader> headers = new ConcurrentHashMap<>();
+		private final AtomicInteger fileCounter = new AtomicInteger();
+		private Path directory;
+
+		public void publish(FileCompilationConfiguration pchconfig, SharedPrecompiledHeader header,
+				ByteSource compressedheader, ByteSource compressedobject) throws IOException {
+			if (headers.containsKey(pchconfig)) {
+				//already published by an other inner task
+				return;
+			}
+			Path dir = getDirectory();
+			int id = fileCounter.incrementAndGet();
+			Path headerpath = dir.resolve(id + ".pch");
+			Path objectpath = dir.resolve(id + ".obj");
+			try {
+				writeFile(compressedheader, headerpath);
+				writeFile(compressedobject, objectpath);
+				if (headers.putIfAbsent(pchconfig, new StoredHeader(header, headerpath, objectpath)) == null) {
+					return;
+				}
+				//published concurrently
+			} catch (IOException | RuntimeException e) {
+				deleteFiles(headerpath, objectpath);
+				throw e;
+			}
+			deleteFiles(headerpath, objectpath);
+		}
+
+		public SharedPrecompiledHeader download(FileCompilationConfiguration pchconfig, String fingerprint,
+				ByteSink compressedheaderout, ByteSink compressedobjectout) throws IOException {
+			StoredHeader stored = headers.get(pchconfig);
+			if (stored == null || !stored.header.fingerprint.equals(fingerprint)) {
+				//built in a different environment, the caller needs to build it for itself
+				return null;
+			}
+			Files.copy(stored.headerPath, ByteSink.toOutputStream(compressedheaderout));
+			Files.copy(stored.objectPath, ByteSink.toOutputStream(compressedobjectout));
+			return stored.header;
+		}
+
+		@Override
+		public synchronized void close() throws IOException {
+			if (directory == null) {
+				return;
+			}
+			try (DirectoryStream<Path> ds = Files.newDirectoryStream(directory)) {
+				for (Path p : ds) {
+					Files.deleteIfExists(p);
+				}
+			}
+			Files.deleteIfExists(directory);
+			directory = null;
+		}
+
+		private synchronized Path getDirectory() throws IOException {
+			if (directory == null) {
+				directory = Files.createTempDirectory("saker.msvc.pch-");
+			}
+			return directory;
+		}
+
+		private static void writeFile(ByteSource source, Path path) throws IOException {
+			try (OutputStream out = Files.newOutputStream(path)) {
+				source.writeTo(ByteSink.valueOf(out));
+			}
+		}
+
+		private static void deleteFiles(Path... paths) throws IOException {
+			for (Path p : paths) {
+				Files.deleteIfExists(p);
+			}
+		}
+
+		private static final class StoredHeader {
+			protected final SharedPrecompiledHeader header;
+			protected final Path headerPath;
+			protected final Path objectPath;
+
+			public StoredHeader(SharedPrecompiledHeader header, Path headerPath, Path objectPath) {
+				this.header = header;
+				this.headerPath = headerPath;
+				this.objectPath = objectPath;
+			}
+		}
+	}
+
+	private static class CompilationToolContext {
+		protected String hostArchitecture;
+		protected NavigableMap<String, SDKReference> sdks;
+		protected List<Path> includeDirectories;
+		protected List<Path> forceIncludes;
+		protected List<Path> forceUsings;
+		protected SakerPath clExePath;
+		protected SakerPath workingDirectory;
+		/**
+		 * Whether the cl.exe supports the <code>/sourceDependencies</code> option.
+		 */
+		protected boolean sourceDependencies;
+	}
+
+	/**
+	 * The command line arguments that are the same for all files with the same compilation properties.
+	 */
+	private static class CompilationCommandTemplate {
+		protected CompilationToolContext toolContext;
+		protected List<String> commandPrefix;
+		protected List<String> commandSuffix;
+		/**
+		 * The suffix without the force included files, used when a precompiled header is present.
+		 */
+		protected List<String> commandSuffixWithoutForceIncludes;
+	}
+
 	private static class CompilationDependencyInfo implements Externalizable {
 		private static final long serialVersionUID = 1L;
 
@@ -830,6 +1328,11 @@ public class MSVCCCompileWorkerTaskFactory
 		protected NavigableSet<SakerPath> failedIncludes = new TreeSet<>();
 		//XXX this should not be here but only for compiled source files. no need for pch
 		protected ByteArrayRegion processOutput = ByteArrayRegion.EMPTY;
+		/**
+		 * The resolutions of the included files mapped to their local paths. Not serialized, only used by the inner
+		 * task.
+		 */
+		protected Map<Path, IncludePathResolutionCache.ResolvedPath> includedLocalFiles = new HashMap<>();
 
 		/**
 		 * For {@link Externalizable}.
@@ -886,6 +1389,8 @@ public class MSVCCCompileWorkerTaskFactory
 		protected FileCompilationConfiguration compilationEntry;
 		protected boolean successful;
 		protected String outputObjectName;
+		protected long compilationDuration;
+		protected long compilationMemory;
 
 		protected CompilationDependencyInfo dependencyInfo;
 
@@ -927,11 +1432,27 @@ public class MSVCCCompileWorkerTaskFactory
 			return dependencyInfo;
 		}
 
+		/**
+		 * Gets the wall time of the compiler process in milliseconds.
+		 */
+		public long getCompilationDuration() {
+			return compilationDuration;
+		}
+
+		/**
+		 * Gets the estimated peak memory usage of the compiler process in bytes.
+		 */
+		public long getCompilationMemory() {
+			return compilationMemory;
+		}
+
 		@Override
 		public void writeExternal(ObjectOutput out) throws IOException {
 			out.writeObject(compilationEntry);
 			out.writeBoolean(successful);
 			out.writeObject(outputObjectName);
+			out.writeLong(compilationDuration);
+			out.writeLong(compilationMemory);
 			out.writeObject(dependencyInfo);
 		}
 
@@ -940,18 +1461,66 @@ public class MSVCCCompileWorkerTaskFactory
 			compilationEntry = (FileCompilationConfiguration) in.readObject();
 			successful = in.readBoolean();
 			outputObjectName = (String) in.readObject();
+			compilationDuration = in.readLong();
+			compilationMemory = in.readLong();
 			dependencyInfo = (CompilationDependencyInfo) in.readObject();
 		}
 	}
 
-	protected final static class SourceCompilerRMIWrapper implements RMIWrapper {
-		private SourceCompilerInnerTaskFactory task;
+	public static class CompilationWorkUnitResult implements Externalizable {
+		private static final long serialVersionUID = 1L;
 
-		public SourceCompilerRMIWrapper() {
+		protected List<CompilerInnerTaskResult> results;
+		protected int objectCacheHits;
+		protected int objectCacheMisses;
+		protected int includePathCacheHits;
+		protected int includePathCacheMisses;
+		//the number of retries mapped to the error codes of the transient failures that caused them
+		protected NavigableMap<String, Integer> transientFailureRetries;
+
+		/**
+		 * For {@link Externalizable}.
+		 */
+		public CompilationWorkUnitResult() {
 		}
 
-		public SourceCompilerRMIWrapper(SourceCompilerInnerTaskFactory task) {
-			this.task = task;
+		public CompilationWorkUnitResult(List<CompilerInnerTaskResult> results) {
+			this.results = results;
+		}
+
+		public List<CompilerInnerTaskResult> getResults() {
+			return results;
+		}
+
+		@Override
+		public void writeExternal(ObjectOutput out) throws IOException {
+			SerialUtils.writeExternalCollection(out, results);
+			out.writeInt(objectCacheHits);
+			out.writeInt(objectCacheMisses);
+			out.writeInt(includePathCacheHits);
+			out.writeInt(includePathCacheMisses);
+			SerialUtils.writeExternalMap(out, transientFailureRetries);
+		}
+
+		@Override
+		public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+			results = SerialUtils.readExternalImmutableList(in);
+			objectCacheHits = in.readInt();
+			objectCacheMisses = in.readInt();
+			includePathCacheHits = in.readInt();
+			includePathCacheMisses = in.readInt();
+			transientFailureRetries = SerialUtils.readExternalSortedImmutableNavigableMap(in);
+		}
+	}
+
+	protected final static class SourceCompilerRMIWrapper implements RMIWrapper {
+		private SourceCompilerInnerTaskFactory task;
+
+		public SourceCompilerRMIWrapper() {
+		}
+
+		public SourceCompilerRMIWrapper(SourceCompilerInnerTaskFactory task) {
+			this.task = task;
 		}
 
 		@Override
@@ -962,6 +1531,8 @@ public class MSVCCCompileWorkerTaskFactory
 			out.writeSerializedObject(task.sdkDescriptions);
 			out.writeSerializedObject(task.environmentSelector);
 			out.writeRemoteObject(task.outputDir);
+			out.writeBoolean(task.reproducibleObjects);
+			out.writeBoolean(task.estimateMemory);
 		}
 
 		@SuppressWarnings("unchecked")
@@ -974,6 +1545,8 @@ public class MSVCCCompileWorkerTaskFactory
 			task.sdkDescriptions = (NavigableMap<String, SDKDescription>) in.readObject();
 			task.environmentSelector = (TaskExecutionEnvironmentSelector) in.readObject();
 			task.outputDir = (SakerDirectory) in.readObject();
+			task.reproducibleObjects = in.readBoolean();
+			task.estimateMemory = in.readBoolean();
 		}
 
 		@Override
@@ -990,33 +1563,119 @@ public class MSVCCCompileWorkerTaskFactory
 	public interface WorkerTaskCoordinator {
 		public static final Method METHOD_SET_ABORTED = ReflectUtils.getMethodAssert(WorkerTaskCoordinator.class,
 				"setAborted");
+		public static final Method METHOD_WORK_UNIT_FINISHED = ReflectUtils.getMethodAssert(
+				WorkerTaskCoordinator.class, "workUnitFinished", String.class, CompilationWorkUnit.class);
 
 		public void headerPrecompiled(@RMISerialize CompilerInnerTaskResult result, PathKey outputpathkey,
 				@RMISerialize ContentDescriptor outputcontents);
 
+		public void precompiledHeaderReused(PathKey outputpathkey, @RMISerialize PrecompiledHeaderState state);
+
+		/**
+		 * Stores a precompiled header that was built by the caller, so other callers can download it.
+		 * <p>
+		 * The compressed files are read from the given sources during the call.
+		 */
+		public void publishPrecompiledHeader(@RMISerialize FileCompilationConfiguration pchconfig,
+				@RMISerialize SharedPrecompiledHeader header, ByteSource compressedheader,
+				ByteSource compressedobject) throws IOException;
+
+		/**
+		 * Writes the compressed files of a precompiled header that was built by an other caller with the same
+		 * fingerprint to the given sinks.
+		 *
+		 * @return The information about the header or <code>null</code> if there's no such header. Nothing is written
+		 *             to the sinks in this case.
+		 */
+		@RMISerialize
+		public SharedPrecompiledHeader downloadSharedPrecompiledHeader(
+				@RMISerialize FileCompilationConfiguration pchconfig, String fingerprint, ByteSink compressedheaderout,
+				ByteSink compressedobjectout) throws IOException;
+
 		@RMISerialize
 		public NavigableMap<SakerPath, PrecompiledHeaderState> getPrecompiledHeaderStates(
 				@RMISerialize RootFileProviderKey fpk);
 
-		public FileCompilationConfiguration take();
+		/**
+		 * Takes at most the given number of work units for the caller.
+		 * <p>
+		 * The units after the first one are leased to the caller, and it should notify the coordinator when it starts
+		 * them.
+		 * <p>
+		 * The parallelism is the number of units that the caller can compile at the same time. It is used to determine
+		 * the size of the batches.
+		 * <p>
+		 * The previous states of the files are only included in the units if requested, as they are only needed for
+		 * the object file cache lookup.
+		 */
+		@RMISerialize
+		public List<CompilationWorkUnit> take(String calleridentity, int parallelism, int max, boolean previousstates);
+
+		/**
+		 * Adds the file back to the work queue after it failed to compile due to a transient error.
+		 * <p>
+		 * Called synchronously before the caller finishes the unit, so the compilation doesn't finish before the file
+		 * is compiled again.
+		 */
+		public void retry(@RMISerialize FileCompilationConfiguration file, int retrycount, long delaymillis);
+
+		/**
+		 * Notifies the coordinator that the caller starts a leased work unit.
+		 * <p>
+		 * The call is synchronous, as the unit may have been stolen by an other caller in the meantime.
+		 *
+		 * @return <code>true</code> if the caller still owns the unit and should compile it.
+		 */
+		public boolean workUnitStarted(String calleridentity, @RMISerialize CompilationWorkUnit unit);
+
+		public void workUnitFinished(String calleridentity, @RMISerialize CompilationWorkUnit unit);
+
+		public void precompiledHeaderFinished(@RMISerialize FileCompilationConfiguration pchconfig,
+				String calleridentity, boolean successful);
 
 		public void setAborted();
 	}
 
 	@RMIWrap(SourceCompilerRMIWrapper.class)
 	private static class SourceCompilerInnerTaskFactory
-			implements TaskFactory<CompilerInnerTaskResult>, Task<CompilerInnerTaskResult> {
+			implements TaskFactory<CompilationWorkUnitResult>, Task<CompilationWorkUnitResult> {
 		protected WorkerTaskCoordinator coordinator;
 		protected SakerPath outputDirPath;
 		protected String architecture;
 		protected NavigableMap<String, SDKDescription> sdkDescriptions;
 		protected TaskExecutionEnvironmentSelector environmentSelector;
 		protected SakerDirectory outputDir;
+		protected boolean reproducibleObjects;
+		/**
+		 * Whether the memory usage of the compilations should be estimated, i.e. a memory budget is set.
+		 */
+		protected boolean estimateMemory;
 
-		private transient InnerTaskMirrorHandler mirrorHandler = new InnerTaskMirrorHandler();
+		private transient InnerTaskMirrorHandler mirrorHandler = new InnerTaskMirrorHandler() {
+			@Override
+			protected void directoryMirrored(SakerPath path, Path mirrorpath) {
+				//the contents of the directory may have changed, the included paths need to be resolved again
+				IncludePathResolutionCache.invalidateDirectory(mirrorpath);
+			}
+		};
+		//identifies the build environment of this factory instance for the coordinator
+		private transient final String identity = UUID.randomUUID().toString();
+		private transient final ConcurrentLinkedDeque<CompilationWorkUnit> prefetchedWorkUnits = new ConcurrentLinkedDeque<>();
+		private transient volatile long takeRoundTripNanos;
+		private transient volatile long workUnitNanos;
 
-		private transient ConcurrentHashMap<FileCompilationConfiguration, Object> precompiledHeaderCreationLocks = new ConcurrentHashMap<>();
-		private transient ConcurrentHashMap<FileCompilationConfiguration, Optional<PrecompiledHeaderDependencyInfo>> precompiledHeaderCreationResults = new ConcurrentHashMap<>();
+		/**
+		 * Command templates mapped to the compilation properties without file location.
+		 * <p>
+		 * The SDKs are pinned for the factory, so they don't need to be part of the key.
+		 */
+		private transient ConcurrentHashMap<FileCompilationProperties, CompilationCommandTemplate> commandTemplates = new ConcurrentHashMap<>();
+		/**
+		 * The precompiled headers that were successfully created by the jobs in this environment.
+		 * <p>
+		 * The work queue only hands out the files that use a precompiled header to the environments that created it.
+		 */
+		private transient ConcurrentHashMap<FileCompilationConfiguration, PrecompiledHeaderDependencyInfo> precompiledHeaderResults = new ConcurrentHashMap<>();
 
 		private transient final Supplier<NavigableMap<SakerPath, PrecompiledHeaderState>> precompiledHeaderStatesLazySupplier = LazySupplier
 				.of(() -> {
@@ -1031,17 +1690,20 @@ public class MSVCCCompileWorkerTaskFactory
 
 		public SourceCompilerInnerTaskFactory(WorkerTaskCoordinator coordinator, SakerPath outputDirPath,
 				String architecture, NavigableMap<String, SDKDescription> sdkDescriptions,
-				TaskExecutionEnvironmentSelector envselector, SakerDirectory outputDir) {
+				TaskExecutionEnvironmentSelector envselector, SakerDirectory outputDir, boolean reproducibleObjects,
+				boolean estimateMemory) {
 			this.coordinator = coordinator;
 			this.outputDirPath = outputDirPath;
 			this.architecture = architecture;
 			this.sdkDescriptions = sdkDescriptions;
 			this.environmentSelector = envselector;
 			this.outputDir = outputDir;
+			this.reproducibleObjects = reproducibleObjects;
+			this.estimateMemory = estimateMemory;
 		}
 
 		@Override
-		public Task<? extends CompilerInnerTaskResult> createTask(ExecutionContext executioncontext) {
+		public Task<? extends CompilationWorkUnitResult> createTask(ExecutionContext executioncontext) {
 			return this;
 		}
 
@@ -1115,46 +1777,786 @@ public class MSVCCCompileWorkerTaskFactory
 		}
 
 		@Override
-		public CompilerInnerTaskResult run(TaskContext taskcontext) throws Exception {
-			FileCompilationConfiguration compilationentry = coordinator.take();
-			if (compilationentry == null) {
+		public CompilationWorkUnitResult run(TaskContext taskcontext) throws Exception {
+			CompilationWorkUnit workunit = takeWorkUnit(
+					ObjectFileCache.get(taskcontext.getExecutionContext().getEnvironment()) != null);
+			if (workunit == null) {
 				if (saker.build.meta.Versions.VERSION_FULL_COMPOUND >= 8_014) {
 					BuildTrace.omitInnerTask();
 				}
 				return null;
 			}
+			long starttime = System.nanoTime();
+			try {
+				return runWorkUnit(taskcontext, workunit);
+			} finally {
+				workUnitNanos = movingAverage(workUnitNanos, System.nanoTime() - starttime);
+				//releases the memory that the unit was admitted with, and lets the queue know that no retries are added
+				RMIVariables.invokeRemoteMethodAsyncOrLocal(coordinator,
+						WorkerTaskCoordinator.METHOD_WORK_UNIT_FINISHED, identity, workunit.withoutPreviousStates());
+			}
+		}
+
+		private CompilationWorkUnit takeWorkUnit(boolean previousstates) {
+			if (environmentSelector == null) {
+				//running locally, no need for prefetching
+				List<CompilationWorkUnit> units = coordinator.take(identity, getParallelism(), 1, previousstates);
+				return units.isEmpty() ? null : units.get(0);
+			}
+			for (CompilationWorkUnit unit; (unit = prefetchedWorkUnits.pollFirst()) != null;) {
+				if (coordinator.workUnitStarted(identity, unit.withoutPreviousStates())) {
+					return unit;
+				}
+				//stolen by an other inner task, it is compiled and finished there
+			}
+			long starttime = System.nanoTime();
+			List<CompilationWorkUnit> units = coordinator.take(identity, getParallelism(), getPrefetchCount(),
+					previousstates);
+			takeRoundTripNanos = movingAverage(takeRoundTripNanos, System.nanoTime() - starttime);
+			if (units.isEmpty()) {
+				return null;
+			}
+			prefetchedWorkUnits.addAll(units.subList(1, units.size()));
+			return units.get(0);
+		}
+
+		private static int getParallelism() {
+			//the inner tasks request a single computation token, so they can run on all processors of the environment
+			return Runtime.getRuntime().availableProcessors();
+		}
+
+		private int getPrefetchCount() {
+			long roundtrip = takeRoundTripNanos;
+			long unitnanos = workUnitNanos;
+			if (roundtrip == 0 || unitnanos == 0) {
+				//no measurements yet
+				return 2;
+			}
+			//take enough units to cover the latency of the next round trip
+			return (int) Math.min(MAX_PREFETCH_COUNT, 2 + roundtrip * 2 / unitnanos);
+		}
+
+		private static long movingAverage(long average, long value) {
+			if (average == 0) {
+				return value;
+			}
+			return (average * 3 + value) / 4;
+		}
+
+		private CompilationWorkUnitResult runWorkUnit(TaskContext taskcontext, CompilationWorkUnit workunit)
+				throws Exception {
+			FileCompilationConfiguration pchjob = workunit.getPrecompiledHeader();
+			if (pchjob != null) {
+				boolean successful = false;
+				try {
+					successful = runPrecompiledHeaderJob(taskcontext, pchjob);
+				} finally {
+					//notify the coordinator in any case so the dependent files are released
+					coordinator.precompiledHeaderFinished(pchjob, identity, successful);
+				}
+				return new CompilationWorkUnitResult(Collections.emptyList());
+			}
+			List<FileCompilationConfiguration> unitfiles = workunit.getFiles();
+			int filecount = unitfiles.size();
+			//the files in the work unit have the same properties, except the file location
+			FileCompilationConfiguration compilationentry = unitfiles.get(0);
 			FileCompilationProperties compilationentryproperties = compilationentry.getProperties();
-			SakerPath outputdirpath = outputDirPath;
-			ContentDescriptor[] contents = { null };
 			TaskExecutionUtilities taskutilities = taskcontext.getTaskUtilities();
 			ExecutionContext executioncontext = taskcontext.getExecutionContext();
 			SakerEnvironment environment = executioncontext.getEnvironment();
-			Path compilefilepath = getCompileFilePath(compilationentryproperties, environment, taskutilities, contents);
+			ContentDescriptor[] contents = new ContentDescriptor[filecount];
+			Path[] compilefilepaths = new Path[filecount];
+			for (int i = 0; i < filecount; i++) {
+				ContentDescriptor[] filecontents = { null };
+				compilefilepaths[i] = getCompileFilePath(unitfiles.get(i).getProperties(), environment, taskutilities,
+						filecontents);
+				contents[i] = filecontents[0];
+			}
 
 			if (saker.build.meta.Versions.VERSION_FULL_COMPOUND >= 8_006) {
-				BuildTrace.setDisplayInformation(compilefilepath.getFileName().toString(), null);
+				String displayname = compilefilepaths[0].getFileName().toString();
+				if (filecount > 1) {
+					displayname += " (+" + (filecount - 1) + ")";
+				}
+				BuildTrace.setDisplayInformation(displayname, null);
 			}
 
-			NavigableMap<String, SDKReference> sdks = SDKSupportUtils
-					.resolveSDKReferences(executioncontext.getEnvironment(), sdkDescriptions);
+			CompilationCommandTemplate commandtemplate = getCommandTemplate(taskcontext, compilationentryproperties);
+			CompilationToolContext toolcontext = commandtemplate.toolContext;
+			NavigableMap<String, SDKReference> sdks = toolcontext.sdks;
+			List<Path> includedirpaths = toolcontext.includeDirectories;
+			SakerPath workingdir = toolcontext.workingDirectory;
 
-			List<Path> includedirpaths = getIncludePaths(taskutilities,
-					compilationentryproperties.getIncludeDirectories(), true, sdks);
-			List<Path> forceincludepaths = getIncludePaths(taskutilities, compilationentryproperties.getForceInclude(),
-					false, sdks);
-			List<Path> forceusingpaths = getIncludePaths(taskutilities, compilationentryproperties.getForceUsing(),
-					false, sdks);
-			boolean forceincludepch = compilationentry.isPrecompiledHeaderForceInclude();
+			String pchoutfilename = compilationentry.getPrecompiledHeaderOutFileName();
+			Path pchoutpath = null;
+			String pchname = null;
+			PrecompiledHeaderDependencyInfo pchdepinfo = null;
+			if (pchoutfilename != null) {
+				FileCompilationConfiguration entrypch = CompilationWorkQueue
+						.getPrecompiledHeaderConfiguration(compilationentry);
+				pchname = MSVCUtils.getFileName(entrypch.getProperties().getFileLocation());
+				pchoutpath = executioncontext.toMirrorPath(
+						getPrecompiledHeaderOutputDirectoryPath(outputDirPath).resolve(pchoutfilename + ".pch"));
+
+				//the header was precompiled by a job in this environment
+				pchdepinfo = precompiledHeaderResults.get(entrypch);
+				if (pchdepinfo == null) {
+					//TODO reify exception
+					throw new IOException("Failed to compile required precompiled header. (" + pchname + ")");
+				}
+			}
 
-			FileCompilationConfiguration compilationconfiguration = compilationentry;
-			String outputfilenamebase = compilationconfiguration.getOutFileName();
-			String outputobjectfilename = outputfilenamebase + ".obj";
+			List<String> commandprefix = commandtemplate.commandPrefix;
+			List<String> commandsuffix;
+			if (pchoutpath == null) {
+				commandsuffix = commandtemplate.commandSuffix;
+			} else {
+				//the force include paths are part of the precompiled header
+				//and they shouldn't be included in the source files
+				commandsuffix = new ArrayList<>(commandtemplate.commandSuffixWithoutForceIncludes);
+				commandsuffix.add("/Fp" + pchoutpath);
+				commandsuffix.add("/Yu" + pchname);
+				if (compilationentry.isPrecompiledHeaderForceInclude()) {
+					commandsuffix.add("/FI" + pchname);
+				}
+			}
 
-			Path objoutpath = executioncontext.toMirrorPath(outputdirpath.resolve(outputobjectfilename));
+			String languageoption = getLanguageCommandLineOption(compilationentryproperties.getLanguage());
+
+			List<CompilerInnerTaskResult> results = new ArrayList<>(filecount);
+			int objectcachehits = 0;
+			ObjectFileCache objectcache = ObjectFileCache.get(environment);
+			List<String> cachekeycommands = null;
+			String sdkidentity = null;
+			if (objectcache != null) {
+				//the input file and the output are not part of the key as they are unique to the source file
+				cachekeycommands = new ArrayList<>(commandprefix);
+				cachekeycommands.add(languageoption);
+				cachekeycommands.addAll(commandsuffix);
+				sdkidentity = getSDKIdentity(sdks);
+
+				//look up the files of the unit in parallel, the number of files in a unit is bounded
+				CompilerInnerTaskResult[] cachedresults = new CompilerInnerTaskResult[filecount];
+				List<String> lookupkeycommands = cachekeycommands;
+				String lookupsdkidentity = sdkidentity;
+				List<FileCompilationConfiguration> lookupfiles = unitfiles;
+				Path[] lookuppaths = compilefilepaths;
+				ContentDescriptor[] lookupcontents = contents;
+				List<Integer> lookupindices = new ArrayList<>(filecount);
+				for (int i = 0; i < filecount; i++) {
+					lookupindices.add(i);
+				}
+				//not in the common pool, as that is shared with the build system and other tasks
+				//the threads are bounded by the number of processors the inner tasks run on
+				ThreadUtils.parallelRunner().setThreadCount(Math.min(filecount, getParallelism()))
+						.setNamePrefix("MSVC object cache lookup-").runItems(lookupindices, i -> {
+							FileCompilationConfiguration lookupfile = lookupfiles.get(i);
+							if (workunit.isObjectCacheExcluded(lookupfile.getOutFileName())) {
+								return;
+							}
+							cachedresults[i] = lookupObjectCache(taskcontext, objectcache, lookupkeycommands,
+									lookupsdkidentity, lookupfile, lookuppaths[i], lookupcontents[i],
+									workunit.getPreviousState(lookupfile.getOutFileName()));
+						});
+
+				List<FileCompilationConfiguration> uncachedfiles = new ArrayList<>(filecount);
+				List<Path> uncachedpaths = new ArrayList<>(filecount);
+				List<ContentDescriptor> uncachedcontents = new ArrayList<>(filecount);
+				for (int i = 0; i < filecount; i++) {
+					CompilerInnerTaskResult cachedresult = cachedresults[i];
+					if (cachedresult != null) {
+						results.add(cachedresult);
+						++objectcachehits;
+						continue;
+					}
+					uncachedfiles.add(unitfiles.get(i));
+					uncachedpaths.add(compilefilepaths[i]);
+					uncachedcontents.add(contents[i]);
+				}
+				unitfiles = uncachedfiles;
+				filecount = uncachedfiles.size();
+				compilefilepaths = uncachedpaths.toArray(new Path[filecount]);
+				contents = uncachedcontents.toArray(new ContentDescriptor[filecount]);
+			}
 
-			//create the parent directory, else the process will throw
+			IncludePathResolutionCache.Resolver includeresolver = IncludePathResolutionCache.get(executioncontext)
+					.createResolver(executioncontext);
+			NavigableMap<String, Integer> retrycauses = new TreeMap<>();
+			List<CompilerInnerTaskResult> compiledresults;
+			if (filecount == 0) {
+				compiledresults = Collections.emptyList();
+			} else if (filecount == 1) {
+				compiledresults = Collections.singletonList(compileSingle(taskcontext, unitfiles.get(0),
+						compilefilepaths[0], contents[0], commandprefix, languageoption, commandsuffix, workingdir,
+						includedirpaths, pchdepinfo, toolcontext.sourceDependencies, includeresolver, retrycauses,
+						workunit.getRetryCount()));
+			} else {
+				compiledresults = compileBatch(taskcontext, unitfiles, compilefilepaths, contents, commandprefix,
+						languageoption, commandsuffix, workingdir, includedirpaths, pchdepinfo,
+						toolcontext.sourceDependencies, includeresolver, retrycauses);
+			}
+			for (int i = 0; i < compiledresults.size(); i++) {
+				CompilerInnerTaskResult compiledresult = compiledresults.get(i);
+				if (compiledresult == null) {
+					//retried later
+					continue;
+				}
+				results.add(compiledresult);
+				if (objectcache != null) {
+					storeObjectCache(executioncontext, objectcache, cachekeycommands, sdkidentity, compiledresult,
+							compilefilepaths[i]);
+				}
+			}
+			CompilationWorkUnitResult unitresult = new CompilationWorkUnitResult(results);
+			if (objectcache != null) {
+				unitresult.objectCacheHits = objectcachehits;
+				unitresult.objectCacheMisses = filecount;
+			}
+			unitresult.includePathCacheHits = includeresolver.getHits();
+			unitresult.includePathCacheMisses = includeresolver.getMisses();
+			unitresult.transientFailureRetries = retrycauses;
+			return unitresult;
+		}
+
+		private CompilerInnerTaskResult lookupObjectCache(TaskContext taskcontext, ObjectFileCache objectcache,
+				List<String> cachekeycommands, String sdkidentity, FileCompilationConfiguration compilationentry,
+				Path compilefilepath, ContentDescriptor contents, CompilationWorkUnit.PreviousFileState prevstate) {
+			String basekey = ObjectFileCache.computeBaseKey(cachekeycommands, sdkidentity, compilefilepath);
+			if (basekey == null) {
+				return null;
+			}
+			ExecutionContext executioncontext = taskcontext.getExecutionContext();
+			String outputobjectfilename = compilationentry.getOutFileName() + ".obj";
+			Path objoutpath = executioncontext.toMirrorPath(outputDirPath.resolve(outputobjectfilename));
+			//restore to a temporary file first, so a failed copy doesn't overwrite the previous object file
+			Path cachedobjpath = objoutpath.resolveSibling(outputobjectfilename + "." + UUID.randomUUID() + ".tmp");
+			ObjectFileCache.CachedCompilation cached;
+			try {
+				//the includes of the previous compilation are the most likely candidate
+				cached = objectcache.lookup(basekey, prevstate == null ? null : prevstate.getIncludes(),
+						includepath -> getMirrorPathOrNull(executioncontext, includepath), cachedobjpath);
+				if (cached == null) {
+					return null;
+				}
+				for (SakerPath failedinclude : cached.failedIncludes) {
+					//the compilation would include the previously missing file
+					if (taskcontext.getTaskUtilities().resolveFileAtPath(failedinclude) != null) {
+						return null;
+					}
+				}
+				//keep the previous object file if the contents are the same, the same way as the compiled files
+				moveObjectFileIfChanged(cachedobjpath, objoutpath);
+			} catch (IOException e) {
+				//handle as a cache miss
+				return null;
+			} finally {
+				try {
+					Files.deleteIfExists(cachedobjpath);
+				} catch (IOException e) {
+					//ignore
+				}
+			}
+			CompilationDependencyInfo depinfo = new CompilationDependencyInfo(contents);
+			depinfo.includes.addAll(cached.includes);
+			depinfo.failedIncludes.addAll(cached.failedIncludes);
+			depinfo.diagnostics.addAll(cached.diagnostics);
+			depinfo.processOutput = cached.processOutput;
+
+			ProviderHolderPathKey objoutpathkey = LocalFileProvider.getInstance().getPathKey(objoutpath);
+			taskcontext.getTaskUtilities().addSynchronizeInvalidatedProviderPathFileToDirectory(outputDir,
+					objoutpathkey, outputobjectfilename);
+
+			CompilerInnerTaskResult result = CompilerInnerTaskResult.successful(compilationentry);
+			result.outputObjectName = outputobjectfilename;
+			result.compilationDuration = prevstate == null ? 0 : prevstate.getCompilationDuration();
+			result.compilationMemory = prevstate == null ? 0 : prevstate.getCompilationMemory();
+			result.dependencyInfo = depinfo;
+			return result;
+		}
+
+		private void storeObjectCache(ExecutionContext executioncontext, ObjectFileCache objectcache,
+				List<String> cachekeycommands, String sdkidentity, CompilerInnerTaskResult result,
+				Path compilefilepath) {
+			if (!result.isSuccessful()) {
+				return;
+			}
+			String basekey = ObjectFileCache.computeBaseKey(cachekeycommands, sdkidentity, compilefilepath);
+			if (basekey == null) {
+				return;
+			}
+			CompilationDependencyInfo depinfo = result.getDependencyInfo();
+			Path objpath = executioncontext.toMirrorPath(outputDirPath.resolve(result.getOutputObjectName()));
+			objectcache.store(basekey, includepath -> getMirrorPathOrNull(executioncontext, includepath), objpath,
+					new ObjectFileCache.CachedCompilation(depinfo.getIncludes(), depinfo.getFailedIncludes(),
+							depinfo.getDiagnostics(), depinfo.getProcessOutput()));
+		}
+
+		/**
+		 * Streams the precompiled header files to the coordinator, compressing them on the fly.
+		 */
+		private void publishPrecompiledHeader(FileCompilationConfiguration entrypch, SharedPrecompiledHeader header,
+				Path pchoutpath, Path pchobjpath) throws IOException {
+			Deflater headerdeflater = new Deflater(Deflater.BEST_SPEED);
+			Deflater objectdeflater = new Deflater(Deflater.BEST_SPEED);
+			try (InputStream headerin = new DeflaterInputStream(Files.newInputStream(pchoutpath), headerdeflater);
+					InputStream objectin = new DeflaterInputStream(Files.newInputStream(pchobjpath), objectdeflater)) {
+				coordinator.publishPrecompiledHeader(entrypch, header, ByteSource.valueOf(headerin),
+						ByteSource.valueOf(objectin));
+			} finally {
+				headerdeflater.end();
+				objectdeflater.end();
+			}
+		}
+
+		/**
+		 * Downloads the precompiled header files that were built by an other inner task with the same fingerprint.
+		 * <p>
+		 * The files are decompressed to temporary files as they arrive, and moved to the output paths if the header is
+		 * found.
+		 *
+		 * @return The information about the header or <code>null</code> if it was not found.
+		 */
+		private SharedPrecompiledHeader downloadPrecompiledHeader(FileCompilationConfiguration entrypch,
+				String fingerprint, Path pchoutpath, Path pchobjpath) throws IOException {
+			Path headertmppath = pchoutpath.resolveSibling(pchoutpath.getFileName() + "." + UUID.randomUUID() + ".tmp");
+			Path objecttmppath = pchobjpath.resolveSibling(pchobjpath.getFileName() + "." + UUID.randomUUID() + ".tmp");
+			try {
+				SharedPrecompiledHeader result;
+				try (OutputStream headerout = new InflaterOutputStream(Files.newOutputStream(headertmppath));
+						OutputStream objectout = new InflaterOutputStream(Files.newOutputStream(objecttmppath))) {
+					result = coordinator.downloadSharedPrecompiledHeader(entrypch, fingerprint,
+							ByteSink.valueOf(headerout), ByteSink.valueOf(objectout));
+				}
+				if (result != null) {
+					Files.move(headertmppath, pchoutpath, StandardCopyOption.REPLACE_EXISTING);
+					Files.move(objecttmppath, pchobjpath, StandardCopyOption.REPLACE_EXISTING);
+				}
+				return result;
+			} finally {
+				Files.deleteIfExists(headertmppath);
+				Files.deleteIfExists(objecttmppath);
+			}
+		}
+
+		private static String getSDKIdentity(NavigableMap<String, SDKReference> sdks) {
+			StringBuilder sb = new StringBuilder();
+			for (Entry<String, SDKReference> entry : sdks.entrySet()) {
+				sb.append(entry.getKey());
+				sb.append('=');
+				try {
+					sb.append(entry.getValue().getProperty(SDK_PROPERTY_VERSION));
+				} catch (Exception e) {
+					//no version, the paths in the command line still identify the SDK
+				}
+				sb.append(';');
+			}
+			return sb.toString();
+		}
+
+		private static Path getMirrorPathOrNull(ExecutionContext executioncontext, SakerPath path) {
+			try {
+				return executioncontext.toMirrorPath(path);
+			} catch (FileMirroringUnavailableException e) {
+				return null;
+			}
+		}
+
+		private CompilerInnerTaskResult compileSingle(TaskContext taskcontext,
+				FileCompilationConfiguration compilationentry, Path compilefilepath, ContentDescriptor contents,
+				List<String> commandprefix, String languageoption, List<String> commandsuffix, SakerPath workingdir,
+				List<Path> includedirpaths, PrecompiledHeaderDependencyInfo pchdepinfo, boolean sourcedependencies,
+				IncludePathResolutionCache.Resolver includeresolver, NavigableMap<String, Integer> retrycauses,
+				int retrycount) throws Exception {
+			ExecutionContext executioncontext = taskcontext.getExecutionContext();
+			String outputobjectfilename = compilationentry.getOutFileName() + ".obj";
+			Path objoutpath = executioncontext.toMirrorPath(outputDirPath.resolve(outputobjectfilename));
+			Path compileobjpath = objoutpath;
+			if (reproducibleObjects) {
+				//compile to a separate location, so the previous object file is kept if the contents are the same
+				//the path is deterministic, as it is part of the object file if debug information is generated
+				compileobjpath = executioncontext.toMirrorPath(outputDirPath
+						.resolve(REPRODUCIBLE_OUTPUT_SUBDIRECTORY_NAME).resolve(outputobjectfilename));
+				LocalFileProvider.getInstance().createDirectories(compileobjpath.getParent());
+			}
+
+			try {
+				List<String> commands = new ArrayList<>(commandprefix);
+				commands.add(languageoption + compilefilepath);
+				commands.add("/Fo" + compileobjpath);
+				commands.addAll(commandsuffix);
+				Path sourcedependenciespath = null;
+				if (sourcedependencies) {
+					sourcedependenciespath = compileobjpath.resolveSibling(outputobjectfilename + ".json");
+					commands.add(CL_PARAMETER_SOURCE_DEPENDENCIES);
+					commands.add(sourcedependenciespath.toString());
+				}
+
+				//merge std error as the /showIncludes option doesn't work properly
+				CLOutputScanner outputscanner = new CLOutputScanner();
+				long compilestartnanos = System.nanoTime();
+				int procresult = runCompilerProcess(commands, workingdir, outputscanner);
+				long compiledurationmillis = (System.nanoTime() - compilestartnanos) / 1_000_000;
+				CompilationDependencyInfo depinfo = new CompilationDependencyInfo(contents);
+
+				analyzeCLOutput(taskcontext, includedirpaths, includeresolver, depinfo, procresult,
+						outputscanner.getCommonSection());
+				if (sourcedependenciespath != null) {
+					try {
+						analyzeSourceDependencies(includeresolver, sourcedependenciespath, depinfo);
+					} finally {
+						Files.deleteIfExists(sourcedependenciespath);
+					}
+				}
+				if (procresult != 0 && retrycount < MAX_TRANSIENT_FAILURE_RETRY_COUNT) {
+					String retrycause = getTransientFailureCause(depinfo.diagnostics);
+					if (retrycause != null) {
+						//the output of this attempt is discarded, only the final attempt is reported
+						retrycauses.merge(retrycause, 1, Integer::sum);
+						retryLater(compilationentry, retrycount + 1);
+						return null;
+					}
+				}
+
+				if (pchdepinfo != null) {
+					//no need to add failed includes, as if the pch compilation fails,
+					//the source file doesn't get compiled
+					depinfo.includes.addAll(pchdepinfo.includes);
+				}
+
+				CompilerInnerTaskResult result;
+				if (procresult != 0) {
+					result = CompilerInnerTaskResult.failed(compilationentry);
+					RMIVariables.invokeRemoteMethodAsyncOrLocal(coordinator, WorkerTaskCoordinator.METHOD_SET_ABORTED);
+				} else {
+					if (compileobjpath != objoutpath) {
+						moveObjectFileIfChanged(compileobjpath, objoutpath);
+					}
+					ProviderHolderPathKey objoutpathkey = LocalFileProvider.getInstance().getPathKey(objoutpath);
+					taskcontext.getTaskUtilities().addSynchronizeInvalidatedProviderPathFileToDirectory(outputDir,
+							objoutpathkey, outputobjectfilename);
+					result = CompilerInnerTaskResult.successful(compilationentry);
+				}
+
+				result.outputObjectName = outputobjectfilename;
+				result.compilationDuration = compiledurationmillis;
+				if (estimateMemory) {
+					result.compilationMemory = estimateCompilationMemory(compilefilepath, depinfo);
+				}
+				result.dependencyInfo = depinfo;
+
+				return result;
+			} finally {
+				if (compileobjpath != objoutpath) {
+					//don't leave the failed or retried output in the kept subdirectory
+					Files.deleteIfExists(compileobjpath);
+				}
+			}
+		}
+
+		private List<CompilerInnerTaskResult> compileBatch(TaskContext taskcontext,
+				List<FileCompilationConfiguration> unitfiles, Path[] compilefilepaths, ContentDescriptor[] contents,
+				List<String> commandprefix, String languageoption, List<String> commandsuffix, SakerPath workingdir,
+				List<Path> includedirpaths, PrecompiledHeaderDependencyInfo pchdepinfo, boolean sourcedependencies,
+				IncludePathResolutionCache.Resolver includeresolver, NavigableMap<String, Integer> retrycauses)
+				throws Exception {
+			ExecutionContext executioncontext = taskcontext.getExecutionContext();
+			int filecount = unitfiles.size();
+			//the out file names are unique in the compilation, so the first can be used to create a unique directory
+			Path batchoutdirpath = executioncontext.toMirrorPath(outputDirPath.resolve(BATCH_OUTPUT_SUBDIRECTORY_NAME)
+					.resolve(unitfiles.get(0).getOutFileName()));
 			LocalFileProvider localfp = LocalFileProvider.getInstance();
-			localfp.createDirectories(objoutpath.getParent());
+			localfp.createDirectories(batchoutdirpath);
+			clearDirectoryFiles(batchoutdirpath);
+			try {
+				List<String> commands = new ArrayList<>(commandprefix);
+				String[] sourcefilenames = new String[filecount];
+				for (int i = 0; i < filecount; i++) {
+					commands.add(languageoption + compilefilepaths[i]);
+					sourcefilenames[i] = compilefilepaths[i].getFileName().toString();
+				}
+				//the trailing separator causes cl to treat the argument as a directory
+				commands.add("/Fo" + batchoutdirpath + File.separator);
+				commands.addAll(commandsuffix);
+				if (sourcedependencies) {
+					//a <source-file-name>.json file is created for each source in the directory
+					commands.add(CL_PARAMETER_SOURCE_DEPENDENCIES);
+					commands.add(batchoutdirpath + File.separator);
+				}
+
+				//the output is split to the sections of the source files as it arrives
+				CLOutputScanner outputscanner = new CLOutputScanner(sourcefilenames);
+				long compilestartnanos = System.nanoTime();
+				int procresult = runCompilerProcess(commands, workingdir, outputscanner);
+				//the time spent is distributed among the files evenly
+				long compiledurationmillis = (System.nanoTime() - compilestartnanos) / 1_000_000 / filecount;
+				CLOutputScanner.Section commonoutput = outputscanner.getCommonSection();
+
+				List<CompilerInnerTaskResult> results = new ArrayList<>(filecount);
+				boolean hadfailure = false;
+				//the files after a transient failure may not be compiled at all, they are retried as well
+				String transientfailurecause = null;
+				for (int i = 0; i < filecount; i++) {
+					FileCompilationConfiguration compilationentry = unitfiles.get(i);
+					String outputobjectfilename = compilationentry.getOutFileName() + ".obj";
+					Path batchobjpath = batchoutdirpath
+							.resolve(CompilationWorkQueue.getDefaultObjectFileName(sourcefilenames[i]));
+
+					CompilationDependencyInfo depinfo = new CompilationDependencyInfo(contents[i]);
+					//the success is determined per file, no need to report the exit code for the whole invocation
+					analyzeCLOutput(taskcontext, includedirpaths, includeresolver, depinfo, 0, commonoutput,
+							outputscanner.getSourceSection(i));
+					if (sourcedependencies) {
+						analyzeSourceDependencies(includeresolver,
+								batchoutdirpath.resolve(sourcefilenames[i] + ".json"), depinfo);
+					}
+					if (pchdepinfo != null) {
+						depinfo.includes.addAll(pchdepinfo.includes);
+					}
+					boolean successful = procresult == 0
+							|| (Files.isRegularFile(batchobjpath) && !hasErrorDiagnostic(depinfo.diagnostics));
+					CompilerInnerTaskResult result;
+					if (successful) {
+						Path objoutpath = executioncontext.toMirrorPath(outputDirPath.resolve(outputobjectfilename));
+						if (reproducibleObjects) {
+							moveObjectFileIfChanged(batchobjpath, objoutpath);
+						} else {
+							Files.move(batchobjpath, objoutpath, StandardCopyOption.REPLACE_EXISTING);
+						}
+						taskcontext.getTaskUtilities().addSynchronizeInvalidatedProviderPathFileToDirectory(
+								outputDir, localfp.getPathKey(objoutpath), outputobjectfilename);
+						result = CompilerInnerTaskResult.successful(compilationentry);
+					} else {
+						boolean haderror = hasErrorDiagnostic(depinfo.diagnostics);
+						String retrycause = haderror ? getTransientFailureCause(depinfo.diagnostics)
+								: transientfailurecause;
+						if (retrycause != null) {
+							transientfailurecause = retrycause;
+							retrycauses.merge(retrycause, 1, Integer::sum);
+							//compile the file on its own later, the output of this attempt is not reported
+							retryLater(compilationentry, 1);
+							results.add(null);
+							continue;
+						}
+						hadfailure = true;
+						if (!haderror) {
+							CompilerDiagnostic errordiag = new CompilerDiagnostic(null, SakerLog.SEVERITY_ERROR, -1,
+									null, "cl exited with error code: " + procresult + " (0x"
+											+ Integer.toHexString(procresult) + ")");
+							depinfo.diagnostics.add(errordiag);
+						}
+						result = CompilerInnerTaskResult.failed(compilationentry);
+					}
+					result.outputObjectName = outputobjectfilename;
+					result.compilationDuration = compiledurationmillis;
+					if (estimateMemory) {
+						result.compilationMemory = estimateCompilationMemory(compilefilepaths[i], depinfo);
+					}
+					result.dependencyInfo = depinfo;
+					results.add(result);
+				}
+				if (hadfailure) {
+					RMIVariables.invokeRemoteMethodAsyncOrLocal(coordinator, WorkerTaskCoordinator.METHOD_SET_ABORTED);
+				}
+				return results;
+			} finally {
+				clearDirectoryFiles(batchoutdirpath);
+				Files.deleteIfExists(batchoutdirpath);
+			}
+		}
+
+		private void addReproducibleParameters(List<String> commands) {
+			if (reproducibleObjects && !commands.contains(CL_PARAMETER_REPRODUCIBLE)) {
+				//no timestamps in the output, so recompiling with the same inputs produces the same bytes
+				commands.add(CL_PARAMETER_REPRODUCIBLE);
+			}
+		}
+
+		/**
+		 * Moves the compiled object file to the output path, unless the output file already has the same contents.
+		 * <p>
+		 * Keeping the previous file unmodified causes the dependent tasks (e.g. linking) to see no changes for it.
+		 */
+		private static void moveObjectFileIfChanged(Path compiledpath, Path objoutpath) throws IOException {
+			if (isSameFileContents(compiledpath, objoutpath)) {
+				Files.delete(compiledpath);
+				return;
+			}
+			Files.move(compiledpath, objoutpath, StandardCopyOption.REPLACE_EXISTING);
+		}
+
+		private static boolean isSameFileContents(Path first, Path second) throws IOException {
+			long size;
+			try {
+				size = Files.size(second);
+			} catch (NoSuchFileException e) {
+				return false;
+			}
+			if (Files.size(first) != size) {
+				return false;
+			}
+			byte[] firstbuf = new byte[8192];
+			byte[] secondbuf = new byte[8192];
+			try (InputStream firstin = Files.newInputStream(first);
+					InputStream secondin = Files.newInputStream(second)) {
+				while (true) {
+					int firstcount = readFully(firstin, firstbuf);
+					int secondcount = readFully(secondin, secondbuf);
+					if (firstcount != secondcount) {
+						return false;
+					}
+					if (firstcount == 0) {
+						return true;
+					}
+					for (int i = 0; i < firstcount; i++) {
+						if (firstbuf[i] != secondbuf[i]) {
+							return false;
+						}
+					}
+				}
+			}
+		}
+
+		private static int readFully(InputStream in, byte[] buf) throws IOException {
+			int count = 0;
+			while (count < buf.length) {
+				int read = in.read(buf, count, buf.length - count);
+				if (read < 0) {
+					break;
+				}
+				count += read;
+			}
+			return count;
+		}
+
+		private static int runCompilerProcess(List<String> commands, SakerPath workingdir,
+				CLOutputScanner outputscanner) throws IOException, InterruptedException {
+			return MSVCUtils.runMSVCProcess(commands, workingdir, outputscanner, null, true);
+		}
+
+		/**
+		 * Gets the error code of the transient failure if all the errors in the diagnostics are transient.
+		 */
+		private static String getTransientFailureCause(Collection<CompilerDiagnostic> diagnostics) {
+			String result = null;
+			for (CompilerDiagnostic d : diagnostics) {
+				if (d.getSeverity() != SakerLog.SEVERITY_ERROR) {
+					continue;
+				}
+				String errorcode = d.getErrorCode();
+				if (errorcode == null) {
+					return null;
+				}
+				errorcode = errorcode.toUpperCase(Locale.ENGLISH);
+				if (!CL_TRANSIENT_ERROR_CODES.contains(errorcode)) {
+					return null;
+				}
+				if (result == null) {
+					result = errorcode;
+				}
+			}
+			return result;
+		}
+
+		/**
+		 * Adds the file back to the work queue to compile it again after a delay.
+		 * <p>
+		 * The inner task doesn't wait for the delay, so it can compile other files in the meantime.
+		 */
+		private void retryLater(FileCompilationConfiguration compilationentry, int retrycount) {
+			coordinator.retry(compilationentry, retrycount, TRANSIENT_FAILURE_RETRY_DELAY_MILLIS << (retrycount - 1));
+		}
+
+		private static boolean hasErrorDiagnostic(Collection<CompilerDiagnostic> diagnostics) {
+			for (CompilerDiagnostic d : diagnostics) {
+				if (d.getSeverity() == SakerLog.SEVERITY_ERROR) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private static void clearDirectoryFiles(Path dir) throws IOException {
+			try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+				for (Path p : ds) {
+					Files.deleteIfExists(p);
+				}
+			} catch (NoSuchFileException e) {
+				//the directory doesn't exist, nothing to clear
+			}
+		}
+
+		private boolean runPrecompiledHeaderJob(TaskContext taskcontext, FileCompilationConfiguration entrypch)
+				throws Exception {
+			if (saker.build.meta.Versions.VERSION_FULL_COMPOUND >= 8_006) {
+				BuildTrace.setDisplayInformation(MSVCUtils.getFileName(entrypch.getProperties().getFileLocation()),
+						null);
+			}
+			CompilationToolContext toolcontext = getCommandTemplate(taskcontext, entrypch.getProperties()).toolContext;
+			Optional<PrecompiledHeaderDependencyInfo> headerres = precompileHeader(taskcontext, entrypch, toolcontext);
+			if (!headerres.isPresent()) {
+				return false;
+			}
+			precompiledHeaderResults.put(entrypch, headerres.get());
+			return true;
+		}
+
+		private CompilationCommandTemplate getCommandTemplate(TaskContext taskcontext,
+				FileCompilationProperties properties) throws Exception {
+			FileCompilationProperties key = properties.withFileLocation(null);
+			CompilationCommandTemplate result = commandTemplates.get(key);
+			if (result != null) {
+				return result;
+			}
+			CompilationToolContext toolcontext = createToolContext(taskcontext, properties);
+
+			List<String> commandprefix = new ArrayList<>();
+			commandprefix.add(toolcontext.clExePath.toString());
+			MSVCUtils.evaluateSimpleParameters(commandprefix, properties.getSimpleParameters(), toolcontext.sdks);
+			//the includes are determined from the /sourceDependencies output if available
+			addAlwaysPresentParameters(commandprefix, !toolcontext.sourceDependencies);
+			addReproducibleParameters(commandprefix);
+
+			List<String> commandsuffix = new ArrayList<>();
+			addIncludeDirectoryCommands(commandsuffix, toolcontext.includeDirectories);
+			addForceIncludeCommands(commandsuffix, toolcontext.forceIncludes);
+			addForceUsingCommands(commandsuffix, toolcontext.forceUsings);
+			addMacroDefinitionCommands(commandsuffix, properties.getMacroDefinitions());
+
+			List<String> nopchcommandsuffix = new ArrayList<>();
+			addIncludeDirectoryCommands(nopchcommandsuffix, toolcontext.includeDirectories);
+			addForceUsingCommands(nopchcommandsuffix, toolcontext.forceUsings);
+			addMacroDefinitionCommands(nopchcommandsuffix, properties.getMacroDefinitions());
+
+			result = new CompilationCommandTemplate();
+			result.toolContext = toolcontext;
+			result.commandPrefix = Collections.unmodifiableList(commandprefix);
+			result.commandSuffix = Collections.unmodifiableList(commandsuffix);
+			result.commandSuffixWithoutForceIncludes = Collections.unmodifiableList(nopchcommandsuffix);
+			//concurrent callers may compute the same template, use the one that was put first
+			CompilationCommandTemplate prev = commandTemplates.putIfAbsent(key, result);
+			if (prev != null) {
+				return prev;
+			}
+			return result;
+		}
+
+		private CompilationToolContext createToolContext(TaskContext taskcontext,
+				FileCompilationProperties properties) throws Exception {
+			TaskExecutionUtilities taskutilities = taskcontext.getTaskUtilities();
+			ExecutionContext executioncontext = taskcontext.getExecutionContext();
+			SakerEnvironment environment = executioncontext.getEnvironment();
+
+			CompilationToolContext result = new CompilationToolContext();
+			NavigableMap<String, SDKReference> sdks = environment
+					.getEnvironmentPropertyCurrentValue(new ResolvedSDKReferencesEnvironmentProperty(sdkDescriptions));
+			result.sdks = sdks;
+
+			result.includeDirectories = getIncludePaths(taskutilities, properties.getIncludeDirectories(), true, sdks);
+			result.forceIncludes = getIncludePaths(taskutilities, properties.getForceInclude(), false, sdks);
+			result.forceUsings = getIncludePaths(taskutilities, properties.getForceUsing(), false, sdks);
+
+			//create the parent directory, else the process will throw
+			LocalFileProvider.getInstance().createDirectories(executioncontext.toMirrorPath(outputDirPath));
 
 			String hostarchitecture = environment
 					.getEnvironmentPropertyCurrentValue(SystemArchitectureEnvironmentProperty.INSTANCE);
@@ -1171,145 +2573,160 @@ public class MSVCCCompileWorkerTaskFactory
 			if (workingdir == null) {
 				workingdir = clexepath.getParent();
 			}
+			result.clExePath = clexepath;
+			result.workingDirectory = workingdir;
+			result.hostArchitecture = hostarchitecture;
+			result.sourceDependencies = isSourceDependenciesSupported(vcsdk);
+			return result;
+		}
 
-			String pchoutfilename = compilationentry.getPrecompiledHeaderOutFileName();
-			Path pchoutpath = null;
-			String pchname = null;
-			PrecompiledHeaderDependencyInfo pchdepinfo = null;
-			if (pchoutfilename != null) {
-				FileCompilationProperties pchproperties = compilationentryproperties
-						.withFileLocation(compilationconfiguration.getPrecompiledHeaderFileLocation());
-				SakerPath pchoutdir = getPrecompiledHeaderOutputDirectoryPath(outputdirpath);
-				pchname = MSVCUtils.getFileName(pchproperties.getFileLocation());
-				pchoutpath = executioncontext.toMirrorPath(pchoutdir.resolve(pchoutfilename + ".pch"));
-
-				localfp.createDirectories(pchoutpath.getParent());
-
-				Path pchobjpath = executioncontext.toMirrorPath(pchoutdir.resolve(pchoutfilename + ".obj"));
-				FileCompilationConfiguration entrypch = new FileCompilationConfiguration(pchoutfilename, pchproperties);
-				Optional<PrecompiledHeaderDependencyInfo> headerres = precompiledHeaderCreationResults.get(entrypch);
-				if (headerres == null) {
-					synchronized (precompiledHeaderCreationLocks.computeIfAbsent(entrypch,
-							Functionals.objectComputer())) {
-						headerres = precompiledHeaderCreationResults.get(entrypch);
-						if (headerres == null) {
-							ContentDescriptor[] pchcontents = { null };
-							Path pchcompilefilepath = getCompileFilePath(pchproperties, environment, taskutilities,
-									pchcontents);
-
-							NavigableMap<SakerPath, PrecompiledHeaderState> precompiledheaderstates = precompiledHeaderStatesLazySupplier
-									.get();
-							SakerPath pchcompilesakerfilepath = SakerPath.valueOf(pchcompilefilepath);
-							PrecompiledHeaderState prevheaderstate = ObjectUtils.getMapValue(precompiledheaderstates,
-									pchcompilesakerfilepath);
-							if (isPrecompiledHeaderUpToDate(taskcontext, prevheaderstate, pchcontents[0],
-									pchcompilefilepath, pchproperties)) {
-								headerres = Optional
-										.of(new PrecompiledHeaderDependencyInfo(prevheaderstate.getIncludes()));
-							} else {
-								List<String> commands = new ArrayList<>();
-								commands.add(clexepath.toString());
-								MSVCUtils.evaluateSimpleParameters(commands, pchproperties.getSimpleParameters(), sdks);
-								addAlwaysPresentParameters(commands);
-								commands.add(
-										getLanguageCommandLineOption(pchproperties.getLanguage()) + pchcompilefilepath);
-								commands.add("/Fo" + pchobjpath);
-								addIncludeDirectoryCommands(commands, includedirpaths);
-								addForceIncludeCommands(commands, forceincludepaths);
-								addForceUsingCommands(commands, forceusingpaths);
-								addMacroDefinitionCommands(commands, pchproperties.getMacroDefinitions());
-
-								commands.add("/Yc");
-								commands.add("/Fp" + pchoutpath);
-
-								CollectingProcessIOConsumer stdoutcollector = new CollectingProcessIOConsumer();
-								int procresult = MSVCUtils.runMSVCProcess(commands, workingdir, stdoutcollector, null,
-										true);
-								CompilationDependencyInfo depinfo = new CompilationDependencyInfo(pchcontents[0]);
-								pchproperties.getFileLocation().accept(new FileLocationVisitor() {
-									//add the compiled header file as an include dependency, so it is added to the source files
-									@Override
-									public void visit(ExecutionFileLocation loc) {
-										depinfo.includes.add(loc.getPath());
-									}
-									//TODO support local
-								});
-								analyzeCLOutput(taskcontext, includedirpaths, stdoutcollector.getOutputBytes(), depinfo,
-										procresult);
-								CompilerInnerTaskResult headerprecompileresult;
-								if (procresult == 0) {
-									headerprecompileresult = CompilerInnerTaskResult.successful(entrypch);
-
-									headerres = Optional.of(new PrecompiledHeaderDependencyInfo(depinfo));
-								} else {
-									headerprecompileresult = CompilerInnerTaskResult.failed(entrypch);
+		private Optional<PrecompiledHeaderDependencyInfo> precompileHeader(TaskContext taskcontext,
+				FileCompilationConfiguration entrypch, CompilationToolContext toolcontext) throws Exception {
+			ExecutionContext executioncontext = taskcontext.getExecutionContext();
+			FileCompilationProperties pchproperties = entrypch.getProperties();
+			String pchoutfilename = entrypch.getOutFileName();
+			SakerPath pchoutdir = getPrecompiledHeaderOutputDirectoryPath(outputDirPath);
+			Path pchoutpath = executioncontext.toMirrorPath(pchoutdir.resolve(pchoutfilename + ".pch"));
+			Path pchobjpath = executioncontext.toMirrorPath(pchoutdir.resolve(pchoutfilename + ".obj"));
 
-									headerres = Optional.empty();
-								}
-								headerprecompileresult.dependencyInfo = depinfo;
-								coordinator.headerPrecompiled(headerprecompileresult,
-										LocalFileProvider.getPathKeyStatic(pchcompilesakerfilepath), executioncontext
-												.getContentDescriptor(localfp.getPathKey(pchcompilesakerfilepath)));
-							}
-							precompiledHeaderCreationResults.put(entrypch, headerres);
-							//clear the force include paths as they are part of the precompiled header
-							//and they shouldn't be included in the source files
-							forceincludepaths = Collections.emptyList();
-						}
-					}
-				}
-				if (!headerres.isPresent()) {
-					//TODO reify exception
-					throw new IOException("Failed to compile required precompiled header. (" + pchname + ")");
-				}
-				pchdepinfo = headerres.get();
+			LocalFileProvider localfp = LocalFileProvider.getInstance();
+			localfp.createDirectories(pchoutpath.getParent());
+
+			ContentDescriptor[] pchcontents = { null };
+			Path pchcompilefilepath = getCompileFilePath(pchproperties, executioncontext.getEnvironment(),
+					taskcontext.getTaskUtilities(), pchcontents);
+
+			NavigableMap<SakerPath, PrecompiledHeaderState> precompiledheaderstates = precompiledHeaderStatesLazySupplier
+					.get();
+			SakerPath pchcompilesakerfilepath = SakerPath.valueOf(pchcompilefilepath);
+			PrecompiledHeaderState prevheaderstate = ObjectUtils.getMapValue(precompiledheaderstates,
+					pchcompilesakerfilepath);
+			if (isPrecompiledHeaderUpToDate(taskcontext, prevheaderstate, pchcontents[0], pchcompilefilepath,
+					pchproperties)) {
+				return Optional.of(new PrecompiledHeaderDependencyInfo(prevheaderstate.getIncludes()));
 			}
-
 			List<String> commands = new ArrayList<>();
-			commands.add(clexepath.toString());
-			MSVCUtils.evaluateSimpleParameters(commands, compilationentryproperties.getSimpleParameters(), sdks);
+			commands.add(toolcontext.clExePath.toString());
+			MSVCUtils.evaluateSimpleParameters(commands, pchproperties.getSimpleParameters(), toolcontext.sdks);
 			addAlwaysPresentParameters(commands);
-			commands.add(getLanguageCommandLineOption(compilationentryproperties.getLanguage()) + compilefilepath);
-			commands.add("/Fo" + objoutpath);
-			addIncludeDirectoryCommands(commands, includedirpaths);
-			addForceIncludeCommands(commands, forceincludepaths);
-			addForceUsingCommands(commands, forceusingpaths);
-			addMacroDefinitionCommands(commands, compilationentryproperties.getMacroDefinitions());
-			if (pchoutpath != null) {
-				commands.add("/Fp" + pchoutpath);
-				commands.add("/Yu" + pchname);
-				if (forceincludepch) {
-					commands.add("/FI" + pchname);
+			addReproducibleParameters(commands);
+			commands.add(getLanguageCommandLineOption(pchproperties.getLanguage()) + pchcompilefilepath);
+			commands.add("/Fo" + pchobjpath);
+			addIncludeDirectoryCommands(commands, toolcontext.includeDirectories);
+			addForceIncludeCommands(commands, toolcontext.forceIncludes);
+			addForceUsingCommands(commands, toolcontext.forceUsings);
+			addMacroDefinitionCommands(commands, pchproperties.getMacroDefinitions());
+
+			commands.add("/Yc");
+			commands.add("/Fp" + pchoutpath);
+
+			String sharingfingerprint = null;
+			if (environmentSelector != null) {
+				//the inner tasks may run on different cluster nodes, try to download the header if it was already
+				//built with the same toolchain and command line somewhere else
+				sharingfingerprint = getPrecompiledHeaderSharingFingerprint(toolcontext, pchproperties,
+						pchcompilefilepath);
+			}
+			if (sharingfingerprint != null) {
+				try {
+					SharedPrecompiledHeader shared = downloadPrecompiledHeader(entrypch, sharingfingerprint,
+							pchoutpath, pchobjpath);
+					if (shared != null) {
+						coordinator.precompiledHeaderReused(LocalFileProvider.getPathKeyStatic(pchcompilesakerfilepath),
+								new PrecompiledHeaderState(pchcontents[0],
+										executioncontext.getContentDescriptor(localfp.getPathKey(pchcompilesakerfilepath)),
+										pchproperties, shared.includes, shared.diagnostics));
+						return Optional.of(new PrecompiledHeaderDependencyInfo(shared.includes));
+					}
+				} catch (IOException e) {
+					//failed to download the files, build it locally
+					taskcontext.getTaskUtilities().reportIgnoredException(e);
 				}
 			}
 
-			//merge std error as the /showIncludes option doesn't work properly
-			CollectingProcessIOConsumer stdoutcollector = new CollectingProcessIOConsumer();
-			int procresult = MSVCUtils.runMSVCProcess(commands, workingdir, stdoutcollector, null, true);
-			CompilationDependencyInfo depinfo = new CompilationDependencyInfo(contents[0]);
-
-			analyzeCLOutput(taskcontext, includedirpaths, stdoutcollector.getOutputBytes(), depinfo, procresult);
+			CLOutputScanner outputscanner = new CLOutputScanner();
+			int procresult = runCompilerProcess(commands, toolcontext.workingDirectory, outputscanner);
+			CompilationDependencyInfo depinfo = new CompilationDependencyInfo(pchcontents[0]);
+			pchproperties.getFileLocation().accept(new FileLocationVisitor() {
+				//add the compiled header file as an include dependency, so it is added to the source files
+				@Override
+				public void visit(ExecutionFileLocation loc) {
+					depinfo.includes.add(loc.getPath());
+				}
+				//TODO support local
+			});
+			analyzeCLOutput(taskcontext, toolcontext.includeDirectories,
+					IncludePathResolutionCache.get(executioncontext).createResolver(executioncontext), depinfo,
+					procresult, outputscanner.getCommonSection());
+			Optional<PrecompiledHeaderDependencyInfo> headerres;
+			CompilerInnerTaskResult headerprecompileresult;
+			if (procresult == 0) {
+				headerprecompileresult = CompilerInnerTaskResult.successful(entrypch);
+
+				headerres = Optional.of(new PrecompiledHeaderDependencyInfo(depinfo));
+				if (sharingfingerprint != null) {
+					try {
+						publishPrecompiledHeader(entrypch, new SharedPrecompiledHeader(sharingfingerprint,
+								depinfo.getIncludes(), depinfo.getDiagnostics()), pchoutpath, pchobjpath);
+					} catch (IOException e) {
+						//the other nodes will build it for themselves
+						taskcontext.getTaskUtilities().reportIgnoredException(e);
+					}
+				}
+			} else {
+				headerprecompileresult = CompilerInnerTaskResult.failed(entrypch);
 
-			if (pchdepinfo != null) {
-				//no need to add failed includes, as if the pch compilation fails, the source file doesn't get compiled
-				depinfo.includes.addAll(pchdepinfo.includes);
+				headerres = Optional.empty();
 			}
+			headerprecompileresult.dependencyInfo = depinfo;
+			coordinator.headerPrecompiled(headerprecompileresult,
+					LocalFileProvider.getPathKeyStatic(pchcompilesakerfilepath),
+					executioncontext.getContentDescriptor(localfp.getPathKey(pchcompilesakerfilepath)));
+			return headerres;
+		}
 
-			CompilerInnerTaskResult result;
-			if (procresult != 0) {
-				result = CompilerInnerTaskResult.failed(compilationentry);
-				RMIVariables.invokeRemoteMethodAsyncOrLocal(coordinator, WorkerTaskCoordinator.METHOD_SET_ABORTED);
-			} else {
-				ProviderHolderPathKey objoutpathkey = localfp.getPathKey(objoutpath);
-				taskutilities.addSynchronizeInvalidatedProviderPathFileToDirectory(outputDir, objoutpathkey,
-						outputobjectfilename);
-				result = CompilerInnerTaskResult.successful(compilationentry);
+		/**
+		 * Gets the fingerprint that identifies the toolchain and the command line of the precompiled header.
+		 * <p>
+		 * The local paths of the header and the include directories are part of it, as the precompiled header contains
+		 * the absolute paths of the included files, and cl.exe rejects the header or includes different files if they
+		 * differ on the cluster node that uses it. The headers are only shared between the nodes that mirror the files
+		 * to the same local paths. The output paths are not part of it, as they are local to the caller.
+		 * <p>
+		 * The headers compiled with the program database debug information options (<code>/Zi</code> and
+		 * <code>/ZI</code>) are not shared, as they reference the program database of the node that created them, and
+		 * the compilation fails with C2859 without it.
+		 *
+		 * @return The fingerprint or <code>null</code> if the header shouldn't be shared.
+		 */
+		private String getPrecompiledHeaderSharingFingerprint(CompilationToolContext toolcontext,
+				FileCompilationProperties pchproperties, Path pchcompilefilepath) throws Exception {
+			List<String> parameters = new ArrayList<>();
+			MSVCUtils.evaluateSimpleParameters(parameters, pchproperties.getSimpleParameters(), toolcontext.sdks);
+			for (String param : parameters) {
+				if (isProgramDatabaseDebugInfoParameter(param)) {
+					return null;
+				}
 			}
-
-			result.outputObjectName = outputobjectfilename;
-			result.dependencyInfo = depinfo;
-
-			return result;
+			List<String> fingerprint = new ArrayList<>();
+			fingerprint.add(toolcontext.hostArchitecture);
+			fingerprint.add(getSDKIdentity(toolcontext.sdks));
+			fingerprint.addAll(parameters);
+			addReproducibleParameters(fingerprint);
+			fingerprint.add(getLanguageCommandLineOption(pchproperties.getLanguage()) + pchcompilefilepath);
+			addIncludeDirectoryCommands(fingerprint, toolcontext.includeDirectories);
+			addForceIncludeCommands(fingerprint, toolcontext.forceIncludes);
+			addForceUsingCommands(fingerprint, toolcontext.forceUsings);
+			addMacroDefinitionCommands(fingerprint, pchproperties.getMacroDefinitions());
+			return String.join("\n", fingerprint);
+		}
+
+		private static boolean isProgramDatabaseDebugInfoParameter(String param) {
+			if (param.isEmpty() || (param.charAt(0) != '/' && param.charAt(0) != '-')) {
+				return false;
+			}
+			String option = param.substring(1);
+			return option.equals("Zi") || option.equals("ZI");
 		}
 
 		private List<Path> getIncludePaths(TaskExecutionUtilities taskutilities,
@@ -1408,142 +2825,195 @@ public class MSVCCCompileWorkerTaskFactory
 		}
 
 		private static void analyzeCLOutput(TaskContext taskcontext, List<Path> includedirpaths,
-				ByteArrayRegion stdoutbytecontents, CompilationDependencyInfo depinfo, int procresult) {
+				IncludePathResolutionCache.Resolver includeresolver, CompilationDependencyInfo depinfo, int procresult,
+				CLOutputScanner.Section... sections) {
 			NavigableSet<SakerPath> includes = depinfo.includes;
 			NavigableSet<SakerPath> failedincludes = depinfo.failedIncludes;
 			NavigableSet<CompilerDiagnostic> diagnostics = depinfo.diagnostics;
 			ExecutionContext executioncontext = taskcontext.getExecutionContext();
-			if (stdoutbytecontents.isEmpty()) {
+			boolean empty = true;
+			for (CLOutputScanner.Section section : sections) {
+				if (!section.isEmpty()) {
+					empty = false;
+					break;
+				}
+			}
+			if (empty) {
 				if (procresult != 0) {
 					CompilerDiagnostic errordiag = new CompilerDiagnostic(null, SakerLog.SEVERITY_ERROR, -1, null,
 							"cl exited with error code: " + procresult + " (0x" + Integer.toHexString(procresult)
 									+ ")");
+					//printed with the other diagnostics when the result is reported
 					depinfo.diagnostics.add(errordiag);
-					printDiagnostic(taskcontext, null, errordiag);
 				}
-			} else {
-				Matcher errmatcher = null;
-				try (UnsyncByteArrayOutputStream processout = new UnsyncByteArrayOutputStream()) {
-					try (DataInputUnsyncByteArrayInputStream reader = new DataInputUnsyncByteArrayInputStream(
-							stdoutbytecontents)) {
-						for (String line; (line = reader.readLine()) != null;) {
-							if (line.isEmpty()) {
-								continue;
-							}
-							if (errmatcher == null) {
-								errmatcher = CL_OUTPUT_ERROR_PATTERN.matcher(line);
-							} else {
-								errmatcher.reset(line);
+				return;
+			}
+			UnsyncByteArrayOutputStream processout = new UnsyncByteArrayOutputStream();
+			for (CLOutputScanner.Section section : sections) {
+				for (String includedpath : section.getIncludes()) {
+					IncludePathResolutionCache.ResolvedPath resolved = includeresolver.resolve(includedpath);
+					if (resolved == null) {
+						continue;
+					}
+					depinfo.includedLocalFiles.put(resolved.getLocalPath(), resolved);
+					SakerPath unmirrored = resolved.getPath();
+					if (unmirrored != null) {
+						includes.add(unmirrored);
+					}
+				}
+				for (CLOutputScanner.DiagnosticLine diagline : section.getDiagnostics()) {
+					String file = diagline.file;
+					String linenum = diagline.lineNumber;
+					String type = diagline.type;
+					String clerror = diagline.clError;
+					String desc = diagline.description;
+					int severity;
+					switch (type.toLowerCase(Locale.ENGLISH)) {
+						case "fatal error":
+						case "error": {
+							severity = SakerLog.SEVERITY_ERROR;
+							break;
+						}
+						case "warning": {
+							severity = SakerLog.SEVERITY_WARNING;
+							break;
+						}
+						default: {
+							severity = SakerLog.SEVERITY_INFO;
+							break;
+						}
+					}
+					SakerPath diagnosticpath = null;
+					int lineindex = -1;
+					try {
+						Path diagpath = Paths.get(file);
+						diagnosticpath = executioncontext.toUnmirrorPath(diagpath);
+						if (diagnosticpath == null) {
+							if (desc != null) {
+								desc = diagpath + ": " + desc;
 							}
-							if (errmatcher.matches()) {
-								String file = errmatcher.group(CL_OUTPUT_ERROR_GROUP_FILE);
-								String linenum = errmatcher.group(CL_OUTPUT_ERROR_GROUP_LINENUM);
-								String type = errmatcher.group(CL_OUTPUT_ERROR_GROUP_TYPE);
-								String clerror = errmatcher.group(CL_OUTPUT_ERROR_GROUP_CLERROR);
-								String desc = errmatcher.group(CL_OUTPUT_ERROR_GROUP_DESC);
-								int severity;
-								switch (type.toLowerCase(Locale.ENGLISH)) {
-									case "fatal error":
-									case "error": {
-										severity = SakerLog.SEVERITY_ERROR;
-										break;
-									}
-									case "warning": {
-										severity = SakerLog.SEVERITY_WARNING;
-										break;
-									}
-									default: {
-										severity = SakerLog.SEVERITY_INFO;
-										break;
-									}
-								}
-								SakerPath diagnosticpath = null;
-								int lineindex = -1;
-								try {
-									Path diagpath = Paths.get(file);
-									diagnosticpath = executioncontext.toUnmirrorPath(diagpath);
-									if (diagnosticpath == null) {
-										if (desc != null) {
-											desc = diagpath + ": " + desc;
+						}
+					} catch (Exception e) {
+						SakerLog.error().verbose()
+								.println("Failed to parse CL output path: " + e + " for " + file);
+					}
+					if (diagnosticpath != null) {
+						//only set line index if the path is known
+						try {
+							lineindex = Integer.parseInt(linenum) - 1;
+						} catch (NumberFormatException e) {
+							//ignore
+						}
+					}
+					String trimmedclerror = clerror == null ? null : clerror.trim();
+					if (desc != null && "C1083".equalsIgnoreCase(trimmedclerror)) {
+						//C1083: Cannot open include file: 'the/path/to/the/file': No such file or directory
+						int idx1 = desc.indexOf('\'');
+						if (idx1 >= 0) {
+							int idx2 = desc.lastIndexOf('\'');
+							if (idx2 > idx1) {
+								String notfoundpathstr = desc.substring(idx1 + 1, idx2);
+								Path notfoundpath = Paths.get(notfoundpathstr);
+								if (notfoundpath.isAbsolute()) {
+									SakerPath unmirrored = executioncontext.toUnmirrorPath(notfoundpath);
+									if (unmirrored != null) {
+										if (failedincludes == null) {
+											failedincludes = new TreeSet<>();
 										}
+										failedincludes.add(unmirrored);
+									} else {
+										//TODO handle local missing include
 									}
-								} catch (Exception e) {
-									SakerLog.error().verbose()
-											.println("Failed to parse CL output path: " + e + " for " + file);
-								}
-								if (diagnosticpath != null) {
-									//only set line index if the path is known
-									try {
-										lineindex = Integer.parseInt(linenum) - 1;
-									} catch (NumberFormatException e) {
-										//ignore
-									}
-								}
-								String trimmedclerror = clerror == null ? null : clerror.trim();
-								if (desc != null && "C1083".equalsIgnoreCase(trimmedclerror)) {
-									//C1083: Cannot open include file: 'the/path/to/the/file': No such file or directory
-									int idx1 = desc.indexOf('\'');
-									if (idx1 >= 0) {
-										int idx2 = desc.lastIndexOf('\'');
-										if (idx2 > idx1) {
-											String notfoundpathstr = desc.substring(idx1 + 1, idx2);
-											Path notfoundpath = Paths.get(notfoundpathstr);
-											if (notfoundpath.isAbsolute()) {
-												SakerPath unmirrored = executioncontext.toUnmirrorPath(notfoundpath);
-												if (unmirrored != null) {
-													if (failedincludes == null) {
-														failedincludes = new TreeSet<>();
-													}
-													failedincludes.add(unmirrored);
-												} else {
-													//TODO handle local missing include
-												}
-											} else {
-												for (Path includedirpath : includedirpaths) {
-													Path notfoundabspath = includedirpath.resolve(notfoundpath);
-													SakerPath unmirrored = executioncontext
-															.toUnmirrorPath(notfoundabspath);
-													if (unmirrored != null) {
-														if (failedincludes == null) {
-															failedincludes = new TreeSet<>();
-														}
-														failedincludes.add(unmirrored);
-													} else {
-														//TODO handle local missing include
-													}
-												}
+								} else {
+									for (Path includedirpath : includedirpaths) {
+										Path notfoundabspath = includedirpath.resolve(notfoundpath);
+										SakerPath unmirrored = executioncontext
+												.toUnmirrorPath(notfoundabspath);
+										if (unmirrored != null) {
+											if (failedincludes == null) {
+												failedincludes = new TreeSet<>();
 											}
+											failedincludes.add(unmirrored);
+										} else {
+											//TODO handle local missing include
 										}
 									}
 								}
-								diagnostics.add(new CompilerDiagnostic(diagnosticpath, severity, lineindex,
-										trimmedclerror, desc));
-							} else if (line.startsWith("Note: including file:")) {
-								//XXX should we choose a lower case locale?
-								// 21: len of Note: ...
-								String includedfilepathstr = line.substring(21).trim().toLowerCase();
-								try {
-									Path reallocalpath = Paths.get(includedfilepathstr)
-											.toRealPath(LinkOption.NOFOLLOW_LINKS);
-									SakerPath unmirrored = executioncontext.toUnmirrorPath(reallocalpath);
-									if (unmirrored != null) {
-										includes.add(unmirrored);
-									} else {
-										//TODO handle non mirrored included path
-									}
-								} catch (IOException | InvalidPathException e) {
-									SakerLog.error().verbose().println("Failed to determine included file path for: "
-											+ includedfilepathstr + " (" + e + ")");
-									continue;
-								}
-							} else {
-								processout.write(ByteArrayRegion.wrap((line + "\n").getBytes(StandardCharsets.UTF_8)));
 							}
 						}
 					}
-					depinfo.processOutput = processout.toByteArrayRegion();
+					diagnostics.add(new CompilerDiagnostic(diagnosticpath, severity, lineindex, trimmedclerror, desc));
+				}
+				processout.write(section.getOutput());
+			}
+			depinfo.processOutput = processout.toByteArrayRegion();
+		}
+
+		/**
+		 * Adds the included files from the JSON file generated by the <code>/sourceDependencies</code> option.
+		 */
+		private static void analyzeSourceDependencies(IncludePathResolutionCache.Resolver includeresolver,
+				Path jsonpath, CompilationDependencyInfo depinfo) {
+			List<String> includedpaths;
+			try {
+				includedpaths = SourceDependenciesParser.parseIncludes(jsonpath);
+			} catch (IOException e) {
+				SakerLog.error().verbose()
+						.println("Failed to read source dependencies: " + jsonpath + " (" + e + ")");
+				//the file may be missing if the compilation failed
+				//depend on the files that have diagnostics, so fixing them causes recompilation
+				for (CompilerDiagnostic diag : depinfo.diagnostics) {
+					SakerPath diagpath = diag.getPath();
+					if (diagpath != null) {
+						depinfo.includes.add(diagpath);
+					}
+				}
+				return;
+			}
+			for (String includedpath : includedpaths) {
+				IncludePathResolutionCache.ResolvedPath resolved = includeresolver.resolve(includedpath);
+				if (resolved == null) {
+					continue;
+				}
+				depinfo.includedLocalFiles.put(resolved.getLocalPath(), resolved);
+				SakerPath unmirrored = resolved.getPath();
+				if (unmirrored != null) {
+					depinfo.includes.add(unmirrored);
+				}
+			}
+		}
+
+		/**
+		 * Estimates the peak memory usage of the compiler based on the size of the source and the included files.
+		 * <p>
+		 * The memory usage of the process can't be queried from the JVM, so it is approximated using
+		 * {@link #COMPILER_BASE_MEMORY_ESTIMATE} and {@link #COMPILER_MEMORY_ESTIMATE_PER_INPUT_BYTE}. If the compiler
+		 * ran out of memory, the file is expected to need all of the memory budget.
+		 * <p>
+		 * Only called if a memory budget is set. The sizes of the included files are cached with their path
+		 * resolutions, so the headers included by many files are only queried once in a build.
+		 */
+		private static long estimateCompilationMemory(Path compilefilepath, CompilationDependencyInfo depinfo) {
+			for (CompilerDiagnostic diag : depinfo.diagnostics) {
+				String errorcode = diag.getErrorCode();
+				if (errorcode != null && CL_OUT_OF_MEMORY_ERROR_CODES.contains(errorcode.toUpperCase(Locale.ENGLISH))) {
+					return Long.MAX_VALUE;
 				}
 			}
+			long inputsize = getFileSize(compilefilepath);
+			for (IncludePathResolutionCache.ResolvedPath included : depinfo.includedLocalFiles.values()) {
+				inputsize += included.getSize();
+			}
+			return COMPILER_BASE_MEMORY_ESTIMATE + inputsize * COMPILER_MEMORY_ESTIMATE_PER_INPUT_BYTE;
+		}
+
+		private static long getFileSize(Path path) {
+			try {
+				return Files.size(path);
+			} catch (IOException e) {
+				//ignore, the file is not part of the estimate
+				return 0;
+			}
 		}
 
 		private static void addMacroDefinitionCommands(List<String> commands, Map<String, String> macrodefs) {
@@ -1557,6 +3027,30 @@ public class MSVCCCompileWorkerTaskFactory
 
 	}
 
+	private static boolean isSourceDependenciesSupported(SDKReference vcsdk) {
+		String version;
+		try {
+			version = vcsdk.getProperty(SDK_PROPERTY_VERSION);
+		} catch (Exception e) {
+			return false;
+		}
+		if (version == null) {
+			return false;
+		}
+		//supported since MSVC 14.27 (Visual Studio 2019 16.7)
+		String[] parts = version.split("\\.");
+		if (parts.length < 2) {
+			return false;
+		}
+		try {
+			int major = Integer.parseInt(parts[0]);
+			int minor = Integer.parseInt(parts[1]);
+			return major > 14 || (major == 14 && minor >= 27);
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
 	private static String getLanguageCommandLineOption(String language) {
 		if ("c++".equalsIgnoreCase(language)) {
 			return "/Tp";
@@ -0,0 +1,670 @@
+/*
+ * Copyright (C) 2020 Bence Sipka
+ *
+ * This program is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package saker.msvc.impl.ccompile;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+import saker.build.file.path.SakerPath;
+import saker.build.runtime.environment.SakerEnvironment;
+import saker.build.thirdparty.saker.util.StringUtils;
+import saker.build.thirdparty.saker.util.io.ByteArrayRegion;
+
+/**
+ * Local content addressed cache of compiled object files.
+ * <p>
+ * The cache is enabled by setting the {@value #ENV_PARAMETER_CACHE_DIRECTORY} environment user parameter to an
+ * absolute directory path. The size of the cache is bounded by {@value #ENV_PARAMETER_CACHE_MAX_SIZE} (in bytes), the
+ * least recently used entries are evicted when it is exceeded.
+ * <p>
+ * The cache key is the hash of the compiler command line, the SDKs, the contents of the source file and the contents
+ * of the included headers. As the included headers are not known before the compilation, a manifest is stored for
+ * each base key (that doesn't contain the headers). The manifest lists the headers and their hashes for the previous
+ * compilations, so a lookup only needs to hash the headers to find a matching entry.
+ * <p>
+ * The headers are hashed when the entry is stored, not when the file is compiled. If a header is modified during the
+ * compilation, the entry is stored with the hash of the modified header. The SDK headers are not hashed, the SDKs are
+ * only represented by their <code>version</code> property in the key.
+ * <p>
+ * The key doesn't cover how the include directives are resolved. The entries record the includes that were not found,
+ * and they are not used if any of those exist. The callers also shouldn't look up the files that may include a newly
+ * added header instead of a previously included one.
+ */
+final class ObjectFileCache {
+	public static final String ENV_PARAMETER_CACHE_DIRECTORY = "saker.msvc.compile.object.cache.directory";
+	public static final String ENV_PARAMETER_CACHE_MAX_SIZE = "saker.msvc.compile.object.cache.max.size";
+
+	private static final long DEFAULT_MAX_SIZE = 4L * 1024 * 1024 * 1024;
+	private static final int ENTRY_FORMAT_VERSION = 1;
+
+	private static final String ENTRY_OBJECT_FILE_NAME = "object.obj";
+	private static final String ENTRY_RESULT_FILE_NAME = "result.bin";
+	private static final String TEMP_DIRECTORY_NAME = "tmp";
+	private static final String MANIFESTS_DIRECTORY_NAME = "manifests";
+
+	private static final int MANIFEST_FORMAT_VERSION = 1;
+	private static final int MAX_MANIFEST_CANDIDATE_COUNT = 16;
+	private static final int HASH_LENGTH = 32;
+
+	private static final int MAX_FILE_HASH_CACHE_SIZE = 64 * 1024;
+	/**
+	 * The files that were modified more recently than this before they are hashed are not cached in memory.
+	 * <p>
+	 * The file system may not have the resolution to reflect a modification that is made right after the hashing, so
+	 * the size and modification time check could miss it.
+	 */
+	private static final long FILE_HASH_MIN_AGE_MILLIS = 3000;
+
+	private static final Map<Path, ObjectFileCache> CACHES = new ConcurrentHashMap<>();
+	private static final Map<Path, FileHash> FILE_HASHES = new ConcurrentHashMap<>();
+
+	private final Path directory;
+	private volatile long maxSize;
+
+	private final Object[] manifestLocks = new Object[64];
+	private final Object sizeLock = new Object();
+	//the total size of the entries, -1 if not yet computed
+	private long totalSize = -1;
+
+	private ObjectFileCache(Path directory) {
+		this.directory = directory;
+		for (int i = 0; i < manifestLocks.length; i++) {
+			manifestLocks[i] = new Object();
+		}
+	}
+
+	/**
+	 * Gets the object file cache that is configured for the given environment.
+	 *
+	 * @return The cache or <code>null</code> if caching is not enabled.
+	 */
+	public static ObjectFileCache get(SakerEnvironment environment) {
+		Map<String, String> userparams = environment.getUserParameters();
+		String dirparam = userparams.get(ENV_PARAMETER_CACHE_DIRECTORY);
+		if (dirparam == null || dirparam.isEmpty()) {
+			return null;
+		}
+		Path dir;
+		try {
+			dir = Paths.get(dirparam).toAbsolutePath().normalize();
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+		long maxsize = DEFAULT_MAX_SIZE;
+		String sizeparam = userparams.get(ENV_PARAMETER_CACHE_MAX_SIZE);
+		if (sizeparam != null) {
+			try {
+				maxsize = Long.parseLong(sizeparam.trim());
+			} catch (NumberFormatException e) {
+				//use the default
+			}
+		}
+		ObjectFileCache cache = CACHES.computeIfAbsent(dir, ObjectFileCache::new);
+		cache.maxSize = maxsize;
+		return cache;
+	}
+
+	/**
+	 * Computes the base key of a compilation which doesn't include the included headers.
+	 *
+	 * @return The key or <code>null</code> if the source file cannot be read.
+	 */
+	public static String computeBaseKey(Collection<String> commandline, String sdkidentity, Path sourcefile) {
+		MessageDigest digest = createDigest();
+		digestString(digest, sdkidentity);
+		for (String cmd : commandline) {
+			digestString(digest, cmd);
+		}
+		try {
+			digest.update(getFileHash(sourcefile));
+		} catch (IOException e) {
+			return null;
+		}
+		return StringUtils.toHexString(digest.digest());
+	}
+
+	/**
+	 * Looks up a cache entry and copies the object file to the given output path if found.
+	 * <p>
+	 * The headers that were included by the previous compilation are checked first, then the candidates in the
+	 * manifest of the base key.
+	 *
+	 * @return The cached compilation information or <code>null</code> if not found.
+	 */
+	public CachedCompilation lookup(String basekey, Collection<SakerPath> previncludes,
+			Function<? super SakerPath, ? extends Path> mirrorpathresolver, Path objoutpath) {
+		String prevkey = null;
+		if (previncludes != null) {
+			prevkey = computeEntryKey(basekey, previncludes, mirrorpathresolver);
+			if (prevkey != null) {
+				CachedCompilation result = readEntry(prevkey, objoutpath);
+				if (result != null) {
+					return result;
+				}
+			}
+		}
+		for (ManifestCandidate candidate : readManifest(basekey)) {
+			if (candidate.entryKey.equals(prevkey)) {
+				//already checked
+				continue;
+			}
+			if (!candidate.isUpToDate(mirrorpathresolver)) {
+				continue;
+			}
+			CachedCompilation result = readEntry(candidate.entryKey, objoutpath);
+			if (result != null) {
+				return result;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Stores the results of a successful compilation in the cache.
+	 */
+	public void store(String basekey, Function<? super SakerPath, ? extends Path> mirrorpathresolver,
+			Path objectfile, CachedCompilation compilation) {
+		ManifestCandidate candidate = ManifestCandidate.create(basekey, compilation.includes, mirrorpathresolver);
+		if (candidate == null) {
+			return;
+		}
+		try {
+			storeEntry(candidate.entryKey, objectfile, compilation);
+			addManifestCandidate(basekey, candidate);
+		} catch (IOException e) {
+			//failed to store, don't care
+		}
+	}
+
+	private static String computeEntryKey(String basekey, Collection<SakerPath> includes,
+			Function<? super SakerPath, ? extends Path> mirrorpathresolver) {
+		ManifestCandidate candidate = ManifestCandidate.create(basekey, includes, mirrorpathresolver);
+		return candidate == null ? null : candidate.entryKey;
+	}
+
+	private CachedCompilation readEntry(String key, Path objoutpath) {
+		Path entrydir = getEntryDirectory(key);
+		Path resultfile = entrydir.resolve(ENTRY_RESULT_FILE_NAME);
+		try {
+			CachedCompilation result;
+			try (InputStream is = Files.newInputStream(resultfile)) {
+				result = readResult(new DataInputStream(is));
+			}
+			if (result == null) {
+				return null;
+			}
+			Files.copy(entrydir.resolve(ENTRY_OBJECT_FILE_NAME), objoutpath, StandardCopyOption.REPLACE_EXISTING);
+			//update the last modified time for the LRU eviction
+			Files.setLastModifiedTime(resultfile, FileTime.fromMillis(System.currentTimeMillis()));
+			return result;
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	private void storeEntry(String key, Path objectfile, CachedCompilation compilation) throws IOException {
+		Path entrydir = getEntryDirectory(key);
+		if (Files.isDirectory(entrydir)) {
+			return;
+		}
+		Path tempdir = createTempDirectory();
+		try {
+			Path tempobj = tempdir.resolve(ENTRY_OBJECT_FILE_NAME);
+			Path tempresult = tempdir.resolve(ENTRY_RESULT_FILE_NAME);
+			Files.copy(objectfile, tempobj);
+			try (OutputStream os = Files.newOutputStream(tempresult)) {
+				writeResult(new DataOutputStream(os), compilation);
+			}
+			long entrysize = Files.size(tempobj) + Files.size(tempresult);
+			Files.createDirectories(entrydir.getParent());
+			try {
+				Files.move(tempdir, entrydir, StandardCopyOption.ATOMIC_MOVE);
+			} catch (FileAlreadyExistsException e) {
+				//stored concurrently
+				return;
+			}
+			addSize(entrysize);
+		} finally {
+			deleteEntryDirectory(tempdir);
+		}
+	}
+
+	private List<ManifestCandidate> readManifest(String basekey) {
+		try (InputStream is = Files.newInputStream(getManifestPath(basekey))) {
+			DataInputStream in = new DataInputStream(is);
+			if (in.readInt() != MANIFEST_FORMAT_VERSION) {
+				return Collections.emptyList();
+			}
+			int count = in.readInt();
+			List<ManifestCandidate> result = new ArrayList<>(count);
+			for (int i = 0; i < count; i++) {
+				result.add(ManifestCandidate.read(in));
+			}
+			return result;
+		} catch (IOException e) {
+			return Collections.emptyList();
+		}
+	}
+
+	private void addManifestCandidate(String basekey, ManifestCandidate candidate) throws IOException {
+		Path manifestpath = getManifestPath(basekey);
+		synchronized (manifestLocks[(basekey.hashCode() & 0x7fffffff) % manifestLocks.length]) {
+			List<ManifestCandidate> candidates = new ArrayList<>(readManifest(basekey));
+			for (ManifestCandidate c : candidates) {
+				if (c.entryKey.equals(candidate.entryKey)) {
+					return;
+				}
+			}
+			//the most recent candidate is checked first
+			candidates.add(0, candidate);
+			while (candidates.size() > MAX_MANIFEST_CANDIDATE_COUNT) {
+				candidates.remove(candidates.size() - 1);
+			}
+			Path tempdir = createTempDirectory();
+			try {
+				Path tempfile = tempdir.resolve(basekey);
+				try (OutputStream os = Files.newOutputStream(tempfile)) {
+					DataOutputStream out = new DataOutputStream(os);
+					out.writeInt(MANIFEST_FORMAT_VERSION);
+					out.writeInt(candidates.size());
+					for (ManifestCandidate c : candidates) {
+						c.write(out);
+					}
+					out.flush();
+				}
+				Files.createDirectories(manifestpath.getParent());
+				Files.move(tempfile, manifestpath, StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+			} finally {
+				deleteEntryDirectory(tempdir);
+			}
+		}
+	}
+
+	private Path createTempDirectory() throws IOException {
+		Path tempdir = directory.resolve(TEMP_DIRECTORY_NAME).resolve(UUID.randomUUID().toString());
+		Files.createDirectories(tempdir);
+		return tempdir;
+	}
+
+	private Path getManifestPath(String basekey) {
+		return directory.resolve(MANIFESTS_DIRECTORY_NAME).resolve(basekey.substring(0, 2)).resolve(basekey);
+	}
+
+	/**
+	 * Gets the hash of the file contents.
+	 * <p>
+	 * The hashes are cached in memory and are recomputed if the size or the modification time of the file changes.
+	 * The hashes of the recently modified files are not cached, as they may be modified again without a detectable
+	 * change in the modification time.
+	 */
+	private static byte[] getFileHash(Path file) throws IOException {
+		BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+		long size = attrs.size();
+		long lastmodified = attrs.lastModifiedTime().toMillis();
+		FileHash hash = FILE_HASHES.get(file);
+		if (hash != null && hash.size == size && hash.lastModified == lastmodified) {
+			return hash.hash;
+		}
+		MessageDigest digest = createDigest();
+		byte[] buffer = new byte[8192];
+		try (InputStream is = Files.newInputStream(file)) {
+			for (int read; (read = is.read(buffer)) > 0;) {
+				digest.update(buffer, 0, read);
+			}
+		}
+		byte[] result = digest.digest();
+		if (System.currentTimeMillis() - lastmodified < FILE_HASH_MIN_AGE_MILLIS) {
+			FILE_HASHES.remove(file);
+			return result;
+		}
+		if (FILE_HASHES.size() >= MAX_FILE_HASH_CACHE_SIZE) {
+			//simple bounding, the hashes are recomputed when needed
+			FILE_HASHES.clear();
+		}
+		FILE_HASHES.put(file, new FileHash(size, lastmodified, result));
+		return result;
+	}
+
+	private static MessageDigest createDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	private void addSize(long size) throws IOException {
+		long total;
+		synchronized (sizeLock) {
+			if (totalSize < 0) {
+				totalSize = computeTotalSize();
+			} else {
+				totalSize += size;
+			}
+			total = totalSize;
+		}
+		if (total > maxSize) {
+			evict();
+		}
+	}
+
+	private long computeTotalSize() throws IOException {
+		long result = 0;
+		for (CacheEntry entry : listEntries()) {
+			result += entry.size;
+		}
+		return result;
+	}
+
+	private void evict() throws IOException {
+		synchronized (sizeLock) {
+			List<CacheEntry> entries = listEntries();
+			long total = 0;
+			for (CacheEntry entry : entries) {
+				total += entry.size;
+			}
+			//evict some more than necessary so the eviction doesn't run for every store
+			long target = maxSize / 10 * 9;
+			entries.sort((l, r) -> Long.compare(l.lastAccess, r.lastAccess));
+			for (CacheEntry entry : entries) {
+				if (total <= target) {
+					break;
+				}
+				deleteEntryDirectory(entry.path);
+				total -= entry.size;
+			}
+			totalSize = total;
+		}
+	}
+
+	private List<CacheEntry> listEntries() throws IOException {
+		List<CacheEntry> result = new ArrayList<>();
+		try (DirectoryStream<Path> prefixes = Files.newDirectoryStream(directory)) {
+			for (Path prefixdir : prefixes) {
+				String prefixdirname = prefixdir.getFileName().toString();
+				if (TEMP_DIRECTORY_NAME.equals(prefixdirname) || MANIFESTS_DIRECTORY_NAME.equals(prefixdirname)
+						|| !Files.isDirectory(prefixdir)) {
+					continue;
+				}
+				try (DirectoryStream<Path> entries = Files.newDirectoryStream(prefixdir)) {
+					for (Path entrydir : entries) {
+						try {
+							Path resultfile = entrydir.resolve(ENTRY_RESULT_FILE_NAME);
+							long size = Files.size(resultfile) + Files.size(entrydir.resolve(ENTRY_OBJECT_FILE_NAME));
+							result.add(new CacheEntry(entrydir, Files.getLastModifiedTime(resultfile).toMillis(),
+									size));
+						} catch (IOException e) {
+							//concurrently removed or incomplete
+						}
+					}
+				}
+			}
+		} catch (NoSuchFileException e) {
+			//no entries yet
+		}
+		return result;
+	}
+
+	private Path getEntryDirectory(String key) {
+		return directory.resolve(key.substring(0, 2)).resolve(key);
+	}
+
+	private static void deleteEntryDirectory(Path dir) {
+		try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+			for (Path p : ds) {
+				Files.deleteIfExists(p);
+			}
+		} catch (IOException e) {
+			//may not exist
+		}
+		try {
+			Files.deleteIfExists(dir);
+		} catch (IOException e) {
+			//ignore
+		}
+	}
+
+	private static void digestString(MessageDigest digest, String s) {
+		digest.update(s.getBytes(StandardCharsets.UTF_8));
+		digest.update((byte) 0);
+	}
+
+	private static void writeResult(DataOutputStream out, CachedCompilation compilation) throws IOException {
+		out.writeInt(ENTRY_FORMAT_VERSION);
+		writePaths(out, compilation.includes);
+		writePaths(out, compilation.failedIncludes);
+		out.writeInt(compilation.diagnostics.size());
+		for (CompilerDiagnostic d : compilation.diagnostics) {
+			SakerPath path = d.getPath();
+			writeNullableString(out, path == null ? null : path.toString());
+			out.writeInt(d.getSeverity());
+			out.writeInt(d.getLineIndex());
+			writeNullableString(out, d.getErrorCode());
+			writeNullableString(out, d.getDescription());
+		}
+		ByteArrayRegion processout = compilation.processOutput;
+		out.writeInt(processout.getLength());
+		out.write(processout.getArray(), processout.getOffset(), processout.getLength());
+		out.flush();
+	}
+
+	private static CachedCompilation readResult(DataInputStream in) throws IOException {
+		if (in.readInt() != ENTRY_FORMAT_VERSION) {
+			return null;
+		}
+		CachedCompilation result = new CachedCompilation();
+		readPaths(in, result.includes);
+		readPaths(in, result.failedIncludes);
+		int diagcount = in.readInt();
+		for (int i = 0; i < diagcount; i++) {
+			String path = readNullableString(in);
+			int severity = in.readInt();
+			int lineindex = in.readInt();
+			String errorcode = readNullableString(in);
+			String description = readNullableString(in);
+			result.diagnostics.add(new CompilerDiagnostic(path == null ? null : SakerPath.valueOf(path), severity,
+					lineindex, errorcode, description));
+		}
+		byte[] processout = new byte[in.readInt()];
+		in.readFully(processout);
+		result.processOutput = ByteArrayRegion.wrap(processout);
+		return result;
+	}
+
+	private static void writePaths(DataOutputStream out, Collection<SakerPath> paths) throws IOException {
+		out.writeInt(paths.size());
+		for (SakerPath p : paths) {
+			writeNullableString(out, p.toString());
+		}
+	}
+
+	private static void readPaths(DataInputStream in, Collection<SakerPath> result) throws IOException {
+		int count = in.readInt();
+		for (int i = 0; i < count; i++) {
+			result.add(SakerPath.valueOf(readNullableString(in)));
+		}
+	}
+
+	private static void writeNullableString(DataOutputStream out, String s) throws IOException {
+		if (s == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readNullableString(DataInputStream in) throws IOException {
+		int len = in.readInt();
+		if (len < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[len];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	public static final class CachedCompilation {
+		protected final NavigableSet<SakerPath> includes = new TreeSet<>();
+		protected final NavigableSet<SakerPath> failedIncludes = new TreeSet<>();
+		protected final NavigableSet<CompilerDiagnostic> diagnostics = new TreeSet<>();
+		protected ByteArrayRegion processOutput = ByteArrayRegion.EMPTY;
+
+		public CachedCompilation() {
+		}
+
+		public CachedCompilation(Collection<SakerPath> includes, Collection<SakerPath> failedIncludes,
+				Collection<CompilerDiagnostic> diagnostics, ByteArrayRegion processOutput) {
+			this.includes.addAll(includes);
+			if (failedIncludes != null) {
+				this.failedIncludes.addAll(failedIncludes);
+			}
+			this.diagnostics.addAll(diagnostics);
+			this.processOutput = processOutput;
+		}
+	}
+
+	/**
+	 * A set of headers with their content hashes that were included by a compilation with a given base key.
+	 */
+	private static final class ManifestCandidate {
+		protected final String entryKey;
+		protected final List<SakerPath> includes;
+		protected final List<byte[]> hashes;
+
+		public ManifestCandidate(String entryKey, List<SakerPath> includes, List<byte[]> hashes) {
+			this.entryKey = entryKey;
+			this.includes = includes;
+			this.hashes = hashes;
+		}
+
+		public static ManifestCandidate create(String basekey, Collection<SakerPath> includes,
+				Function<? super SakerPath, ? extends Path> mirrorpathresolver) {
+			MessageDigest digest = createDigest();
+			digestString(digest, basekey);
+			List<SakerPath> includelist = new ArrayList<>(includes);
+			List<byte[]> hashes = new ArrayList<>(includelist.size());
+			for (SakerPath include : includelist) {
+				Path includepath = mirrorpathresolver.apply(include);
+				if (includepath == null) {
+					return null;
+				}
+				byte[] hash;
+				try {
+					hash = getFileHash(includepath);
+				} catch (IOException e) {
+					return null;
+				}
+				digestString(digest, include.toString());
+				digest.update(hash);
+				hashes.add(hash);
+			}
+			return new ManifestCandidate(StringUtils.toHexString(digest.digest()), includelist, hashes);
+		}
+
+		public boolean isUpToDate(Function<? super SakerPath, ? extends Path> mirrorpathresolver) {
+			for (int i = 0; i < includes.size(); i++) {
+				Path includepath = mirrorpathresolver.apply(includes.get(i));
+				if (includepath == null) {
+					return false;
+				}
+				try {
+					if (!Arrays.equals(hashes.get(i), getFileHash(includepath))) {
+						return false;
+					}
+				} catch (IOException e) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		public void write(DataOutputStream out) throws IOException {
+			writeNullableString(out, entryKey);
+			out.writeInt(includes.size());
+			for (int i = 0; i < includes.size(); i++) {
+				writeNullableString(out, includes.get(i).toString());
+				out.write(hashes.get(i));
+			}
+		}
+
+		public static ManifestCandidate read(DataInputStream in) throws IOException {
+			String entrykey = readNullableString(in);
+			int count = in.readInt();
+			List<SakerPath> includes = new ArrayList<>(count);
+			List<byte[]> hashes = new ArrayList<>(count);
+			for (int i = 0; i < count; i++) {
+				includes.add(SakerPath.valueOf(readNullableString(in)));
+				byte[] hash = new byte[HASH_LENGTH];
+				in.readFully(hash);
+				hashes.add(hash);
+			}
+			return new ManifestCandidate(entrykey, includes, hashes);
+		}
+	}
+
+	private static final class FileHash {
+		protected final long size;
+		protected final long lastModified;
+		protected final byte[] hash;
+
+		public FileHash(long size, long lastModified, byte[] hash) {
+			this.size = size;
+			this.lastModified = lastModified;
+			this.hash = hash;
+		}
+	}
+
+	private static final class CacheEntry {
+		protected final Path path;
+		protected final long lastAccess;
+		protected final long size;
+
+		public CacheEntry(Path path, long lastAccess, long size) {
+			this.path = path;
+			this.lastAccess = lastAccess;
+			this.size = size;
+		}
+	}
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2020 Bence Sipka
+ *
+ * This program is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package saker.msvc.impl.ccompile;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streaming parser for the JSON files generated by the <code>/sourceDependencies</code> cl.exe option.
+ * <p>
+ * The file is read as UTF-8. Only the <code>Data.Includes</code> array is materialized, other values are skipped. The
+ * format is:
+ * 
+ * <pre>
+ * {
+ *     "Version": "1.1",
+ *     "Data": {
+ *         "Source": "c:\\path\\to\\main.cpp",
+ *         "Includes": [
+ *             "c:\\path\\to\\header.h"
+ *         ],
+ *         ...
+ *     }
+ * }
+ * </pre>
+ */
+public final class SourceDependenciesParser {
+	private final Reader reader;
+	private int peeked = -1;
+
+	private SourceDependenciesParser(Reader reader) {
+		this.reader = reader;
+	}
+
+	public static List<String> parseIncludes(Path jsonfile) throws IOException {
+		try (Reader reader = new BufferedReader(
+				new InputStreamReader(Files.newInputStream(jsonfile), StandardCharsets.UTF_8))) {
+			SourceDependenciesParser parser = new SourceDependenciesParser(reader);
+			int c = parser.read();
+			if (c != '\uFEFF') {
+				//no byte order mark
+				parser.peeked = c;
+			}
+			return parser.parseRoot();
+		}
+	}
+
+	private List<String> parseRoot() throws IOException {
+		List<String> result = new ArrayList<>();
+		expect('{');
+		if (consumeIfNext('}')) {
+			return result;
+		}
+		do {
+			String key = readString();
+			expect(':');
+			if ("Data".equals(key) && peekNonWhitespace() == '{') {
+				parseData(result);
+			} else {
+				skipValue();
+			}
+		} while (consumeIfNext(','));
+		expect('}');
+		return result;
+	}
+
+	private void parseData(List<String> result) throws IOException {
+		expect('{');
+		if (consumeIfNext('}')) {
+			return;
+		}
+		do {
+			String key = readString();
+			expect(':');
+			if ("Includes".equals(key) && peekNonWhitespace() == '[') {
+				expect('[');
+				if (!consumeIfNext(']')) {
+					do {
+						result.add(readString());
+					} while (consumeIfNext(','));
+					expect(']');
+				}
+			} else {
+				skipValue();
+			}
+		} while (consumeIfNext(','));
+		expect('}');
+	}
+
+	private void skipValue() throws IOException {
+		int c = peekNonWhitespace();
+		switch (c) {
+			case '"': {
+				readString();
+				break;
+			}
+			case '{': {
+				expect('{');
+				if (consumeIfNext('}')) {
+					break;
+				}
+				do {
+					readString();
+					expect(':');
+					skipValue();
+				} while (consumeIfNext(','));
+				expect('}');
+				break;
+			}
+			case '[': {
+				expect('[');
+				if (consumeIfNext(']')) {
+					break;
+				}
+				do {
+					skipValue();
+				} while (consumeIfNext(','));
+				expect(']');
+				break;
+			}
+			default: {
+				//numbers and literals
+				int count = 0;
+				while (true) {
+					c = peek();
+					if (c < 0 || c == ',' || c == '}' || c == ']' || Character.isWhitespace(c)) {
+						break;
+					}
+					read();
+					++count;
+				}
+				if (count == 0) {
+					throw malformed();
+				}
+				break;
+			}
+		}
+	}
+
+	private String readString() throws IOException {
+		expect('"');
+		StringBuilder sb = new StringBuilder();
+		while (true) {
+			int c = read();
+			switch (c) {
+				case -1: {
+					throw malformed();
+				}
+				case '"': {
+					return sb.toString();
+				}
+				case '\\': {
+					int esc = read();
+					switch (esc) {
+						case 'b': {
+							sb.append('\b');
+							break;
+						}
+						case 'f': {
+							sb.append('\f');
+							break;
+						}
+						case 'n': {
+							sb.append('\n');
+							break;
+						}
+						case 'r': {
+							sb.append('\r');
+							break;
+						}
+						case 't': {
+							sb.append('\t');
+							break;
+						}
+						case 'u': {
+							int cp = 0;
+							for (int i = 0; i < 4; i++) {
+								int digit = Character.digit(read(), 16);
+								if (digit < 0) {
+									throw malformed();
+								}
+								cp = cp * 16 + digit;
+							}
+							sb.append((char) cp);
+							break;
+						}
+						case -1: {
+							throw malformed();
+						}
+						default: {
+							//", \, /
+							sb.append((char) esc);
+							break;
+						}
+					}
+					break;
+				}
+				default: {
+					sb.append((char) c);
+					break;
+				}
+			}
+		}
+	}
+
+	private void expect(char expected) throws IOException {
+		if (peekNonWhitespace() != expected) {
+			throw malformed();
+		}
+		read();
+	}
+
+	private boolean consumeIfNext(char c) throws IOException {
+		if (peekNonWhitespace() == c) {
+			read();
+			return true;
+		}
+		return false;
+	}
+
+	private int peekNonWhitespace() throws IOException {
+		int c = peek();
+		while (c >= 0 && Character.isWhitespace(c)) {
+			read();
+			c = peek();
+		}
+		return c;
+	}
+
+	private int peek() throws IOException {
+		if (peeked < 0) {
+			peeked = reader.read();
+		}
+		return peeked;
+	}
+
+	private int read() throws IOException {
+		if (peeked >= 0) {
+			int result = peeked;
+			peeked = -1;
+			return result;
+		}
+		return reader.read();
+	}
+
+	private static IOException malformed() {
+		return new IOException("Malformed source dependencies file.");
+	}
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2020 Bence Sipka
+ *
+ * This program is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package saker.msvc.impl.ccompile;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+
+/**
+ * Utility functions for the compact binary encoding of the {@link CompilerState}.
+ */
+final class StateSerialUtils {
+	private StateSerialUtils() {
+		throw new UnsupportedOperationException();
+	}
+
+	public static void writeVarInt(DataOutput out, int value) throws IOException {
+		while ((value & ~0x7F) != 0) {
+			out.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+
+	public static int readVarInt(DataInput in) throws IOException {
+		int result = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			int b = in.readUnsignedByte();
+			result |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return result;
+			}
+		}
+		throw new IOException("Malformed variable length integer.");
+	}
+
+	/**
+	 * Writes an ascending array of non-negative integers as variable length deltas.
+	 */
+	public static void writeAscendingInts(DataOutput out, int[] values) throws IOException {
+		if (values == null) {
+			writeVarInt(out, 0);
+			return;
+		}
+		writeVarInt(out, values.length + 1);
+		int prev = 0;
+		for (int v : values) {
+			writeVarInt(out, v - prev);
+			prev = v;
+		}
+	}
+
+	public static int[] readAscendingInts(DataInput in) throws IOException {
+		int len = readVarInt(in) - 1;
+		if (len < 0) {
+			return null;
+		}
+		int[] result = new int[len];
+		int prev = 0;
+		for (int i = 0; i < len; i++) {
+			prev += readVarInt(in);
+			result[i] = prev;
+		}
+		return result;
+	}
+
+	/**
+	 * Writes the string as the length of the common prefix with the previous string, and the remaining suffix.
+	 */
+	public static void writePrefixCompressedString(DataOutput out, String prev, String value) throws IOException {
+		int len = Math.min(prev.length(), value.length());
+		int common = 0;
+		while (common < len && prev.charAt(common) == value.charAt(common)) {
+			++common;
+		}
+		writeVarInt(out, common);
+		out.writeUTF(value.substring(common));
+	}
+
+	public static String readPrefixCompressedString(DataInput in, String prev) throws IOException {
+		int common = readVarInt(in);
+		if (common > prev.length()) {
+			throw new IOException("Invalid common prefix length: " + common);
+		}
+		return prev.substring(0, common) + in.readUTF();
+	}
+
+	/**
+	 * Writes the objects so that equal objects are only serialized once, and referenced by index afterwards.
+	 */
+	public static final class ObjectWriteTable {
+		private final Map<Object, Integer> indices = new HashMap<>();
+
+		public void write(ObjectOutput out, Object obj) throws IOException {
+			if (obj == null) {
+				writeVarInt(out, 0);
+				return;
+			}
+			Integer idx = indices.get(obj);
+			if (idx != null) {
+				writeVarInt(out, idx + 2);
+				return;
+			}
+			indices.put(obj, indices.size());
+			writeVarInt(out, 1);
+			out.writeObject(obj);
+		}
+
+		public void writeCollection(ObjectOutput out, Collection<?> objects) throws IOException {
+			if (objects == null) {
+				writeVarInt(out, 0);
+				return;
+			}
+			writeVarInt(out, objects.size() + 1);
+			for (Object obj : objects) {
+				write(out, obj);
+			}
+		}
+	}
+
+	public static final class ObjectReadTable {
+		private final List<Object> objects = new ArrayList<>();
+
+		@SuppressWarnings("unchecked")
+		public <T> T read(ObjectInput in) throws IOException, ClassNotFoundException {
+			int idx = readVarInt(in);
+			if (idx == 0) {
+				return null;
+			}
+			if (idx == 1) {
+				Object result = in.readObject();
+				objects.add(result);
+				return (T) result;
+			}
+			idx -= 2;
+			if (idx >= objects.size()) {
+				throw new IOException("Invalid object reference: " + idx);
+			}
+			return (T) objects.get(idx);
+		}
+
+		public <T extends Comparable<? super T>> NavigableSet<T> readSortedSet(ObjectInput in)
+				throws IOException, ClassNotFoundException {
+			int size = readVarInt(in) - 1;
+			if (size < 0) {
+				return null;
+			}
+			NavigableSet<T> result = new TreeSet<>();
+			for (int i = 0; i < size; i++) {
+				result.add(read(in));
+			}
+			return Collections.unmodifiableNavigableSet(result);
+		}
+	}
+}
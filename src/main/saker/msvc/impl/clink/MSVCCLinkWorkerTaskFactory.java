@@ -62,6 +62,7 @@ import saker.msvc.impl.option.CompilationPathOption;
 import saker.msvc.impl.option.CompilationPathOption.Visitor;
 import saker.msvc.impl.option.FileCompilationPathOption;
 import saker.msvc.impl.option.SimpleParameterOption;
+import saker.msvc.impl.sdk.ResolvedSDKReferencesEnvironmentProperty;
 import saker.msvc.impl.util.ByteSinkProcessIOConsumer;
 import saker.msvc.impl.util.SystemArchitectureEnvironmentProperty;
 import saker.msvc.main.clink.MSVCCLinkTaskFactory;
@@ -391,8 +392,8 @@ public class MSVCCLinkWorkerTaskFactory
 
 		@Override
 		public LinkerInnerTaskFactoryResult run(TaskContext taskcontext) throws Exception {
-			NavigableMap<String, SDKReference> sdks = SDKSupportUtils
-					.resolveSDKReferences(taskcontext.getExecutionContext().getEnvironment(), sdkDescriptions);
+			NavigableMap<String, SDKReference> sdks = taskcontext.getExecutionContext().getEnvironment()
+					.getEnvironmentPropertyCurrentValue(new ResolvedSDKReferencesEnvironmentProperty(sdkDescriptions));
 
 			NavigableMap<SakerPath, ContentDescriptor> inputdescriptors = new TreeMap<>();
 
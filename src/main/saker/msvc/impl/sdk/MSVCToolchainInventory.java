@@ -0,0 +1,358 @@
+/*
+ * Copyright (C) 2020 Bence Sipka
+ *
+ * This program is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package saker.msvc.impl.sdk;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map.Entry;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.function.Predicate;
+
+import saker.build.file.path.SakerPath;
+import saker.build.file.provider.FileEntry;
+import saker.build.file.provider.LocalFileProvider;
+import saker.build.thirdparty.saker.util.StringUtils;
+import saker.nest.bundle.BundleIdentifier;
+import saker.nest.bundle.NestBundleClassLoader;
+import testing.saker.msvc.TestFlag;
+
+/**
+ * The MSVC toolchains discovered in a Visual Studio or Program Files directory.
+ * <p>
+ * The inventory is persisted in the bundle storage directory, so the directory trees don't need to be scanned again
+ * when the build daemon starts. A persisted inventory is used as long as the modification times of the scanned
+ * directories are unchanged.
+ */
+public final class MSVCToolchainInventory {
+	private static final int FORMAT_VERSION = 1;
+	private static final String STORAGE_DIRECTORY_NAME = "toolchains";
+
+	private static final String KIND_REGULAR = "regular";
+	private static final String KIND_LEGACY = "legacy";
+
+	/**
+	 * The stamp of a directory that doesn't exist.
+	 */
+	private static final long STAMP_MISSING = -1;
+
+	private final NavigableMap<SakerPath, Long> directoryStamps;
+	/**
+	 * The found toolchain versions mapped to their directories, in the order of preference.
+	 */
+	private final List<Entry<String, SakerPath>> toolchains;
+
+	private MSVCToolchainInventory(NavigableMap<SakerPath, Long> directoryStamps,
+			List<Entry<String, SakerPath>> toolchains) {
+		this.directoryStamps = directoryStamps;
+		this.toolchains = toolchains;
+	}
+
+	public static AbstractVCToolsSDKReference searchRegularToolchain(SakerPath studiosbasedir,
+			Predicate<? super String> versionpredicate) {
+		MSVCToolchainInventory inventory = get(KIND_REGULAR, studiosbasedir);
+		for (Entry<String, SakerPath> entry : inventory.toolchains) {
+			if (versionpredicate.test(entry.getKey())) {
+				return new RegularLayoutVCToolsSDKReference(entry.getKey(), entry.getValue());
+			}
+		}
+		return null;
+	}
+
+	public static AbstractVCToolsSDKReference searchLegacyToolchain(SakerPath programfiles,
+			Predicate<? super String> versionpredicate) {
+		MSVCToolchainInventory inventory = get(KIND_LEGACY, programfiles);
+		for (Entry<String, SakerPath> entry : inventory.toolchains) {
+			if (versionpredicate.test(entry.getKey())) {
+				return new LegacyLayoutVCToolsSDKReference(entry.getKey(), entry.getValue());
+			}
+		}
+		return null;
+	}
+
+	private static MSVCToolchainInventory get(String kind, SakerPath basedir) {
+		Path storagefile = getStorageFilePath(kind, basedir);
+		if (storagefile != null) {
+			MSVCToolchainInventory stored = read(storagefile, basedir);
+			if (stored != null && stored.isUpToDate()) {
+				return stored;
+			}
+		}
+		if (TestFlag.ENABLED) {
+			TestFlag.metric().toolchainDirectoryScanned(basedir);
+		}
+		MSVCToolchainInventory result;
+		if (KIND_REGULAR.equals(kind)) {
+			result = scanRegular(basedir);
+		} else {
+			result = scanLegacy(basedir);
+		}
+		if (storagefile != null) {
+			try {
+				result.write(storagefile, basedir);
+			} catch (IOException e) {
+				//the directory will be scanned again next time
+			}
+		}
+		return result;
+	}
+
+	private boolean isUpToDate() {
+		LocalFileProvider fp = LocalFileProvider.getInstance();
+		for (Entry<SakerPath, Long> entry : directoryStamps.entrySet()) {
+			if (getDirectoryStamp(fp, entry.getKey()) != entry.getValue().longValue()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static long getDirectoryStamp(LocalFileProvider fp, SakerPath path) {
+		try {
+			FileEntry attrs = fp.getFileAttributes(path);
+			if (!attrs.isDirectory()) {
+				return STAMP_MISSING;
+			}
+			return attrs.getLastModifiedMillis();
+		} catch (IOException e) {
+			return STAMP_MISSING;
+		}
+	}
+
+	private static MSVCToolchainInventory scanLegacy(SakerPath programfiles) {
+		LocalFileProvider fp = LocalFileProvider.getInstance();
+		NavigableMap<SakerPath, Long> stamps = new TreeMap<>();
+		List<Entry<String, SakerPath>> toolchains = new ArrayList<>();
+
+		stamps.put(programfiles, getDirectoryStamp(fp, programfiles));
+		//The valid entries are expected to be "Microsoft Visual Studio <version>". E.g. Microsoft Visual Studio 14.0
+		NavigableMap<String, ? extends FileEntry> programfilesentries;
+		try {
+			programfilesentries = fp.getDirectoryEntries(programfiles);
+		} catch (IOException e) {
+			return new MSVCToolchainInventory(stamps, toolchains);
+		}
+		//the version numbers in the directory name have the same semantics as the bundle identifier version numbers
+		//descending by version
+		NavigableMap<String, String> vsverdirs = new TreeMap<>(
+				Collections.reverseOrder(BundleIdentifier::compareVersionNumbers));
+		for (Entry<String, ? extends FileEntry> entry : programfilesentries.entrySet()) {
+			if (!entry.getValue().isDirectory()) {
+				continue;
+			}
+			String dirname = entry.getKey();
+			if (!StringUtils.startsWithIgnoreCase(dirname, "Microsoft Visual Studio ")) {
+				continue;
+			}
+			String verafter = dirname.substring(24);
+			if (!BundleIdentifier.isValidVersionNumber(verafter)) {
+				continue;
+			}
+			vsverdirs.put(verafter, dirname);
+		}
+		for (Entry<String, String> entry : vsverdirs.entrySet()) {
+			SakerPath vcdirpath = programfiles.resolve(entry.getValue(), "VC");
+			//x86 host x86 target cl exe 
+			SakerPath clexepath = vcdirpath.resolve("bin", "cl.exe");
+			if (isRegularFile(fp, clexepath)) {
+				toolchains.add(new SimpleImmutableEntry<>(entry.getKey(), vcdirpath));
+			} else {
+				//rescan if the exe is added later
+				stamps.put(clexepath.getParent(), getDirectoryStamp(fp, clexepath.getParent()));
+			}
+		}
+		return new MSVCToolchainInventory(stamps, toolchains);
+	}
+
+	private static MSVCToolchainInventory scanRegular(SakerPath studiosbasedir) {
+		LocalFileProvider fp = LocalFileProvider.getInstance();
+		NavigableMap<SakerPath, Long> stamps = new TreeMap<>();
+		List<Entry<String, SakerPath>> toolchains = new ArrayList<>();
+
+		stamps.put(studiosbasedir, getDirectoryStamp(fp, studiosbasedir));
+		//The entries are expected to be the year number version of the Visual Studio. E.g. 2019
+		NavigableMap<String, ? extends FileEntry> installversionentries;
+		try {
+			installversionentries = fp.getDirectoryEntries(studiosbasedir);
+		} catch (IOException e) {
+			return new MSVCToolchainInventory(stamps, toolchains);
+		}
+		//descending install version number directories
+		NavigableMap<Integer, String> versiondirs = new TreeMap<>(Comparator.reverseOrder());
+		for (Entry<String, ? extends FileEntry> entry : installversionentries.entrySet()) {
+			if (!entry.getValue().isDirectory()) {
+				continue;
+			}
+			int versionnum;
+			try {
+				versionnum = Integer.parseInt(entry.getKey());
+			} catch (NumberFormatException e) {
+				continue;
+			}
+			versiondirs.put(versionnum, entry.getKey());
+		}
+		for (Entry<Integer, String> entry : versiondirs.entrySet()) {
+			SakerPath versiondir = studiosbasedir.resolve(entry.getValue());
+			stamps.put(versiondir, getDirectoryStamp(fp, versiondir));
+			NavigableMap<String, ? extends FileEntry> vsinstallentries;
+			try {
+				//TODO sort these entries by type? Enterprise, Professional, Community? (Professional may not exist, check...)
+
+				//The entries is expected to be the type of installation. E.g. Community
+				vsinstallentries = fp.getDirectoryEntries(versiondir);
+			} catch (IOException e) {
+				//not valid dir
+				continue;
+			}
+			for (Entry<String, ? extends FileEntry> installentry : vsinstallentries.entrySet()) {
+				if (!installentry.getValue().isDirectory()) {
+					continue;
+				}
+				SakerPath msvcdirpath = versiondir.resolve(installentry.getKey(), "VC", "Tools", "MSVC");
+				//recorded even if missing, so the inventory is invalidated when the tools are installed
+				stamps.put(msvcdirpath, getDirectoryStamp(fp, msvcdirpath));
+				NavigableMap<String, ? extends FileEntry> msvcdirentries;
+				try {
+					//The entries are expected to be version numers. E.g. 14.22.27905
+					msvcdirentries = fp.getDirectoryEntries(msvcdirpath);
+				} catch (IOException e) {
+					continue;
+				}
+
+				//we use the bundle identifier version methods as it is semantically the same
+				//descending version numbers
+				NavigableSet<String> versiondirectories = new TreeSet<>(
+						Collections.reverseOrder(BundleIdentifier::compareVersionNumbers));
+				for (Entry<String, ? extends FileEntry> msvctoolsverentry : msvcdirentries.entrySet()) {
+					if (!msvctoolsverentry.getValue().isDirectory()) {
+						continue;
+					}
+					String version = msvctoolsverentry.getKey();
+					if (!BundleIdentifier.isValidVersionNumber(version)) {
+						continue;
+					}
+					versiondirectories.add(version);
+				}
+				for (String versiondirname : versiondirectories) {
+					SakerPath versionedmsvctoolsdirpath = msvcdirpath.resolve(versiondirname);
+					SakerPath clexepath = versionedmsvctoolsdirpath.resolve("bin", "Hostx86", "x86", "cl.exe");
+					//we expect the cl compiler exe to be present in the above path
+					if (isRegularFile(fp, clexepath)) {
+						toolchains.add(new SimpleImmutableEntry<>(versiondirname,
+								versionedmsvctoolsdirpath));
+					} else {
+						//rescan if the exe is added later
+						stamps.put(clexepath.getParent(), getDirectoryStamp(fp, clexepath.getParent()));
+					}
+				}
+			}
+		}
+		return new MSVCToolchainInventory(stamps, toolchains);
+	}
+
+	private static boolean isRegularFile(LocalFileProvider fp, SakerPath path) {
+		try {
+			return fp.getFileAttributes(path).isRegularFile();
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	private static Path getStorageFilePath(String kind, SakerPath basedir) {
+		Path storagedir;
+		if (TestFlag.ENABLED) {
+			storagedir = TestFlag.metric().getToolchainInventoryStorageDirectory();
+			if (storagedir == null) {
+				return null;
+			}
+		} else {
+			NestBundleClassLoader cl = (NestBundleClassLoader) MSVCToolchainInventory.class.getClassLoader();
+			storagedir = cl.getBundle().getBundleStoragePath().resolve(STORAGE_DIRECTORY_NAME);
+		}
+		//the file system is case insensitive on windows
+		String basedirstr = basedir.toString().toLowerCase(Locale.ENGLISH);
+		return storagedir.resolve(kind + "_" + Integer.toHexString(basedirstr.hashCode()));
+	}
+
+	private static MSVCToolchainInventory read(Path storagefile, SakerPath basedir) {
+		try (InputStream is = Files.newInputStream(storagefile);
+				DataInputStream in = new DataInputStream(is)) {
+			if (in.readInt() != FORMAT_VERSION) {
+				return null;
+			}
+			if (!basedir.equals(SakerPath.valueOf(in.readUTF()))) {
+				//different directory with the same hash
+				return null;
+			}
+			NavigableMap<SakerPath, Long> stamps = new TreeMap<>();
+			for (int count = in.readInt(); count > 0; --count) {
+				SakerPath path = SakerPath.valueOf(in.readUTF());
+				stamps.put(path, in.readLong());
+			}
+			List<Entry<String, SakerPath>> toolchains = new ArrayList<>();
+			for (int count = in.readInt(); count > 0; --count) {
+				String version = in.readUTF();
+				toolchains.add(new SimpleImmutableEntry<>(version,
+						SakerPath.valueOf(in.readUTF())));
+			}
+			return new MSVCToolchainInventory(stamps, toolchains);
+		} catch (IOException | RuntimeException e) {
+			//not found or corrupt
+			return null;
+		}
+	}
+
+	private void write(Path storagefile, SakerPath basedir) throws IOException {
+		Files.createDirectories(storagefile.getParent());
+		//write to a temporary file first, so concurrent readers don't see partial contents
+		Path tempfile = storagefile.resolveSibling(storagefile.getFileName() + "." + UUID.randomUUID() + ".temp");
+		try {
+			try (OutputStream os = Files.newOutputStream(tempfile);
+					DataOutputStream out = new DataOutputStream(os)) {
+				out.writeInt(FORMAT_VERSION);
+				out.writeUTF(basedir.toString());
+				out.writeInt(directoryStamps.size());
+				for (Entry<SakerPath, Long> entry : directoryStamps.entrySet()) {
+					out.writeUTF(entry.getKey().toString());
+					out.writeLong(entry.getValue());
+				}
+				out.writeInt(toolchains.size());
+				for (Entry<String, SakerPath> entry : toolchains) {
+					out.writeUTF(entry.getKey());
+					out.writeUTF(entry.getValue().toString());
+				}
+			}
+			Files.move(tempfile, storagefile, StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			Files.deleteIfExists(tempfile);
+		}
+	}
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2020 Bence Sipka
+ *
+ * This program is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package saker.msvc.impl.sdk;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.NavigableMap;
+
+import saker.build.runtime.environment.EnvironmentProperty;
+import saker.build.runtime.environment.SakerEnvironment;
+import saker.build.thirdparty.saker.util.io.SerialUtils;
+import saker.sdk.support.api.SDKDescription;
+import saker.sdk.support.api.SDKReference;
+import saker.sdk.support.api.SDKSupportUtils;
+
+/**
+ * Environment property that resolves the SDK references for the pinned SDK descriptions.
+ * <p>
+ * The compiler and linker inner tasks resolve the same SDK descriptions for every invocation, which requires the
+ * evaluation of the SDK environment properties. Resolving them through this property lets the build environment cache
+ * the results, and discard them when the environment properties are invalidated.
+ */
+public final class ResolvedSDKReferencesEnvironmentProperty
+		implements EnvironmentProperty<NavigableMap<String, SDKReference>>, Externalizable {
+	private static final long serialVersionUID = 1L;
+
+	private NavigableMap<String, SDKDescription> sdkDescriptions;
+
+	/**
+	 * For {@link Externalizable}.
+	 */
+	public ResolvedSDKReferencesEnvironmentProperty() {
+	}
+
+	public ResolvedSDKReferencesEnvironmentProperty(NavigableMap<String, SDKDescription> sdkDescriptions) {
+		this.sdkDescriptions = sdkDescriptions;
+	}
+
+	@Override
+	public NavigableMap<String, SDKReference> getCurrentValue(SakerEnvironment environment) throws Exception {
+		return SDKSupportUtils.resolveSDKReferences(environment, sdkDescriptions);
+	}
+
+	@Override
+	public void writeExternal(ObjectOutput out) throws IOException {
+		SerialUtils.writeExternalMap(out, sdkDescriptions);
+	}
+
+	@Override
+	public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+		sdkDescriptions = SerialUtils.readExternalSortedImmutableNavigableMap(in,
+				SDKSupportUtils.getSDKNameComparator());
+	}
+
+	@Override
+	public int hashCode() {
+		final int prime = 31;
+		int result = 1;
+		result = prime * result + ((sdkDescriptions == null) ? 0 : sdkDescriptions.hashCode());
+		return result;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null)
+			return false;
+		if (getClass() != obj.getClass())
+			return false;
+		ResolvedSDKReferencesEnvironmentProperty other = (ResolvedSDKReferencesEnvironmentProperty) obj;
+		if (sdkDescriptions == null) {
+			if (other.sdkDescriptions != null)
+				return false;
+		} else if (!sdkDescriptions.equals(other.sdkDescriptions))
+			return false;
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "[" + sdkDescriptions + "]";
+	}
+}
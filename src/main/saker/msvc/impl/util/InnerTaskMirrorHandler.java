@@ -69,8 +69,20 @@ public class InnerTaskMirrorHandler {
 			}
 			result = new MirroredFileContents(mirrorpath, DirectoryContentDescriptor.INSTANCE);
 			mirrorResults.put(path, result);
+			directoryMirrored(path, mirrorpath);
 			return result.getPath();
 		}
 	}
 
+	/**
+	 * Called after the directory at the given path was mirrored by this handler.
+	 * 
+	 * @param path
+	 *            The path of the directory.
+	 * @param mirrorpath
+	 *            The local path that the directory was mirrored to.
+	 */
+	protected void directoryMirrored(SakerPath path, Path mirrorpath) {
+	}
+
 }
@@ -21,9 +21,14 @@ import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
 import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SeekableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.function.Supplier;
 
 import saker.build.file.provider.LocalFileProvider;
@@ -42,6 +47,14 @@ public final class SystemArchitectureEnvironmentProperty implements EnvironmentP
 
 	public static final SystemArchitectureEnvironmentProperty INSTANCE = new SystemArchitectureEnvironmentProperty();
 
+	private static final int PE_HEADER_OFFSET_POSITION = 0x3C;
+	/**
+	 * The <code>PE\0\0</code> signature in little endian.
+	 */
+	private static final int PE_SIGNATURE = 0x00004550;
+	private static final int IMAGE_FILE_MACHINE_I386 = 0x014C;
+	private static final int IMAGE_FILE_MACHINE_AMD64 = 0x8664;
+
 	/**
 	 * For {@link Externalizable}.
 	 */
@@ -50,26 +63,181 @@ public final class SystemArchitectureEnvironmentProperty implements EnvironmentP
 
 	@Override
 	public String getCurrentValue(SakerEnvironment environment) throws Exception {
+		if (TestFlag.ENABLED) {
+			//each test can probe using a different metric
+			return readProcessorArchitecture();
+		}
 		return ARCHITECTURE_READ_SUPPLIER.get();
 	}
 
 	private static String readProcessorArchitecture() {
 		if (TestFlag.ENABLED) {
-			return TestFlag.metric().getSystemArchitecture();
+			String arch = TestFlag.metric().getSystemArchitecture();
+			if (arch != null) {
+				return arch;
+			}
+		}
+
+		String arch = getArchitectureFromEnvironmentVariables();
+		if (arch != null) {
+			return arch;
+		}
+		arch = getArchitectureFromSystemProperties();
+		if (arch != null) {
+			return arch;
 		}
 
-		NestBundleClassLoader cl = (NestBundleClassLoader) SystemArchitectureEnvironmentProperty.class.getClassLoader();
-		Path filepath = cl.getBundle().getBundleStoragePath().resolve("host_arch");
-		try {
-			String arch = LocalFileProvider.getInstance().getAllBytes(filepath).toString();
-			if ("x64".equalsIgnoreCase(arch)) {
-				return "x64";
+		Path filepath;
+		if (TestFlag.ENABLED) {
+			filepath = TestFlag.metric().getHostArchitectureFilePath();
+		} else {
+			NestBundleClassLoader cl = (NestBundleClassLoader) SystemArchitectureEnvironmentProperty.class
+					.getClassLoader();
+			filepath = cl.getBundle().getBundleStoragePath().resolve("host_arch");
+		}
+		if (filepath != null) {
+			try {
+				arch = LocalFileProvider.getInstance().getAllBytes(filepath).toString();
+				if ("x64".equalsIgnoreCase(arch)) {
+					return "x64";
+				}
+				if ("x86".equalsIgnoreCase(arch)) {
+					return "x86";
+				}
+				//unrecognized architecture
+			} catch (IOException e2) {
 			}
-			if ("x86".equalsIgnoreCase(arch)) {
-				return "x86";
+		}
+
+		arch = getArchitectureFromSystemBinary();
+		if (arch == null) {
+			arch = runSystemInfo();
+		}
+		if (filepath != null) {
+			try {
+				LocalFileProvider.getInstance().createDirectories(filepath.getParent());
+				Files.write(filepath, arch.getBytes(StandardCharsets.UTF_8));
+			} catch (IOException e) {
 			}
-			//unrecognized architecture
-		} catch (IOException e2) {
+		}
+		return arch;
+	}
+
+	/**
+	 * Determines the architecture based on the <code>PROCESSOR_ARCHITECTURE</code> environment variables.
+	 * <p>
+	 * <code>PROCESSOR_ARCHITEW6432</code> is set for 32 bit processes running on a 64 bit system.
+	 */
+	private static String getArchitectureFromEnvironmentVariables() {
+		String arch = toArchitecture(getEnvironmentVariable("PROCESSOR_ARCHITEW6432"));
+		if (arch != null) {
+			return arch;
+		}
+		return toArchitecture(getEnvironmentVariable("PROCESSOR_ARCHITECTURE"));
+	}
+
+	private static String getArchitectureFromSystemProperties() {
+		String osarch = getSystemProperty("os.arch");
+		if ("amd64".equalsIgnoreCase(osarch) || "x86_64".equalsIgnoreCase(osarch)) {
+			return "x64";
+		}
+		//a 32 bit JVM reports x86 on 64 bit systems as well, so that is not conclusive
+		return null;
+	}
+
+	/**
+	 * Determines the architecture based on the machine type in the PE header of the system kernel32.dll.
+	 */
+	private static String getArchitectureFromSystemBinary() {
+		Path binarypath = null;
+		if (TestFlag.ENABLED) {
+			binarypath = TestFlag.metric().getArchitectureProbeBinaryPath();
+		}
+		if (binarypath == null) {
+			String systemroot = getEnvironmentVariable("SystemRoot");
+			if (systemroot == null) {
+				return null;
+			}
+			try {
+				//Sysnative is only present for 32 bit processes, the System32 directory is redirected for them
+				binarypath = Paths.get(systemroot, "Sysnative", "kernel32.dll");
+				if (!Files.isRegularFile(binarypath)) {
+					binarypath = Paths.get(systemroot, "System32", "kernel32.dll");
+				}
+			} catch (InvalidPathException e) {
+				return null;
+			}
+		}
+		try (SeekableByteChannel channel = Files.newByteChannel(binarypath)) {
+			ByteBuffer buf = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+			channel.position(PE_HEADER_OFFSET_POSITION);
+			if (!readFully(channel, buf)) {
+				return null;
+			}
+			int peoffset = buf.getInt(0);
+			if (peoffset < 0) {
+				return null;
+			}
+			ByteBuffer header = ByteBuffer.allocate(6).order(ByteOrder.LITTLE_ENDIAN);
+			channel.position(peoffset);
+			if (!readFully(channel, header) || header.getInt(0) != PE_SIGNATURE) {
+				return null;
+			}
+			switch (header.getShort(4) & 0xFFFF) {
+				case IMAGE_FILE_MACHINE_AMD64: {
+					return "x64";
+				}
+				case IMAGE_FILE_MACHINE_I386: {
+					return "x86";
+				}
+				default: {
+					return null;
+				}
+			}
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	private static boolean readFully(SeekableByteChannel channel, ByteBuffer buf) throws IOException {
+		while (buf.hasRemaining()) {
+			if (channel.read(buf) < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static String toArchitecture(String processorarchitecture) {
+		if (processorarchitecture == null) {
+			return null;
+		}
+		if ("AMD64".equalsIgnoreCase(processorarchitecture)) {
+			return "x64";
+		}
+		if ("x86".equalsIgnoreCase(processorarchitecture)) {
+			return "x86";
+		}
+		return null;
+	}
+
+	private static String getEnvironmentVariable(String name) {
+		if (TestFlag.ENABLED) {
+			return TestFlag.metric().getEnvironmentVariable(name);
+		}
+		return System.getenv(name);
+	}
+
+	private static String getSystemProperty(String name) {
+		if (TestFlag.ENABLED) {
+			return TestFlag.metric().getSystemProperty(name);
+		}
+		return System.getProperty(name);
+	}
+
+	private static String runSystemInfo() {
+		if (TestFlag.ENABLED) {
+			TestFlag.metric().systemInfoRunning();
 		}
 		try (ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
 			ProcessBuilder pb = new ProcessBuilder("systeminfo", "/FO", "LIST");
@@ -93,11 +261,6 @@ public final class SystemArchitectureEnvironmentProperty implements EnvironmentP
 			} else {
 				throw new IOException("Failed to determine system type from value: " + val);
 			}
-			try {
-				LocalFileProvider.getInstance().createDirectories(filepath.getParent());
-				Files.write(filepath, result.getBytes(StandardCharsets.UTF_8));
-			} catch (IOException e) {
-			}
 			return result;
 		} catch (IOException e) {
 			throw new UncheckedIOException("Failed to execute systeminfo.", e);
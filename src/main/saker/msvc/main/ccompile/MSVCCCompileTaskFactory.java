@@ -15,12 +15,14 @@
  */
 package saker.msvc.main.ccompile;
 
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.NavigableMap;
@@ -29,6 +31,7 @@ import java.util.Objects;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.zip.CRC32;
 
 import saker.build.exception.PropertyComputationFailedException;
 import saker.build.runtime.execution.ExecutionContext;
@@ -78,7 +81,10 @@ import saker.sdk.support.api.SDKDescription;
 import saker.sdk.support.api.SDKSupportUtils;
 import saker.sdk.support.api.exc.SDKNameConflictException;
 import saker.sdk.support.main.option.SDKDescriptionTaskOption;
+import saker.std.api.file.location.ExecutionFileLocation;
 import saker.std.api.file.location.FileLocation;
+import saker.std.api.file.location.FileLocationVisitor;
+import saker.std.api.file.location.LocalFileLocation;
 import saker.std.main.file.option.MultiFileLocationTaskOption;
 import saker.std.main.file.utils.TaskOptionUtils;
 
@@ -133,6 +139,47 @@ import saker.std.main.file.utils.TaskOptionUtils;
 				+ "In case of unresolveable merge conflicts, the task will throw an appropriate exception.\n"
 				+ "Output from the " + COptionsPresetTaskFactory.TASK_NAME
 				+ "() task can be passed as a value to this parameter."))
+@NestParameterInformation(value = "BatchCompilation",
+		type = @NestTypeUsage(boolean.class),
+		info = @NestInformation("Specifies whether or not the source files with the same compilation arguments should be "
+				+ "compiled together using a single compiler invocation.\n"
+				+ "Batch compilation can reduce the overhead of starting the compiler process for each source file. "
+				+ "The files are still distributed among multiple batches in order to keep the compilation parallel.\n"
+				+ "Batch compilation is not used if ReproducibleObjects is set to true.\n"
+				+ "The default is false."))
+@NestParameterInformation(value = "StableOutputNames",
+		type = @NestTypeUsage(boolean.class),
+		info = @NestInformation("Specifies whether or not the names of the output object files should be derived from the "
+				+ "paths of the source files.\n"
+				+ "If set to true, the output file names will have the format of <file-name>-<path-hash>, so "
+				+ "adding or removing source files with the same name doesn't cause other files to be renamed and recompiled.\n"
+				+ "The default is false."))
+@NestParameterInformation(value = "IgnoreHeaderFormattingChanges",
+		type = @NestTypeUsage(boolean.class),
+		info = @NestInformation("Specifies whether or not the source files should be recompiled if only the comments "
+				+ "or the whitespace between the tokens are modified in an included header file.\n"
+				+ "If set to true, the task stores a fingerprint of each included file that doesn't depend on the comments "
+				+ "and insignificant whitespace. The dependent sources are only recompiled if the fingerprint changes. "
+				+ "Modifications that change the line numbers of the tokens are still considered as a change, as they "
+				+ "affect the __LINE__ macro and the debug information.\n"
+				+ "The default is false."))
+@NestParameterInformation(value = "ReproducibleObjects",
+		type = @NestTypeUsage(boolean.class),
+		info = @NestInformation("Specifies whether or not the object files should be generated in a reproducible manner.\n"
+				+ "If set to true, the /Brepro option is passed to the compiler, and a recompiled object file only replaces "
+				+ "the previous output if their contents differ. The tasks that use the object files (e.g. linking) "
+				+ "won't be rerun if the recompilation produced the same object file.\n"
+				+ "The source files are compiled one by one in this case, as the debug information in the object files "
+				+ "contains their paths, which are not stable in batch compilation.\n"
+				+ "The default is false."))
+@NestParameterInformation(value = "CompilerMemoryBudget",
+		type = @NestTypeUsage(long.class),
+		info = @NestInformation("Specifies the memory in megabytes that the concurrently running compiler processes may use "
+				+ "in a build environment.\n"
+				+ "The memory usage of a source file is estimated based on the size of its includes in the previous compilation. "
+				+ "The files are compiled with less parallelism if the sum of their estimates would exceed the budget. "
+				+ "A file that alone exceeds the budget, or previously ran out of memory is compiled alone.\n"
+				+ "The default is unlimited."))
 public class MSVCCCompileTaskFactory extends FrontendTaskFactory<Object> {
 	private static final long serialVersionUID = 1L;
 
@@ -157,6 +204,21 @@ public class MSVCCCompileTaskFactory extends FrontendTaskFactory<Object> {
 			@SakerInput(value = { "CompilerOptions" })
 			public Collection<MSVCCompilerOptions> compilerOptionsOption;
 
+			@SakerInput(value = { "BatchCompilation" })
+			public Boolean batchCompilationOption;
+
+			@SakerInput(value = { "StableOutputNames" })
+			public Boolean stableOutputNamesOption;
+
+			@SakerInput(value = { "IgnoreHeaderFormattingChanges" })
+			public Boolean ignoreHeaderFormattingChangesOption;
+
+			@SakerInput(value = { "ReproducibleObjects" })
+			public Boolean reproducibleObjectsOption;
+
+			@SakerInput(value = { "CompilerMemoryBudget" })
+			public Long compilerMemoryBudgetOption;
+
 			@Override
 			public Object run(TaskContext taskcontext) throws Exception {
 				if (saker.build.meta.Versions.VERSION_FULL_COMPOUND >= 8_006) {
@@ -322,7 +384,13 @@ public class MSVCCCompileTaskFactory extends FrontendTaskFactory<Object> {
 										throw new IllegalArgumentException(
 												"Input file doesn't have file name: " + filelocation);
 									}
-									String outfname = getOutFileName(pathfilename, outnames, passsubid);
+									String outfname;
+									if (Boolean.TRUE.equals(stableOutputNamesOption)) {
+										outfname = getStableOutFileName(filelocation, pathfilename, outnames,
+												passsubid);
+									} else {
+										outfname = getOutFileName(pathfilename, outnames, passsubid);
+									}
 									String language = getLanguageBasedOnFileName(optionlanguage, pathfilename);
 
 									FileCompilationConfiguration nconfig = new FileCompilationConfiguration(outfname,
@@ -446,7 +514,12 @@ public class MSVCCCompileTaskFactory extends FrontendTaskFactory<Object> {
 							if (pchoutfilename == null) {
 								String pchfilename = MSVCUtils.getFileName(configholder.precompiledHeader);
 
-								pchoutfilename = getOutFileName(pchfilename, outnames, null);
+								if (Boolean.TRUE.equals(stableOutputNamesOption)) {
+									pchoutfilename = getStableOutFileName(configholder.precompiledHeader, pchfilename,
+											outnames, null);
+								} else {
+									pchoutfilename = getOutFileName(pchfilename, outnames, null);
+								}
 								precompiledheaderoutnamesconfigurations.put(pchprops, pchoutfilename);
 							}
 							configholder.config.setPrecompiledHeader(configholder.precompiledHeader, pchoutfilename);
@@ -478,6 +551,12 @@ public class MSVCCCompileTaskFactory extends FrontendTaskFactory<Object> {
 				MSVCCCompileWorkerTaskFactory worker = new MSVCCCompileWorkerTaskFactory();
 				worker.setFiles(files);
 				worker.setSdkDescriptions(sdkdescriptions);
+				worker.setBatchCompilation(Boolean.TRUE.equals(batchCompilationOption));
+				worker.setIgnoreHeaderFormattingChanges(Boolean.TRUE.equals(ignoreHeaderFormattingChangesOption));
+				worker.setReproducibleObjects(Boolean.TRUE.equals(reproducibleObjectsOption));
+				if (compilerMemoryBudgetOption != null && compilerMemoryBudgetOption > 0) {
+					worker.setCompilerMemoryBudget(compilerMemoryBudgetOption * 1024 * 1024);
+				}
 				taskcontext.startTask(workertaskid, worker, null);
 
 				SimpleStructuredObjectTaskResult result = new SimpleStructuredObjectTaskResult(workertaskid);
@@ -680,6 +759,36 @@ public class MSVCCCompileTaskFactory extends FrontendTaskFactory<Object> {
 		}
 	}
 
+	private static String getStableOutFileName(FileLocation filelocation, String fname, Set<String> presentfiles,
+			CompilationIdentifier passsubid) {
+		Objects.requireNonNull(fname, "file name");
+		String[] pathstr = { null };
+		filelocation.accept(new FileLocationVisitor() {
+			@Override
+			public void visit(ExecutionFileLocation loc) {
+				pathstr[0] = loc.getPath().toString();
+			}
+
+			@Override
+			public void visit(LocalFileLocation loc) {
+				pathstr[0] = loc.getLocalPath().toString();
+			}
+		});
+		if (pathstr[0] == null) {
+			return getOutFileName(fname, presentfiles, passsubid);
+		}
+		//the same file may be compiled with different sub-identifiers
+		String hashinput = pathstr[0].toLowerCase(Locale.ENGLISH);
+		if (passsubid != null) {
+			hashinput = passsubid + ":" + hashinput;
+		}
+		CRC32 crc = new CRC32();
+		crc.update(hashinput.getBytes(StandardCharsets.UTF_8));
+		String stablefname = fname + "-" + String.format("%08x", crc.getValue());
+		//fall back to the numbered names if the same file is added multiple times, or in case of hash collisions
+		return getOutFileName(stablefname, presentfiles, null);
+	}
+
 	private static class ConfigSetupHolder {
 		public FileCompilationConfiguration config;
 		public FileLocation precompiledHeader;
@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2020 Bence Sipka
+ *
+ * This program is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package testing.saker.msvc.tests.arch;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import testing.saker.SakerTest;
+
+@SakerTest
+public class EnvironmentVariableArchitectureTest extends SystemArchitectureTestCase {
+	@Override
+	protected void runArchitectureTest(Path testdir) throws Throwable {
+		//the later tiers would report a different architecture
+		systemProperties.put("os.arch", "amd64");
+		hostArchitectureFile = testdir.resolve("host_arch");
+		Files.write(hostArchitectureFile, "x64".getBytes());
+
+		environmentVariables.put("PROCESSOR_ARCHITECTURE", "x86");
+		assertArchitecture("x86");
+
+		//32 bit process on a 64 bit system
+		environmentVariables.put("PROCESSOR_ARCHITEW6432", "AMD64");
+		assertArchitecture("x64");
+
+		environmentVariables.remove("PROCESSOR_ARCHITEW6432");
+		environmentVariables.put("PROCESSOR_ARCHITECTURE", "AMD64");
+		systemProperties.put("os.arch", "x86");
+		Files.write(hostArchitectureFile, "x86".getBytes());
+		assertArchitecture("x64");
+	}
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2020 Bence Sipka
+ *
+ * This program is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package testing.saker.msvc.tests.arch;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import testing.saker.SakerTest;
+
+@SakerTest
+public class HostArchitectureFileTest extends SystemArchitectureTestCase {
+	@Override
+	protected void runArchitectureTest(Path testdir) throws Throwable {
+		//a 32 bit JVM is not conclusive
+		systemProperties.put("os.arch", "x86");
+		//the later tier would report a different architecture
+		probeBinary = testdir.resolve("kernel32.dll");
+		writePEBinary(probeBinary, 0x8664);
+
+		hostArchitectureFile = testdir.resolve("host_arch");
+		Files.write(hostArchitectureFile, "x86".getBytes());
+		assertArchitecture("x86");
+
+		Files.write(hostArchitectureFile, "X64".getBytes());
+		probeBinary = null;
+		assertArchitecture("x64");
+	}
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2020 Bence Sipka
+ *
+ * This program is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package testing.saker.msvc.tests.arch;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import testing.saker.SakerTest;
+
+@SakerTest
+public class ProbeBinaryArchitectureTest extends SystemArchitectureTestCase {
+	@Override
+	protected void runArchitectureTest(Path testdir) throws Throwable {
+		systemProperties.put("os.arch", "x86");
+		probeBinary = testdir.resolve("kernel32.dll");
+
+		writePEBinary(probeBinary, 0x8664);
+		assertArchitecture("x64");
+
+		writePEBinary(probeBinary, 0x014C);
+		assertArchitecture("x86");
+
+		//the probed architecture is cached in the host architecture file
+		hostArchitectureFile = testdir.resolve("host_arch");
+		Files.deleteIfExists(hostArchitectureFile);
+		writePEBinary(probeBinary, 0x8664);
+		assertArchitecture("x64");
+		assertEquals(new String(Files.readAllBytes(hostArchitectureFile)), "x64");
+
+		//the cached file is used without probing again
+		Files.delete(probeBinary);
+		probeBinary = null;
+		assertArchitecture("x64");
+	}
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2020 Bence Sipka
+ *
+ * This program is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package testing.saker.msvc.tests.arch;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.TreeMap;
+
+import saker.msvc.impl.util.SystemArchitectureEnvironmentProperty;
+import testing.saker.msvc.tests.MSVCTestCase;
+import testing.saker.msvc.tests.mock.MockingMSVCTestMetric;
+
+/**
+ * Base class for testing the host architecture detection without running <code>systeminfo</code>.
+ */
+public abstract class SystemArchitectureTestCase extends MSVCTestCase {
+	protected final Map<String, String> environmentVariables = new TreeMap<>();
+	protected final Map<String, String> systemProperties = new TreeMap<>();
+	protected Path hostArchitectureFile;
+	protected Path probeBinary;
+	private boolean systemInfoRan;
+
+	@Override
+	protected MockingMSVCTestMetric createMetricImpl() {
+		return new MockingMSVCTestMetric(getTestSDKDirectory()) {
+			@Override
+			public String getSystemArchitecture() {
+				//probe the architecture
+				return null;
+			}
+
+			@Override
+			public String getEnvironmentVariable(String name) {
+				return environmentVariables.get(name);
+			}
+
+			@Override
+			public String getSystemProperty(String name) {
+				return systemProperties.get(name);
+			}
+
+			@Override
+			public Path getHostArchitectureFilePath() {
+				return hostArchitectureFile;
+			}
+
+			@Override
+			public Path getArchitectureProbeBinaryPath() {
+				return probeBinary;
+			}
+
+			@Override
+			public void systemInfoRunning() {
+				systemInfoRan = true;
+				throw new AssertionError("systeminfo shouldn't be run.");
+			}
+		};
+	}
+
+	@Override
+	protected void runTestImpl() throws Throwable {
+		Path basedir = getTestingBaseWorkingDirectory();
+		if (basedir == null) {
+			return;
+		}
+		Path testdir = basedir.resolve(getClass().getSimpleName());
+		Files.createDirectories(testdir);
+		environmentVariables.clear();
+		systemProperties.clear();
+		hostArchitectureFile = null;
+		probeBinary = null;
+		systemInfoRan = false;
+		runArchitectureTest(testdir);
+		assertTrue(!systemInfoRan);
+	}
+
+	protected abstract void runArchitectureTest(Path testdir) throws Throwable;
+
+	protected void assertArchitecture(String expected) throws Exception {
+		assertEquals(SystemArchitectureEnvironmentProperty.INSTANCE.getCurrentValue(null), expected);
+		assertTrue(!systemInfoRan);
+	}
+
+	/**
+	 * Writes the PE header of a binary with the given machine type.
+	 */
+	protected static void writePEBinary(Path file, int machinetype) throws Exception {
+		ByteBuffer buf = ByteBuffer.allocate(0x100).order(ByteOrder.LITTLE_ENDIAN);
+		buf.put(0, (byte) 'M').put(1, (byte) 'Z');
+		buf.putInt(0x3C, 0x80);
+		buf.put(0x80, (byte) 'P').put(0x81, (byte) 'E');
+		buf.putShort(0x84, (short) machinetype);
+		Files.write(file, buf.array());
+	}
+}
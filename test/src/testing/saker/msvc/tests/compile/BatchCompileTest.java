@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2020 Bence Sipka
+ *
+ * This program is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package testing.saker.msvc.tests.compile;
+
+import java.util.List;
+
+import saker.build.file.path.SakerPath;
+import testing.saker.SakerTest;
+import testing.saker.msvc.tests.MSVCTestCase;
+import testing.saker.msvc.tests.mock.CLMockProcess;
+
+@SakerTest
+public class BatchCompileTest extends MSVCTestCase {
+	private static final SakerPath PATH_OBJ_DIRECTORY = PATH_BUILD_DIRECTORY.resolve("saker.msvc.ccompile/default/x64");
+
+	@Override
+	protected void runTestImpl() throws Throwable {
+		//enough files so each compiler invocation receives more than one of them
+		int filecount = Runtime.getRuntime().availableProcessors() * 4 + 4;
+		for (int i = 0; i < filecount; i++) {
+			files.putFile(PATH_WORKING_DIRECTORY.resolve("src/file" + i + ".c"), Integer.toString(i));
+		}
+		//same default object file names, these can't be in the same batch
+		files.putFile(PATH_WORKING_DIRECTORY.resolve("src/a/same.c"), "1001");
+		files.putFile(PATH_WORKING_DIRECTORY.resolve("src/b/same.c"), "1002");
+
+		runScriptTask("build");
+		for (int i = 0; i < filecount; i++) {
+			assertEquals(files.getAllBytes(PATH_OBJ_DIRECTORY.resolve("file" + i + ".c.obj")).toString(),
+					compile(LANG_C, ARCH_X64, i));
+		}
+		String sameobj = files.getAllBytes(PATH_OBJ_DIRECTORY.resolve("same.c.obj")).toString();
+		String sameobj1 = files.getAllBytes(PATH_OBJ_DIRECTORY.resolve("same_1.c.obj")).toString();
+		String samefirst = compile(LANG_C, ARCH_X64, 1001);
+		String samesecond = compile(LANG_C, ARCH_X64, 1002);
+		assertTrue((sameobj.equals(samefirst) && sameobj1.equals(samesecond))
+				|| (sameobj.equals(samesecond) && sameobj1.equals(samefirst)));
+		assertBatchCompilationWasRun();
+
+		runScriptTask("build");
+		assertEmpty(getMetric().getRunTaskIdFactories());
+
+		files.putFile(PATH_WORKING_DIRECTORY.resolve("src/file0.c"), "456");
+		runScriptTask("build");
+		assertEquals(files.getAllBytes(PATH_OBJ_DIRECTORY.resolve("file0.c.obj")).toString(),
+				compile(LANG_C, ARCH_X64, 456));
+		assertEquals(files.getAllBytes(PATH_OBJ_DIRECTORY.resolve("file1.c.obj")).toString(),
+				compile(LANG_C, ARCH_X64, 1));
+	}
+
+	private void assertBatchCompilationWasRun() {
+		for (List<String> command : getMetric().getProcessInvocationFrequencies().keySet()) {
+			if (!"cl.exe".equalsIgnoreCase(SakerPath.valueOf(command.get(0)).getFileName())) {
+				continue;
+			}
+			if (CLMockProcess.getInputFileCommands(command).size() > 1) {
+				return;
+			}
+		}
+		fail("No batch compilation was run: " + getMetric().getProcessInvocationFrequencies().keySet());
+	}
+
+}
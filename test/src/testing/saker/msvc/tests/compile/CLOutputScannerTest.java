@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2020 Bence Sipka
+ *
+ * This program is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package testing.saker.msvc.tests.compile;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import saker.msvc.impl.ccompile.CLOutputScanner;
+import saker.msvc.impl.ccompile.CLOutputScanner.DiagnosticLine;
+import saker.msvc.impl.ccompile.CLOutputScanner.Section;
+import testing.saker.SakerTest;
+import testing.saker.SakerTestCase;
+
+@SakerTest
+public class CLOutputScannerTest extends SakerTestCase {
+
+	@Override
+	public void runTest(Map<String, String> parameters) throws Throwable {
+		testDiagnosticParsing();
+		testSingleOutput();
+		testBatchSections();
+	}
+
+	private static void testDiagnosticParsing() {
+		assertDiagnostic(CLOutputScanner.parseDiagnostic("c:\\work\\main.cpp(12): error C2065: 'a': undeclared"),
+				"c:\\work\\main.cpp", "12", "error", " C2065", "'a': undeclared");
+		assertDiagnostic(
+				CLOutputScanner.parseDiagnostic(
+						"c:\\work\\main.cpp(3) : fatal error C1083: Cannot open include file: 'x.h': No such file"),
+				"c:\\work\\main.cpp", "3", "fatal error", " C1083", "Cannot open include file: 'x.h': No such file");
+		//the parentheses in the path are not mistaken for the line number
+		assertDiagnostic(
+				CLOutputScanner.parseDiagnostic("c:\\program files (x86)\\inc (1)\\a.h(7): warning C4100: 'x': unused"),
+				"c:\\program files (x86)\\inc (1)\\a.h", "7", "warning", " C4100", "'x': unused");
+		assertDiagnostic(CLOutputScanner.parseDiagnostic("c:\\work\\a.h(1): note: see declaration of 'x'"),
+				"c:\\work\\a.h", "1", "note", null, "see declaration of 'x'");
+		assertDiagnostic(CLOutputScanner.parseDiagnostic("c:\\\u00e9\\\u65e5.h(2): error C2143: syntax error"),
+				"c:\\\u00e9\\\u65e5.h", "2", "error", " C2143", "syntax error");
+
+		assertEquals(CLOutputScanner.parseDiagnostic("main.cpp"), null);
+		assertEquals(CLOutputScanner.parseDiagnostic("c:\\work\\main.cpp(x): error C2065: a"), null);
+		assertEquals(CLOutputScanner.parseDiagnostic("c:\\work\\main.cpp(1): error C2065: "), null);
+	}
+
+	private static void testSingleOutput() throws Exception {
+		String output = "Note: including file: c:\\work\\header.h\r\n" //
+				+ "Note: including file:  c:\\work\\nested.h\r\n" //
+				+ "Note: including file:   c:\\work\\\u00e9\\\u65e5\u672c.h \r\n" //
+				+ "Note: including file: c:\\work\\second.h\r\n" //
+				+ "c:\\work\\main.cpp(12): error C2065: 'a': undeclared\r\n" //
+				+ "\r\n" //
+				+ "some other output\r\n" //
+				+ "unterminated";
+		List<String> expectedincludes = Arrays.asList("c:\\work\\header.h", "c:\\work\\nested.h",
+				"c:\\work\\\u00e9\\\u65e5\u672c.h", "c:\\work\\second.h");
+		String expectedoutput = "some other output\nunterminated\n";
+
+		//the output is scanned the same way regardless of how it is split to chunks
+		byte[] bytes = output.getBytes(StandardCharsets.UTF_8);
+		for (int chunksize : new int[] { bytes.length, 1, 2, 7 }) {
+			CLOutputScanner scanner = new CLOutputScanner();
+			for (int i = 0; i < bytes.length; i += chunksize) {
+				scanner.handleOutput(ByteBuffer.wrap(bytes, i, Math.min(chunksize, bytes.length - i)));
+			}
+			Section section = scanner.getCommonSection();
+			assertEquals(section.getIncludes(), expectedincludes);
+			assertEquals(section.getDiagnostics().size(), 1);
+			assertDiagnostic(section.getDiagnostics().get(0), "c:\\work\\main.cpp", "12", "error", " C2065",
+					"'a': undeclared");
+			assertEquals(section.getOutput().toString(), expectedoutput);
+			assertEquals(section.isEmpty(), false);
+		}
+	}
+
+	private static void testBatchSections() throws Exception {
+		String output = "Microsoft (R) C/C++ Optimizing Compiler\r\n" //
+				+ "first.cpp\r\n" //
+				+ "Note: including file: c:\\work\\header.h\r\n" //
+				+ "third.cpp is mentioned, but not echoed yet\r\n" //
+				+ "SECOND.CPP \r\n" //
+				+ "c:\\work\\second.cpp(1): warning C4100: 'x': unused\r\n" //
+				+ "third.cpp\r\n";
+		CLOutputScanner scanner = new CLOutputScanner(new String[] { "first.cpp", "second.cpp", "third.cpp",
+				"fourth.cpp" });
+		scanner.handleOutput(ByteBuffer.wrap(output.getBytes(StandardCharsets.UTF_8)));
+
+		Section common = scanner.getCommonSection();
+		assertEquals(common.getOutput().toString(), "Microsoft (R) C/C++ Optimizing Compiler\n");
+		assertEquals(common.getIncludes(), Collections.emptyList());
+
+		Section first = scanner.getSourceSection(0);
+		assertEquals(first.getIncludes(), Arrays.asList("c:\\work\\header.h"));
+		assertEquals(first.getOutput().toString(), "third.cpp is mentioned, but not echoed yet\n");
+
+		Section second = scanner.getSourceSection(1);
+		assertEquals(second.getIncludes(), Collections.emptyList());
+		assertEquals(second.getDiagnostics().size(), 1);
+		assertDiagnostic(second.getDiagnostics().get(0), "c:\\work\\second.cpp", "1", "warning", " C4100",
+				"'x': unused");
+
+		Section third = scanner.getSourceSection(2);
+		assertEquals(third.isEmpty(), false);
+		assertEquals(third.getOutput().toString(), "");
+
+		//the compilation didn't reach the last file
+		assertEquals(scanner.getSourceSection(3).isEmpty(), true);
+	}
+
+	private static void assertDiagnostic(DiagnosticLine diag, String file, String linenumber, String type,
+			String clerror, String description) {
+		assertEquals(diag.file, file);
+		assertEquals(diag.lineNumber, linenumber);
+		assertEquals(diag.type, type);
+		assertEquals(diag.clError, clerror);
+		assertEquals(diag.description, description);
+	}
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright (C) 2020 Bence Sipka
+ *
+ * This program is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package testing.saker.msvc.tests.compile;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import saker.build.file.content.ContentDescriptor;
+import saker.build.file.content.HashContentDescriptor;
+import saker.build.file.path.SakerPath;
+import saker.build.file.provider.LocalFileProvider;
+import saker.build.file.provider.RootFileProviderKey;
+import saker.build.runtime.execution.SakerLog;
+import saker.build.thirdparty.saker.util.io.UnsyncByteArrayOutputStream;
+import saker.msvc.impl.ccompile.CompilerDiagnostic;
+import saker.msvc.impl.ccompile.CompilerState;
+import saker.msvc.impl.ccompile.CompilerState.CompiledFileState;
+import saker.msvc.impl.ccompile.CompilerState.PrecompiledHeaderState;
+import saker.msvc.impl.ccompile.FileCompilationConfiguration;
+import saker.msvc.impl.ccompile.FileCompilationProperties;
+import saker.msvc.impl.ccompile.IncludePathTable;
+import saker.std.api.file.location.ExecutionFileLocation;
+import testing.saker.SakerTest;
+import testing.saker.SakerTestCase;
+
+@SakerTest
+public class CompilerStateSerializationTest extends SakerTestCase {
+	private static final SakerPath SNAPSHOT_DIRECTORY = SakerPath.valueOf("wd:/build/saker.msvc.ccompile.state/x64");
+	private static final int INCLUDE_COUNT = 7;
+	/**
+	 * Large enough for the states to be persisted against a base snapshot.
+	 */
+	private static final int SNAPSHOT_FILE_COUNT = 300;
+
+	@Override
+	public void runTest(Map<String, String> parameters) throws Throwable {
+		testFullStorage();
+		testDeltaStorage();
+		testUnsupportedFormat();
+	}
+
+	private static void testFullStorage() throws Exception {
+		CompilerState state = createState(10);
+		assertEquals(state.setupBaseSnapshot(null, SNAPSHOT_DIRECTORY), null);
+		assertEquals(state.getBaseSnapshotPath(), null);
+
+		CompilerState readstate = read(write(state));
+		assertEquals(readstate.getPendingBaseSnapshotPath(), null);
+		assertStatesEqual(readstate, state);
+	}
+
+	private static void testDeltaStorage() throws Exception {
+		CompilerState basestate = createState(SNAPSHOT_FILE_COUNT);
+		byte[] snapshot = basestate.setupBaseSnapshot(null, SNAPSHOT_DIRECTORY);
+		assertTrue(snapshot != null);
+		assertEquals(basestate.getBaseSnapshotPath().getParent(), SNAPSHOT_DIRECTORY);
+
+		CompilerState readbase = read(write(basestate));
+		assertEquals(readbase.getPendingBaseSnapshotPath(), basestate.getBaseSnapshotPath());
+		readbase.loadBaseSnapshot(new ByteArrayInputStream(snapshot));
+		assertEquals(readbase.getPendingBaseSnapshotPath(), null);
+		assertStatesEqual(readbase, basestate);
+
+		//a few files are changed, added and removed, the previous base can be reused
+		NavigableMap<String, CompiledFileState> files = new TreeMap<>(readbase.getExecutionCompiledFiles());
+		IncludePathTable table = new IncludePathTable();
+		files.remove(outFileName(0));
+		files.put(outFileName(1), createFileState(table, 1, 3));
+		files.put(outFileName(SNAPSHOT_FILE_COUNT), createFileState(table, SNAPSHOT_FILE_COUNT, 5));
+		CompilerState deltastate = new CompilerState();
+		deltastate.setExecutionCompiledFiles(files);
+		deltastate.setPrecompiledHeaders(readbase.getPrecompiledHeaders());
+		deltastate.setIncludeTokenFingerprints(readbase.getIncludeTokenFingerprints());
+		assertEquals(deltastate.setupBaseSnapshot(readbase, SNAPSHOT_DIRECTORY), null);
+		assertEquals(deltastate.getBaseSnapshotPath(), basestate.getBaseSnapshotPath());
+
+		byte[] deltabytes = write(deltastate);
+		assertTrue(deltabytes.length < snapshot.length / 10);
+		CompilerState readdelta = read(deltabytes);
+		readdelta.loadBaseSnapshot(new ByteArrayInputStream(snapshot));
+		assertStatesEqual(readdelta, deltastate);
+		assertEquals(readdelta.getExecutionCompiledFiles().containsKey(outFileName(0)), false);
+
+		//the reverse index of the base is merged with the changes, the replaced and removed files are not reported
+		for (int i = 0; i < INCLUDE_COUNT * 2; i++) {
+			SakerPath include = includePath(i);
+			NavigableSet<String> affected = readdelta
+					.getIncludeChangeAffectedOutFileNames(Collections.singleton(include), Collections.emptySet());
+			NavigableSet<String> expectedaffected = new TreeSet<>();
+			for (Entry<String, CompiledFileState> entry : files.entrySet()) {
+				CompiledFileState filestate = entry.getValue();
+				if (filestate.getIncludes().contains(include) || filestate.getFailedIncludes().contains(include)) {
+					expectedaffected.add(entry.getKey());
+				}
+			}
+			assertEquals(affected, expectedaffected);
+		}
+		assertTrue(readdelta.getIncludeChangeAffectedOutFileNames(Collections.singleton(includePath(3)),
+				Collections.emptySet()).contains(outFileName(1)));
+		assertEquals(readdelta.getIncludeChangeAffectedOutFileNames(Collections.singleton(includePath(1)),
+				Collections.emptySet()).contains(outFileName(1)), false);
+		assertEquals(readdelta.getIncludeChangeAffectedOutFileNames(Collections.emptySet(),
+				Collections.singleton("HEADER0.H")).contains(outFileName(0)), false);
+
+		//a different snapshot is not accepted
+		CompilerState otherstate = createState(SNAPSHOT_FILE_COUNT);
+		byte[] othersnapshot = otherstate.setupBaseSnapshot(null, SNAPSHOT_DIRECTORY);
+		assertException(InvalidObjectException.class,
+				() -> read(deltabytes).loadBaseSnapshot(new ByteArrayInputStream(othersnapshot)));
+	}
+
+	private static void testUnsupportedFormat() throws Exception {
+		UnsyncByteArrayOutputStream baos = new UnsyncByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(baos)) {
+			out.writeInt(0x4d534353);
+			out.writeByte(Byte.MAX_VALUE);
+		}
+		assertException(InvalidObjectException.class, () -> read(baos.toByteArray()));
+
+		baos.reset();
+		try (ObjectOutputStream out = new ObjectOutputStream(baos)) {
+			out.writeInt(0);
+		}
+		assertException(InvalidObjectException.class, () -> read(baos.toByteArray()));
+	}
+
+	private static void assertStatesEqual(CompilerState actual, CompilerState expected) {
+		NavigableMap<String, CompiledFileState> actualfiles = actual.getExecutionCompiledFiles();
+		NavigableMap<String, CompiledFileState> expectedfiles = expected.getExecutionCompiledFiles();
+		assertEquals(actualfiles, expectedfiles);
+		for (String outfilename : expectedfiles.keySet()) {
+			CompiledFileState actualfile = actualfiles.get(outfilename);
+			CompiledFileState expectedfile = expectedfiles.get(outfilename);
+			assertEquals(actualfile.getInputContents(), expectedfile.getInputContents());
+			assertEquals(actualfile.getCompilationConfiguration(), expectedfile.getCompilationConfiguration());
+			assertEquals(actualfile.getOutputObjectPath(), expectedfile.getOutputObjectPath());
+			assertEquals(actualfile.getOutputObjectContents(), expectedfile.getOutputObjectContents());
+			assertEquals(actualfile.getDiagnostics(), expectedfile.getDiagnostics());
+			assertEquals(actualfile.isSuccessful(), expectedfile.isSuccessful());
+			assertEquals(actualfile.getCompilationDuration(), expectedfile.getCompilationDuration());
+			assertEquals(actualfile.getCompilationMemory(), expectedfile.getCompilationMemory());
+			assertEquals(actualfile.getIncludes(), expectedfile.getIncludes());
+			assertEquals(actualfile.getFailedIncludes(), expectedfile.getFailedIncludes());
+		}
+
+		Map<RootFileProviderKey, NavigableMap<SakerPath, PrecompiledHeaderState>> actualpchs = actual
+				.getPrecompiledHeaders();
+		Map<RootFileProviderKey, NavigableMap<SakerPath, PrecompiledHeaderState>> expectedpchs = expected
+				.getPrecompiledHeaders();
+		assertEquals(actualpchs.keySet(), expectedpchs.keySet());
+		for (Entry<RootFileProviderKey, NavigableMap<SakerPath, PrecompiledHeaderState>> entry : expectedpchs
+				.entrySet()) {
+			NavigableMap<SakerPath, PrecompiledHeaderState> actualstates = actualpchs.get(entry.getKey());
+			assertEquals(actualstates.keySet(), entry.getValue().keySet());
+			for (Entry<SakerPath, PrecompiledHeaderState> pchentry : entry.getValue().entrySet()) {
+				PrecompiledHeaderState actualpch = actualstates.get(pchentry.getKey());
+				PrecompiledHeaderState expectedpch = pchentry.getValue();
+				assertEquals(actualpch.getInputContents(), expectedpch.getInputContents());
+				assertEquals(actualpch.getOutputContents(), expectedpch.getOutputContents());
+				assertEquals(actualpch.getCompilationProperties(), expectedpch.getCompilationProperties());
+				assertEquals(actualpch.getIncludes(), expectedpch.getIncludes());
+				assertEquals(actualpch.getDiagnostics(), expectedpch.getDiagnostics());
+			}
+		}
+
+		assertEquals(actual.getIncludeTokenFingerprints(), expected.getIncludeTokenFingerprints());
+	}
+
+	private static CompilerState createState(int filecount) {
+		IncludePathTable table = new IncludePathTable();
+		NavigableMap<String, CompiledFileState> files = new TreeMap<>();
+		for (int i = 0; i < filecount; i++) {
+			files.put(outFileName(i), createFileState(table, i, i % INCLUDE_COUNT));
+		}
+		CompilerState state = new CompilerState();
+		state.setExecutionCompiledFiles(files);
+
+		NavigableMap<SakerPath, PrecompiledHeaderState> pchstates = new TreeMap<>();
+		pchstates.put(SakerPath.valueOf("wd:/src/pch.h"),
+				new PrecompiledHeaderState(contents(-1), contents(-2), createProperties("pch.h"),
+						new TreeSet<>(Collections.singleton(includePath(0))),
+						new TreeSet<>(Collections.singleton(new CompilerDiagnostic(SakerPath.valueOf("wd:/src/pch.h"),
+								SakerLog.SEVERITY_WARNING, 3, "C4100", "unreferenced formal parameter")))));
+		Map<RootFileProviderKey, NavigableMap<SakerPath, PrecompiledHeaderState>> pchs = new HashMap<>();
+		pchs.put(LocalFileProvider.getProviderKeyStatic(), pchstates);
+		state.setPrecompiledHeaders(pchs);
+
+		NavigableMap<SakerPath, Long> fingerprints = new TreeMap<>();
+		for (int i = 0; i < INCLUDE_COUNT; i++) {
+			fingerprints.put(includePath(i), i * 31L);
+		}
+		state.setIncludeTokenFingerprints(fingerprints);
+		return state;
+	}
+
+	private static CompiledFileState createFileState(IncludePathTable table, int index, int includeindex) {
+		FileCompilationConfiguration config = new FileCompilationConfiguration("file" + index,
+				createProperties("file" + index + ".cpp"));
+		if (index % 3 == 0) {
+			config.setPrecompiledHeader(ExecutionFileLocation.create(SakerPath.valueOf("wd:/src/pch.h")), "pch");
+		}
+		CompiledFileState result = new CompiledFileState(contents(index), config, table);
+		//the object file contents are shared by some files, so they are written only once
+		result.setObjectOutputContents(SakerPath.valueOf("wd:/build/" + outFileName(index)), contents(index % 4));
+		result.setIncludes(new TreeSet<>(Collections.singleton(includePath(includeindex))));
+		result.setFailedIncludes(new TreeSet<>(Collections.singleton(includePath(includeindex + INCLUDE_COUNT))));
+		result.setSuccessful(index % 5 != 0);
+		result.setCompilationDuration(index);
+		result.setCompilationMemory(index * 1024L);
+		if (index % 2 == 0) {
+			NavigableSet<CompilerDiagnostic> diagnostics = new TreeSet<>();
+			diagnostics.add(new CompilerDiagnostic(SakerPath.valueOf("wd:/src/file" + index + ".cpp"),
+					SakerLog.SEVERITY_ERROR, index, "C2065", "undeclared identifier"));
+			diagnostics.add(new CompilerDiagnostic(null, SakerLog.SEVERITY_WARNING, -1, null, "no location"));
+			result.setDiagnostics(diagnostics);
+		}
+		return result;
+	}
+
+	private static FileCompilationProperties createProperties(String filename) {
+		FileCompilationProperties result = new FileCompilationProperties(
+				ExecutionFileLocation.create(SakerPath.valueOf("wd:/src/" + filename)));
+		result.setLanguage("C++");
+		result.setMacroDefinitions(Collections.singletonMap("NDEBUG", ""));
+		return result;
+	}
+
+	private static ContentDescriptor contents(int index) {
+		return HashContentDescriptor.createWithHash(new byte[] { (byte) (index >> 8), (byte) index });
+	}
+
+	private static String outFileName(int index) {
+		return "file" + index + ".obj";
+	}
+
+	private static SakerPath includePath(int index) {
+		return SakerPath.valueOf("wd:/include/header" + index + ".h");
+	}
+
+	private static byte[] write(CompilerState state) throws IOException {
+		UnsyncByteArrayOutputStream baos = new UnsyncByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(baos)) {
+			state.writeExternal(out);
+		}
+		return baos.toByteArray();
+	}
+
+	private static CompilerState read(byte[] bytes) throws IOException, ClassNotFoundException {
+		CompilerState result = new CompilerState();
+		try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+			result.readExternal(in);
+		}
+		return result;
+	}
+}
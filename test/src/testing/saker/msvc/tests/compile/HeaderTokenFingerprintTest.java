@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2020 Bence Sipka
+ *
+ * This program is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package testing.saker.msvc.tests.compile;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import saker.msvc.impl.ccompile.HeaderTokenFingerprint;
+import testing.saker.SakerTest;
+import testing.saker.SakerTestCase;
+
+@SakerTest
+public class HeaderTokenFingerprintTest extends SakerTestCase {
+
+	@Override
+	public void runTest(Map<String, String> parameters) throws Throwable {
+		//comments and whitespace
+		assertSame("int a; // first\n", "int a; // second comment\n");
+		assertSame("int a; /* first */ int b;\n", "int a; /* second */ int b;\n");
+		assertSame("int  a ;\n", "int a ;\n");
+		assertSame("int a;\r\n", "int a;\n");
+		assertSame("int a;", "int a; /* unterminated");
+		assertDifferent("int a;\n", "int b;\n");
+		assertDifferent("int a;\n", "inta;\n");
+		assertDifferent("char *s = \"/* x */\";\n", "char *s = \"/* y */\";\n");
+
+		//line shifting changes
+		assertDifferent("int a;\n", "\nint a;\n");
+		assertDifferent("/* comment */\nint a;\n", "/* multi\n line comment */\nint a;\n");
+		assertDifferent("// comment\nint a;\n", "// comment\n\nint a;\n");
+
+		//splices
+		assertSame("#define A 1 \\\n + 2\n", "#define A 1    \\\r\n + 2\n");
+		assertDifferent("#define A 1 \\\n + 2\n", "#define A 1\n + 2\n");
+		assertDifferent("#define A 1 \\\n + 2\n", "#define A 1 + 2\n\n");
+		assertDifferent("char *s = \"a\\\nb\";\n", "char *s = \"a\\\nc\";\n");
+
+		//line comments that end with a splice continue on the next line
+		assertSame("// comment \\\nint a;\nint c;\n", "// comment \\\nint b;\nint c;\n");
+		assertDifferent("// comment \\\nint a;\n", "// comment\nint a;\n");
+		assertSame("// comment \\\r\nint a;\n", "// comment \\\nint b;\n");
+
+		//unterminated comments
+		assertSame("int a; /* comment", "int a; /* other comment");
+		assertSame("int a; /* comment\n", "int a; /* other\n");
+		assertDifferent("int a; /* comment\n", "int a; /* comment");
+		assertSame("int a; // comment", "int a; // other");
+
+		//raw strings contain the comment markers and quotes verbatim
+		assertDifferent("auto s = R\"x(a /* 1 */ b)x\";\n", "auto s = R\"x(a /* 2 */ b)x\";\n");
+		assertDifferent("auto s = R\"x( )\" // 1 )x\";\n", "auto s = R\"x( )\" // 2 )x\";\n");
+		assertDifferent("auto s = u8R\"x( )\" // 1 )x\";\n", "auto s = u8R\"x( )\" // 2 )x\";\n");
+		assertDifferent("auto s = LR\"(a  b)\";\n", "auto s = LR\"(a b)\";\n");
+		assertDifferent("auto s = u8R\"(a  b)\";\n", "auto s = u8R\"(a b)\";\n");
+		assertSame("auto s = R\"x(a)x\"; // 1\n", "auto s = R\"x(a)x\"; // 2\n");
+		assertSame("auto s = u8R\"(a)\"; /* 1 */\n", "auto s = u8R\"(a)\"; /* 2 */\n");
+		assertDifferent("auto s = R\"(a\nb)\";\n", "auto s = R\"(a\n\nb)\";\n");
+		//not a raw string prefix, the literal ends at the second quote
+		assertSame("auto s = FOOR\"( )\" // 1 )\";\n", "auto s = FOOR\"( )\" // 2 )\";\n");
+		assertDifferent("auto s = R\"x(unterminated // 1", "auto s = R\"x(unterminated // 2");
+	}
+
+	private static void assertSame(String first, String second) {
+		assertEquals(fingerprint(first), fingerprint(second));
+	}
+
+	private static void assertDifferent(String first, String second) {
+		assertNotEquals(fingerprint(first), fingerprint(second));
+	}
+
+	private static long fingerprint(String contents) {
+		byte[] bytes = contents.getBytes(StandardCharsets.UTF_8);
+		return HeaderTokenFingerprint.compute(bytes, 0, bytes.length);
+	}
+}
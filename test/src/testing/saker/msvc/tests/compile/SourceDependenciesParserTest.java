@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2020 Bence Sipka
+ *
+ * This program is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package testing.saker.msvc.tests.compile;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import saker.msvc.impl.ccompile.SourceDependenciesParser;
+import testing.saker.SakerTest;
+import testing.saker.SakerTestCase;
+
+@SakerTest
+public class SourceDependenciesParserTest extends SakerTestCase {
+
+	@Override
+	public void runTest(Map<String, String> parameters) throws Throwable {
+		assertEquals(parse("{\n" //
+				+ "    \"Version\": \"1.1\",\n" //
+				+ "    \"Data\": {\n" //
+				+ "        \"Source\": \"c:\\\\work\\\\main.cpp\",\n" //
+				+ "        \"ProvidedModule\": \"\",\n" //
+				+ "        \"Includes\": [\n" //
+				+ "            \"c:\\\\work\\\\header.h\",\n" //
+				+ "            \"c:\\\\work\\\\sub dir\\\\other.h\"\n" //
+				+ "        ],\n" //
+				+ "        \"ImportedModules\": [],\n" //
+				+ "        \"ImportedHeaderUnits\": [ { \"Header\": \"x\", \"BMI\": null } ],\n" //
+				+ "        \"Number\": -1.5e3,\n" //
+				+ "        \"Flag\": true\n" //
+				+ "    }\n" //
+				+ "}\n"), Arrays.asList("c:\\work\\header.h", "c:\\work\\sub dir\\other.h"));
+
+		//CRLF line endings and a byte order mark
+		assertEquals(parse("\uFEFF{\r\n\"Version\": \"1.1\",\r\n\"Data\": {\r\n\"Includes\": [\r\n"
+				+ "\"c:\\\\work\\\\header.h\"\r\n]\r\n}\r\n}\r\n"), Arrays.asList("c:\\work\\header.h"));
+
+		//escapes
+		assertEquals(parse("{\"Data\":{\"Includes\":[\"c:\\\\a\\\"b\\/c.h\", \"c:\\\\\\u00e9\\u65E5.h\"]}}"),
+				Arrays.asList("c:\\a\"b/c.h", "c:\\\u00e9\u65e5.h"));
+		//the paths are decoded as UTF-8
+		assertEquals(parse("{\"Data\":{\"Includes\":[\"c:\\\\\u00e9\\\\\u65e5\u672c.h\"]}}"),
+				Arrays.asList("c:\\\u00e9\\\u65e5\u672c.h"));
+
+		assertEquals(parse("{}"), Collections.emptyList());
+		assertEquals(parse("{\"Data\":{\"Includes\":[]}}"), Collections.emptyList());
+		assertEquals(parse("{\"Data\":null}"), Collections.emptyList());
+
+		assertException(IOException.class, () -> parse("{\"Data\":{\"Includes\":[\"c:\\\\header.h\""));
+		assertException(IOException.class, () -> parse("{\"Data\":{\"Includes\":[\"c:\\\\\\u00zz.h\"]}}"));
+		assertException(IOException.class, () -> parse("[]"));
+	}
+
+	private static List<String> parse(String json) throws IOException {
+		Path file = Files.createTempFile("sourcedeps", ".json");
+		try {
+			Files.write(file, json.getBytes(StandardCharsets.UTF_8));
+			return SourceDependenciesParser.parseIncludes(file);
+		} finally {
+			Files.delete(file);
+		}
+	}
+}
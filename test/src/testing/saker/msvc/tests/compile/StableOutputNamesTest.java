@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2020 Bence Sipka
+ *
+ * This program is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package testing.saker.msvc.tests.compile;
+
+import java.util.Set;
+import java.util.TreeSet;
+
+import saker.build.file.path.SakerPath;
+import testing.saker.SakerTest;
+import testing.saker.msvc.tests.MSVCTestCase;
+
+@SakerTest
+public class StableOutputNamesTest extends MSVCTestCase {
+	private static final SakerPath PATH_OBJ_DIRECTORY = PATH_BUILD_DIRECTORY.resolve("saker.msvc.ccompile/default/x64");
+	private static final SakerPath PATH_SUBID_OBJ_DIRECTORY = PATH_BUILD_DIRECTORY
+			.resolve("saker.msvc.ccompile/subid/x64");
+
+	@Override
+	protected void runTestImpl() throws Throwable {
+		SakerPath autilpath = PATH_WORKING_DIRECTORY.resolve("src/a/util.c");
+		SakerPath butilpath = PATH_WORKING_DIRECTORY.resolve("src/b/util.c");
+		files.putFile(autilpath, "VAL");
+
+		runScriptTask("build");
+		Set<String> aobjnames = getUtilObjectNames(PATH_OBJ_DIRECTORY);
+		assertEquals(aobjnames.size(), 1);
+		String aobjname = aobjnames.iterator().next();
+		SakerPath aobjpath = PATH_OBJ_DIRECTORY.resolve(aobjname);
+		assertEquals(files.getAllBytes(aobjpath).toString(), compile(LANG_C, ARCH_X64, 123));
+
+		//the object of the already present file is neither renamed nor recompiled
+		files.putFile(butilpath, "456");
+		runScriptTask("build");
+		assertEquals(getMetric().getCompiledFileClusterNames().keySet(), setOf(butilpath));
+		Set<String> objnames = getUtilObjectNames(PATH_OBJ_DIRECTORY);
+		assertEquals(objnames.size(), 2);
+		assertTrue(objnames.contains(aobjname));
+		assertEquals(files.getAllBytes(aobjpath).toString(), compile(LANG_C, ARCH_X64, 123));
+		objnames.remove(aobjname);
+		SakerPath bobjpath = PATH_OBJ_DIRECTORY.resolve(objnames.iterator().next());
+		assertEquals(files.getAllBytes(bobjpath).toString(), compile(LANG_C, ARCH_X64, 456));
+
+		//same when the new file is removed
+		files.delete(butilpath);
+		runScriptTask("build");
+		assertEmpty(getMetric().getCompiledFileClusterNames());
+		assertEquals(getUtilObjectNames(PATH_OBJ_DIRECTORY), aobjnames);
+
+		//the same file compiled with different sub-identifiers gets different names
+		runScriptTask("subid");
+		Set<String> subidobjnames = getUtilObjectNames(PATH_SUBID_OBJ_DIRECTORY);
+		assertEquals(subidobjnames.size(), 2);
+		Set<String> subidobjcontents = new TreeSet<>();
+		for (String n : subidobjnames) {
+			subidobjcontents.add(files.getAllBytes(PATH_SUBID_OBJ_DIRECTORY.resolve(n)).toString());
+		}
+		assertEquals(subidobjcontents, setOf(compile(LANG_C, ARCH_X64, 1), compile(LANG_C, ARCH_X64, 2)));
+
+		runScriptTask("subid");
+		assertEmpty(getMetric().getRunTaskIdFactories());
+		assertEquals(getUtilObjectNames(PATH_SUBID_OBJ_DIRECTORY), subidobjnames);
+	}
+
+	private Set<String> getUtilObjectNames(SakerPath dir) throws Exception {
+		Set<String> result = new TreeSet<>();
+		for (String n : files.getDirectoryEntries(dir).keySet()) {
+			if (n.startsWith("util.c-") && n.endsWith(".obj")) {
+				result.add(n);
+			}
+		}
+		return result;
+	}
+
+}
@@ -64,12 +64,41 @@ public class CLMockProcess {
 					String targetarch = MockingMSVCTestMetric.getMSVCExeTargetArchitecture(exepath);
 					String version = MockingMSVCTestMetric.getMSVCExeVersion(exepath);
 
-					SakerPath outputpath = SakerPath.valueOf(requireCommand(commands, "/Fo"));
-					String inputcmd = getInputFileCommand(commands);
-					SakerPath inputpath = SakerPath.valueOf(inputcmd.substring(3));
-
-					resultCode = executeCompilation(inputpath, outputpath, stdout, stderr, commands, targetarch,
-							getInputCommandLanguage(inputcmd), version);
+					String outputcmd = requireCommand(commands, "/Fo");
+					//a trailing separator specifies the output directory, the object files get the default names
+					boolean outputdirectory = outputcmd.endsWith("\\") || outputcmd.endsWith("/");
+					List<String> inputcmds = getInputFileCommands(commands);
+					if (inputcmds.size() > 1 && !outputdirectory) {
+						throw new IllegalArgumentException("Output directory required for multiple inputs: " + commands);
+					}
+					if (!commands.contains("/nologo")) {
+						stdout.println("Mock compiler: " + version + " " + getInputCommandLanguage(inputcmds.get(0))
+								+ " for " + targetarch);
+					}
+					Set<String> outputnames = new TreeSet<>(String::compareToIgnoreCase);
+					resultCode = 0;
+					for (String inputcmd : inputcmds) {
+						SakerPath inputpath = SakerPath.valueOf(inputcmd.substring(3));
+						SakerPath outputpath;
+						if (outputdirectory) {
+							String objname = getDefaultObjectFileName(inputpath.getFileName());
+							if (!outputnames.add(objname)) {
+								throw new IllegalArgumentException("Object file name conflict: " + commands);
+							}
+							outputpath = SakerPath.valueOf(outputcmd).resolve(objname);
+						} else {
+							outputpath = SakerPath.valueOf(outputcmd);
+						}
+						if (inputcmds.size() > 1) {
+							//cl prints the name of the source file before compiling it
+							stdout.println(inputpath.getFileName());
+						}
+						int filerc = executeCompilation(inputpath, outputpath, stdout, stderr, commands, targetarch,
+								getInputCommandLanguage(inputcmd), version);
+						if (resultCode == 0) {
+							resultCode = filerc;
+						}
+					}
 				}
 				if (stdoutconsumer != null) {
 					stdoutconsumer.handleOutput(ByteBuffer.wrap(stdoutbaos.getBuffer(), 0, stdoutbaos.size()));
@@ -137,9 +166,6 @@ public class CLMockProcess {
 
 	private static int executeCompilation(SakerPath inputpath, SakerPath outputpath, PrintStream stdout,
 			PrintStream stderr, List<String> commands, String targetarch, String language, String version) {
-		if (!commands.contains("/nologo")) {
-			stdout.println("Mock compiler: " + version + " " + language + " for " + targetarch);
-		}
 		StringBuilder pch = null;
 		String pchname = null;
 		String usepchname = null;
@@ -453,16 +479,25 @@ public class CLMockProcess {
 		return null;
 	}
 
-	private static String getInputFileCommand(List<String> commands) {
+	public static List<String> getInputFileCommands(List<String> commands) {
+		List<String> result = new ArrayList<>();
 		for (String cmd : commands) {
-			if (cmd.startsWith("/Tp")) {
-				return cmd;
-			}
-			if (cmd.startsWith("/Tc")) {
-				return cmd;
+			if (cmd.startsWith("/Tp") || cmd.startsWith("/Tc")) {
+				result.add(cmd);
 			}
 		}
-		throw new IllegalArgumentException("No input file.");
+		if (result.isEmpty()) {
+			throw new IllegalArgumentException("No input file.");
+		}
+		return result;
+	}
+
+	private static String getDefaultObjectFileName(String sourcefilename) {
+		int dotidx = sourcefilename.lastIndexOf('.');
+		if (dotidx < 0) {
+			return sourcefilename + ".obj";
+		}
+		return sourcefilename.substring(0, dotidx) + ".obj";
 	}
 
 	public static String requireCommand(List<String> commands, String prefix) {
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2020 Bence Sipka
+ *
+ * This program is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package testing.saker.msvc.tests.sdk;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import saker.build.file.path.SakerPath;
+import saker.msvc.impl.MSVCUtils;
+import saker.msvc.impl.sdk.AbstractVCToolsSDKReference;
+import testing.saker.SakerTest;
+import testing.saker.msvc.tests.MSVCTestCase;
+import testing.saker.msvc.tests.mock.MockingMSVCTestMetric;
+
+@SakerTest
+public class ToolchainInventoryTest extends MSVCTestCase {
+	private Path inventoryDirectory;
+	private final List<SakerPath> scannedDirectories = Collections.synchronizedList(new ArrayList<>());
+
+	@Override
+	protected MockingMSVCTestMetric createMetricImpl() {
+		return new MockingMSVCTestMetric(getTestSDKDirectory()) {
+			@Override
+			public Path getToolchainInventoryStorageDirectory() {
+				return inventoryDirectory;
+			}
+
+			@Override
+			public void toolchainDirectoryScanned(SakerPath directory) {
+				scannedDirectories.add(directory);
+			}
+		};
+	}
+
+	@Override
+	protected void runTestImpl() throws Throwable {
+		Path basedir = getTestingBaseWorkingDirectory();
+		if (basedir == null) {
+			return;
+		}
+		Path testdir = basedir.resolve(getClass().getSimpleName());
+		deleteRecursively(testdir);
+		scannedDirectories.clear();
+		inventoryDirectory = testdir.resolve("inventory");
+		Path studiosdir = testdir.resolve("studios");
+		Path msvcdir = studiosdir.resolve("2019").resolve("Community").resolve("VC").resolve("Tools").resolve("MSVC");
+		createToolchain(msvcdir, "14.22.27905");
+		SakerPath studiospath = SakerPath.valueOf(studiosdir);
+
+		//first search scans the directory, and persists the inventory
+		assertToolchain(studiospath, msvcdir, "14.22.27905");
+		assertEquals(scannedDirectories, Collections.singletonList(studiospath));
+		assertNotEmpty(listFiles(inventoryDirectory));
+
+		//the persisted inventory is used without scanning again
+		assertToolchain(studiospath, msvcdir, "14.22.27905");
+		assertEquals(scannedDirectories.size(), 1);
+
+		//a new toolchain version is installed, the modification time of the VC directory changes
+		FileTime msvcdirmodtime = Files.getLastModifiedTime(msvcdir);
+		createToolchain(msvcdir, "14.25.28610");
+		Files.setLastModifiedTime(msvcdir, FileTime.fromMillis(msvcdirmodtime.toMillis() + 10_000));
+		assertToolchain(studiospath, msvcdir, "14.25.28610");
+		assertEquals(scannedDirectories.size(), 2);
+
+		//the rescanned inventory is persisted again
+		assertToolchain(studiospath, msvcdir, "14.25.28610");
+		assertEquals(scannedDirectories.size(), 2);
+
+		//the previous version can still be found
+		AbstractVCToolsSDKReference prevref = MSVCUtils.searchMSVCRegularToolchainInStudioDir(studiospath,
+				"14.22.27905"::equals);
+		assertEquals(prevref.getVersion(), "14.22.27905");
+		assertEquals(scannedDirectories.size(), 2);
+	}
+
+	private static void assertToolchain(SakerPath studiospath, Path msvcdir, String expectedversion) {
+		AbstractVCToolsSDKReference sdkref = MSVCUtils.searchMSVCRegularToolchainInStudioDir(studiospath,
+				v -> true);
+		assertEquals(sdkref.getVersion(), expectedversion);
+		assertEquals(sdkref.getBaseDirectory(), SakerPath.valueOf(msvcdir.resolve(expectedversion)));
+	}
+
+	private static void createToolchain(Path msvcdir, String version) throws IOException {
+		Path clexe = msvcdir.resolve(version).resolve("bin").resolve("Hostx86").resolve("x86").resolve("cl.exe");
+		Files.createDirectories(clexe.getParent());
+		Files.write(clexe, new byte[0]);
+	}
+
+	private static List<Path> listFiles(Path dir) throws IOException {
+		List<Path> result = new ArrayList<>();
+		try (Stream<Path> stream = Files.list(dir)) {
+			stream.forEach(result::add);
+		}
+		return result;
+	}
+
+	private static void deleteRecursively(Path dir) throws IOException {
+		if (!Files.exists(dir)) {
+			return;
+		}
+		try (Stream<Path> stream = Files.walk(dir)) {
+			for (Path p : (Iterable<Path>) stream.sorted(Comparator.reverseOrder())::iterator) {
+				Files.delete(p);
+			}
+		}
+	}
+}
@@ -17,6 +17,7 @@ package testing.saker.msvc;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.file.Path;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
@@ -42,13 +43,42 @@ public interface MSVCTestMetric {
 		throw new UnsupportedOperationException();
 	}
 
+	/**
+	 * @return The host architecture or <code>null</code> to probe it using the other methods of the metric.
+	 */
 	public default String getSystemArchitecture() {
 		return "x64";
 	}
 
+	public default String getEnvironmentVariable(String name) {
+		return System.getenv(name);
+	}
+
+	public default String getSystemProperty(String name) {
+		return System.getProperty(name);
+	}
+
+	public default Path getHostArchitectureFilePath() {
+		return null;
+	}
+
+	public default Path getArchitectureProbeBinaryPath() {
+		return null;
+	}
+
+	public default void systemInfoRunning() {
+	}
+
 	public default void compiling(SakerPath path, SakerEnvironment environment) {
 	}
 
+	public default Path getToolchainInventoryStorageDirectory() {
+		return null;
+	}
+
+	public default void toolchainDirectoryScanned(SakerPath directory) {
+	}
+
 	@FunctionalInterface
 	public interface MetricProcessIOConsumer {
 		public void handleOutput(ByteBuffer bytes) throws IOException;